@@ -0,0 +1,58 @@
+/*
+ * <Alice LiveMan>
+ * Copyright (C) <2018>  <NekoSunflower>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package site.alice.liveman.utils;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 遮罩生成的基准测试，对比原有的逐像素实现，运行方式：mvn -P benchmark test-compile exec:exec
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ImageMaskBenchmark {
+
+    @Param({"1280x720", "1920x1080"})
+    private String          resolution;
+    // BufferedImage.TYPE_3BYTE_BGR和TYPE_INT_RGB
+    @Param({"5", "1"})
+    private int             imageType;
+    private BufferedImage[] images;
+
+    @Setup
+    public void setup() {
+        String[] size = resolution.split("x");
+        images = ImageMaskFixtures.createImagePair(Integer.parseInt(size[0]), Integer.parseInt(size[1]), imageType, 0.5, 0);
+    }
+
+    @Benchmark
+    public BufferedImage legacy() {
+        return ImageMaskFixtures.legacySameColorMask(images[0], images[1]);
+    }
+
+    @Benchmark
+    public BufferedImage pixelArray() {
+        return ImageMaskUtil.buildSameColorMask(images[0], images[1]);
+    }
+}
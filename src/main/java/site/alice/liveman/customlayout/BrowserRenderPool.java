@@ -0,0 +1,310 @@
+/*
+ * <Alice LiveMan>
+ * Copyright (C) <2018>  <NekoSunflower>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package site.alice.liveman.customlayout;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+import site.alice.liveman.utils.ProcessUtil;
+import site.alice.liveman.utils.ThreadPoolUtil;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 所有BrowserLayout共用一个PhantomJS进程，每个页面是其中的一个标签页，地址、尺寸和截图间隔都相同的页面在多个节目间共享
+ */
+@Slf4j
+public class BrowserRenderPool {
+    private static final String                   RENDER_SCRIPT      = "render-server.js";
+    private static final long                     IDLE_TIMEOUT       = 10000;
+    private static final long                     MIN_FRAME_INTERVAL = 100;
+    private static final long                     START_TIMEOUT      = 10000;
+    private static final int                      CONTROL_TIMEOUT    = 5000;
+    private static final Map<String, BrowserPage> pageMap            = new ConcurrentHashMap<>();
+    private static final AtomicLong               pageSequence       = new AtomicLong();
+    private static       Browser                  browser;
+    private static       boolean                  reaperStarted;
+
+    /**
+     * @param frameInterval 截图间隔(毫秒)，不小于100毫秒
+     * @return 已经打开的相同页面，或者新打开的页面
+     */
+    public static synchronized BrowserPage openPage(String url, int width, int height, long frameInterval) {
+        frameInterval = Math.max(frameInterval, MIN_FRAME_INTERVAL);
+        String key = width + "x" + height + "@" + frameInterval + ":" + url;
+        BrowserPage page = pageMap.get(key);
+        if (page != null && !page.isClosed()) {
+            return page;
+        }
+        if (browser == null || !browser.isAlive()) {
+            browser = startBrowser();
+        }
+        page = new BrowserPage(browser, key, pageSequence.incrementAndGet());
+        pageMap.put(key, page);
+        browser.pageMap.put(page.id, page);
+        final Browser _browser = browser;
+        final String query = "/open?id=" + page.id + "&url=" + encode(url) + "&width=" + width + "&height=" + height + "&interval=" + frameInterval;
+        ThreadPoolUtil.execute(() -> _browser.sendControl(query));
+        if (!reaperStarted) {
+            reaperStarted = true;
+            ThreadPoolUtil.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        closeIdlePages();
+                    } catch (Throwable e) {
+                        log.error("清理闲置的Browser页面失败", e);
+                    }
+                    ThreadPoolUtil.schedule(this, IDLE_TIMEOUT / 2, TimeUnit.MILLISECONDS);
+                }
+            }, IDLE_TIMEOUT / 2, TimeUnit.MILLISECONDS);
+        }
+        return page;
+    }
+
+    private static synchronized void closeIdlePages() {
+        long now = System.currentTimeMillis();
+        List<BrowserPage> idlePages = new ArrayList<>();
+        for (BrowserPage page : pageMap.values()) {
+            if (page.isClosed() || now - page.lastAccessTime > IDLE_TIMEOUT) {
+                pageMap.remove(page.key, page);
+                if (!page.isClosed()) {
+                    log.info("Browser页面[" + page.key + "]超过" + IDLE_TIMEOUT / 1000 + "秒闲置，自动释放");
+                    idlePages.add(page);
+                }
+            }
+        }
+        if (pageMap.isEmpty() && browser != null) {
+            log.info("没有正在使用的Browser页面，自动释放Browser资源");
+            ProcessUtil.killProcess(browser.pid);
+            browser = null;
+        } else {
+            for (BrowserPage page : idlePages) {
+                page.close();
+            }
+        }
+    }
+
+    private static Browser startBrowser() {
+        try {
+            int port;
+            try (ServerSocket serverSocket = new ServerSocket(0)) {
+                port = serverSocket.getLocalPort();
+            }
+            File frameDir = Files.createTempDirectory("browser-render").toFile();
+            log.info("启动共享Browser[port=" + port + ", frameDir=" + frameDir + "]...");
+            String[] args = new String[]{new File("phantomjs").getAbsolutePath(), "--web-security=false",
+                                         installRenderScript().getAbsolutePath(), port + "", frameDir.getAbsolutePath()};
+            long pid = ProcessUtil.createProcess(args);
+            ProcessUtil.AliceProcess process = ProcessUtil.getAliceProcess(pid);
+            if (process == null || !process.isAlive()) {
+                throw new IOException("Browser进程启动失败");
+            }
+            Browser browser = new Browser(pid, port, frameDir);
+            ThreadPoolUtil.execute(() -> browser.readOutput(process.getInputStream()));
+            return browser;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * 渲染脚本随jar包发布，启动时由Application释放到工作目录，文件被删除时重新从jar包中释放
+     */
+    private static File installRenderScript() throws IOException {
+        File scriptFile = new File(RENDER_SCRIPT);
+        if (!scriptFile.exists()) {
+            try (InputStream is = BrowserRenderPool.class.getResourceAsStream("/resources/" + RENDER_SCRIPT)) {
+                if (is == null) {
+                    throw new FileNotFoundException("没有找到渲染脚本" + RENDER_SCRIPT);
+                }
+                FileUtils.copyInputStreamToFile(is, scriptFile);
+            }
+        }
+        return scriptFile;
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static class Browser {
+        private final long                   pid;
+        private final int                    port;
+        private final File                   frameDir;
+        private final CountDownLatch         readyLatch = new CountDownLatch(1);
+        private final Map<Long, BrowserPage> pageMap    = new ConcurrentHashMap<>();
+
+        private Browser(long pid, int port, File frameDir) {
+            this.pid = pid;
+            this.port = port;
+            this.frameDir = frameDir;
+        }
+
+        private boolean isAlive() {
+            return ProcessUtil.isProcessExist(pid);
+        }
+
+        private void readOutput(InputStream is) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith("frame:")) {
+                        String[] frame = line.split(":");
+                        BrowserPage page = pageMap.get(Long.parseLong(frame[1]));
+                        File frameFile = new File(frameDir, frame[1] + "_" + frame[2] + ".png");
+                        if (page != null) {
+                            page.onFrame(frameFile, Long.parseLong(frame[2]));
+                        } else {
+                            FileUtils.deleteQuietly(frameFile);
+                        }
+                    } else if (line.startsWith("closed:")) {
+                        BrowserPage page = pageMap.remove(Long.parseLong(line.substring("closed:".length())));
+                        if (page != null) {
+                            // 页面打开失败时也会被关闭，下次使用时重新打开
+                            page.closed = true;
+                        }
+                    } else if (line.equals("ready")) {
+                        readyLatch.countDown();
+                    } else {
+                        log.info("Browser:" + line);
+                    }
+                }
+            } catch (Throwable e) {
+                log.error("读取Browser输出失败", e);
+            } finally {
+                readyLatch.countDown();
+                for (BrowserPage page : pageMap.values()) {
+                    page.closed = true;
+                }
+                pageMap.clear();
+                FileUtils.deleteQuietly(frameDir);
+                log.info("共享Browser进程已退出[port=" + port + "]");
+            }
+        }
+
+        private void sendControl(String query) {
+            try {
+                if (!readyLatch.await(START_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    log.warn("等待Browser启动超时[port=" + port + "]");
+                    return;
+                }
+                HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port + query).openConnection();
+                connection.setConnectTimeout(CONTROL_TIMEOUT);
+                connection.setReadTimeout(CONTROL_TIMEOUT);
+                try (InputStream is = connection.getInputStream()) {
+                    while (is.read() != -1) {
+                    }
+                } finally {
+                    connection.disconnect();
+                }
+            } catch (Throwable e) {
+                log.error("发送Browser控制命令失败[" + query + "]", e);
+            }
+        }
+    }
+
+    public static class BrowserPage {
+        private final    Browser                        browser;
+        private final    String                         key;
+        private final    long                           id;
+        private final    AtomicReference<BufferedImage> imageRef        = new AtomicReference<>();
+        private final    AtomicLong                     imageVersion    = new AtomicLong();
+        private final    AtomicLong                     latestSequence  = new AtomicLong(-1);
+        private          long                           decodedSequence = -1;
+        private volatile long                           lastAccessTime  = System.currentTimeMillis();
+        private volatile boolean                        closed;
+
+        private BrowserPage(Browser browser, String key, long id) {
+            this.browser = browser;
+            this.key = key;
+            this.id = id;
+        }
+
+        /**
+         * 标记页面仍在使用，超过10秒没有被使用的页面会被关闭
+         */
+        public void touch() {
+            lastAccessTime = System.currentTimeMillis();
+        }
+
+        public BufferedImage getImage() {
+            return imageRef.get();
+        }
+
+        /**
+         * @return 已经截取的画面数量
+         */
+        public long getImageVersion() {
+            return imageVersion.get();
+        }
+
+        public boolean isClosed() {
+            return closed;
+        }
+
+        /**
+         * 在读取输出的线程中调用，解码在线程池中进行，解码前已经有更新的截图时直接丢弃
+         */
+        private void onFrame(File frameFile, long sequence) {
+            latestSequence.set(sequence);
+            ThreadPoolUtil.execute(() -> {
+                try {
+                    if (sequence == latestSequence.get()) {
+                        BufferedImage image = ImageIO.read(frameFile);
+                        synchronized (this) {
+                            if (image != null && sequence > decodedSequence) {
+                                imageRef.set(image);
+                                imageVersion.incrementAndGet();
+                                decodedSequence = sequence;
+                            }
+                        }
+                    }
+                } catch (IOException e) {
+                    log.error("读取Browser截图失败[" + key + "]", e);
+                } finally {
+                    FileUtils.deleteQuietly(frameFile);
+                }
+            });
+        }
+
+        private void close() {
+            closed = true;
+            ThreadPoolUtil.execute(() -> browser.sendControl("/close?id=" + id));
+        }
+    }
+}
@@ -18,6 +18,8 @@
 
 package site.alice.liveman.customlayout;
 
+import com.alibaba.fastjson.annotation.JSONField;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonSubTypes;
 import com.fasterxml.jackson.annotation.JsonTypeInfo;
 import site.alice.liveman.customlayout.impl.*;
@@ -42,6 +44,22 @@ public abstract class CustomLayout implements Comparable<CustomLayout> {
 
     public abstract void paintLayout(Graphics2D g) throws Exception;
 
+    /**
+     * @return 为true时图层内容会随时间变化，每次输出都需要重新绘制
+     */
+    @JsonIgnore
+    @JSONField(serialize = false)
+    public boolean isDynamic() {
+        return false;
+    }
+
+    /**
+     * 在合成前调用，返回图层当前内容的版本号，版本号不变时可以复用上次的合成结果
+     */
+    public long refresh() {
+        return 0;
+    }
+
     public void setVideoInfo(VideoInfo videoInfo) {
         this.videoInfo = videoInfo;
     }
@@ -0,0 +1,158 @@
+/*
+ * <Alice LiveMan>
+ * Copyright (C) <2018>  <NekoSunflower>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package site.alice.liveman.customlayout;
+
+import com.keypoint.PngEncoder;
+import com.keypoint.PngEncoderB;
+import lombok.extern.slf4j.Slf4j;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 分层合成自定义图层：第一个动态图层之前的静态图层只栅格化一次作为底图，之后的图层每次在底图的副本上重绘，
+ * 图层对象和动态图层的内容版本都没有变化时直接复用上次编码的结果，可以输出PNG或者逐像素的RGBA数据
+ */
+@Slf4j
+public class LayoutCompositor {
+    private static final int                COMPRESSION_LEVEL = 1;
+    private              List<CustomLayout> baseLayers        = Collections.emptyList();
+    private              List<CustomLayout> topLayers         = Collections.emptyList();
+    private              long[]             topVersions       = new long[0];
+    private              BufferedImage      baseImage;
+    private              BufferedImage      frameImage;
+    private              long               outputVersion;
+    private              byte[]             encodedBytes;
+    private              long               encodedVersion;
+    private              byte[]             rawBytes;
+    private              long               rawVersion;
+
+    /**
+     * @param layers 按绘制顺序排列的图层
+     * @return PNG编码的合成结果
+     */
+    public synchronized byte[] render(List<CustomLayout> layers, int width, int height) {
+        BufferedImage image = compose(layers, width, height);
+        if (encodedVersion != outputVersion) {
+            encodedBytes = encode(image);
+            encodedVersion = outputVersion;
+        }
+        return encodedBytes;
+    }
+
+    /**
+     * @param layers 按绘制顺序排列的图层
+     * @return 逐像素RGBA排列的合成结果，可以直接作为ffmpeg rawvideo输入的一帧
+     */
+    public synchronized byte[] renderRaw(List<CustomLayout> layers, int width, int height) {
+        BufferedImage image = compose(layers, width, height);
+        if (rawVersion != outputVersion) {
+            int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            // 每次变化都分配新的数组，正在输出上一帧的调用方不受影响
+            byte[] rawBytes = new byte[pixels.length * 4];
+            for (int i = 0, j = 0; i < pixels.length; i++) {
+                int pixel = pixels[i];
+                rawBytes[j++] = (byte) (pixel >> 16);
+                rawBytes[j++] = (byte) (pixel >> 8);
+                rawBytes[j++] = (byte) pixel;
+                rawBytes[j++] = (byte) (pixel >>> 24);
+            }
+            this.rawBytes = rawBytes;
+            rawVersion = outputVersion;
+        }
+        return rawBytes;
+    }
+
+    private BufferedImage compose(List<CustomLayout> layers, int width, int height) {
+        int split = 0;
+        while (split < layers.size() && !layers.get(split).isDynamic()) {
+            split++;
+        }
+        List<CustomLayout> currentBaseLayers = new ArrayList<>(layers.subList(0, split));
+        List<CustomLayout> currentTopLayers = new ArrayList<>(layers.subList(split, layers.size()));
+        boolean baseChanged = false;
+        if (baseImage == null || baseImage.getWidth() != width || baseImage.getHeight() != height || !isSameLayers(baseLayers, currentBaseLayers)) {
+            baseImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            frameImage = null;
+            paintLayers(baseImage, currentBaseLayers);
+            baseLayers = currentBaseLayers;
+            baseChanged = true;
+        }
+        long[] currentVersions = new long[currentTopLayers.size()];
+        for (int i = 0; i < currentVersions.length; i++) {
+            currentVersions[i] = currentTopLayers.get(i).refresh();
+        }
+        if (baseChanged || !isSameLayers(topLayers, currentTopLayers) || !Arrays.equals(topVersions, currentVersions)) {
+            if (!currentTopLayers.isEmpty()) {
+                if (frameImage == null) {
+                    frameImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+                }
+                int[] basePixels = ((DataBufferInt) baseImage.getRaster().getDataBuffer()).getData();
+                int[] framePixels = ((DataBufferInt) frameImage.getRaster().getDataBuffer()).getData();
+                System.arraycopy(basePixels, 0, framePixels, 0, basePixels.length);
+                paintLayers(frameImage, currentTopLayers);
+            }
+            topLayers = currentTopLayers;
+            topVersions = currentVersions;
+            outputVersion++;
+        }
+        return currentTopLayers.isEmpty() ? baseImage : frameImage;
+    }
+
+    private static void paintLayers(BufferedImage image, List<CustomLayout> layers) {
+        Graphics2D graphics = image.createGraphics();
+        try {
+            for (CustomLayout layer : layers) {
+                try {
+                    layer.paintLayout(graphics);
+                } catch (Exception e) {
+                    log.error(layer.getClass().getName() + "[videoId=" + (layer.videoInfo != null ? layer.videoInfo.getVideoId() : null) + "]渲染出错", e);
+                }
+            }
+        } finally {
+            graphics.dispose();
+        }
+    }
+
+    private static byte[] encode(BufferedImage image) {
+        // 叠加层大部分是透明像素，不做行过滤的快速压缩已经足够小
+        PngEncoderB pngEncoderB = new PngEncoderB();
+        pngEncoderB.setCompressionLevel(COMPRESSION_LEVEL);
+        pngEncoderB.setFilter(PngEncoder.FILTER_NONE);
+        pngEncoderB.setEncodeAlpha(true);
+        pngEncoderB.setImage(image);
+        return pngEncoderB.pngEncode();
+    }
+
+    private static boolean isSameLayers(List<CustomLayout> a, List<CustomLayout> b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (int i = 0; i < a.size(); i++) {
+            if (a.get(i) != b.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -19,30 +19,19 @@
 package site.alice.liveman.customlayout.impl;
 
 import lombok.extern.slf4j.Slf4j;
+import site.alice.liveman.customlayout.BrowserRenderPool;
 import site.alice.liveman.customlayout.DrawingLayout;
-import site.alice.liveman.utils.ProcessUtil;
-import site.alice.liveman.utils.ThreadPoolUtil;
 
-import javax.imageio.ImageIO;
 import java.awt.*;
 import java.awt.image.BufferedImage;
-import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
-import java.io.File;
-import java.io.IOException;
 import java.net.URL;
-import java.util.Base64;
-import java.util.Scanner;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicReference;
 
 @Slf4j
 public class BrowserLayout extends DrawingLayout {
 
-    private AtomicReference<BufferedImage> imageRef = new AtomicReference<>();
-    private URL                            url;
-    private long                           lastPaint;
-    private long                           pid;
+    private URL                           url;
+    private long                          frameInterval = 1000;
+    private BrowserRenderPool.BrowserPage page;
 
     public URL getUrl() {
         return url;
@@ -53,47 +42,40 @@ public class BrowserLayout extends DrawingLayout {
     }
 
     @Override
-    public void paintLayout(Graphics2D g) {
-        lastPaint = System.nanoTime();
-        ProcessUtil.AliceProcess browserProcess = ProcessUtil.getAliceProcess(pid);
-        if (browserProcess == null || !browserProcess.isAlive()) {
-            log.info("BrowserLayout[videoId=" + videoInfo.getVideoId() + "]启动Browser...");
-            String[] args = new String[]{new File("phantomjs").getAbsolutePath(), "--web-security=false",
-                                         new File("capture.js").getAbsolutePath(), getUrl().toString(),
-                                         width + "", height + ""};
-            pid = ProcessUtil.createProcess(args);
-            final ProcessUtil.AliceProcess _browserProcess = ProcessUtil.getAliceProcess(pid);
-            if (_browserProcess != null && _browserProcess.isAlive()) {
-                ThreadPoolUtil.execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        BufferedInputStream is = (BufferedInputStream) _browserProcess.getInputStream();
-                        Scanner sc = new Scanner(is);
-                        while (sc.hasNextLine()) {
-                            String nextLine = sc.nextLine();
-                            if (nextLine.startsWith("capture:")) {
-                                nextLine = nextLine.substring("capture:".length());
-                                byte[] captureData = Base64.getDecoder().decode(nextLine);
-                                ByteArrayInputStream bis = new ByteArrayInputStream(captureData);
-                                try {
-                                    imageRef.set(ImageIO.read(bis));
-                                } catch (IOException e) {
-                                    log.error("BrowserLayout[videoId=" + videoInfo.getVideoId() + "]", e);
-                                }
-                            } else {
-                                log.info("BrowserLayout[videoId=" + videoInfo.getVideoId() + "]:" + nextLine);
-                            }
-                            if (TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - lastPaint) > 10) {
-                                log.info("BrowserLayout[videoId=" + videoInfo.getVideoId() + "]超过10秒闲置，自动释放Browser资源");
-                                ProcessUtil.killProcess(ProcessUtil.getProcessHandle(_browserProcess));
-                                return;
-                            }
-                        }
-                    }
-                });
-            }
+    public boolean isDynamic() {
+        return true;
+    }
+
+    /**
+     * @return 截图间隔(毫秒)
+     */
+    public long getFrameInterval() {
+        return frameInterval;
+    }
+
+    public void setFrameInterval(long frameInterval) {
+        this.frameInterval = frameInterval;
+    }
+
+    /**
+     * 保持共享Browser中的页面打开，返回页面已经截取的画面数量
+     */
+    @Override
+    public long refresh() {
+        BrowserRenderPool.BrowserPage page = this.page;
+        if (page == null || page.isClosed()) {
+            log.info("BrowserLayout[videoId=" + videoInfo.getVideoId() + "]打开页面" + getUrl());
+            page = BrowserRenderPool.openPage(getUrl().toString(), width, height, frameInterval);
+            this.page = page;
         }
-        BufferedImage image = imageRef.get();
+        page.touch();
+        return page.getImageVersion();
+    }
+
+    @Override
+    public void paintLayout(Graphics2D g) {
+        refresh();
+        BufferedImage image = page.getImage();
         if (image != null) {
             g.drawImage(image, x, y, image.getWidth(), image.getHeight(), null);
         }
@@ -32,6 +32,7 @@ import site.alice.liveman.model.VideoInfo;
 import site.alice.liveman.service.BroadcastServerService;
 import site.alice.liveman.service.broadcast.BroadcastServiceManager.BroadcastTask;
 import site.alice.liveman.service.external.DynamicServerService;
+import site.alice.liveman.utils.SshSessionPool;
 
 import java.text.SimpleDateFormat;
 import java.util.Collection;
@@ -61,19 +62,18 @@ public class DynamicServerJob {
         if (CollectionUtils.isNotEmpty(list)) {
             Collection<ServerInfo> subtract = CollectionUtils.subtract(list, servers);
             for (ServerInfo serverInfo : subtract) {
-                // 检查是否可以连接
-                try {
-                    log.info("发现新的服务器资源 " + serverInfo);
-                    if (broadcastServerService.testServer(serverInfo)) {
-                        serverInfo.setAvailable(true);
-                        broadcastServerService.addAndInstallServer(serverInfo);
-                    }
-                } catch (Exception ignore) {
-                }
+                log.info("发现新的服务器资源 " + serverInfo);
+                // 检查是否可以连接并初始化，多台服务器并行处理
+                broadcastServerService.addAndInstallServerAsync(serverInfo);
             }
         }
     }
 
+    @Scheduled(cron = "0/15 * * * * ?")
+    public void serverProbeJob() {
+        broadcastServerService.probeServers();
+    }
+
     @Scheduled(cron = "0/5 * * * * ?")
     public void destroyServerJob() {
         CopyOnWriteArraySet<ServerInfo> servers = liveManSetting.getServers();
@@ -88,6 +88,7 @@ public class DynamicServerJob {
                     if (currentVideo == null) {
                         servers.remove(server);
                         dynamicServerService.destroy(server);
+                        SshSessionPool.invalidate(server);
                     } else {
                         log.info("服务器[" + server.getRemark() + "]正在被节目[videoId=" + currentVideo.getVideoUnionId() + "]使用，续期。");
                     }
@@ -0,0 +1,112 @@
+/*
+ * <Alice LiveMan>
+ * Copyright (C) <2018>  <NekoSunflower>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package site.alice.liveman.job;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import site.alice.liveman.jenum.VideoBannedTypeEnum;
+import site.alice.liveman.jenum.VideoResolutionEnum;
+import site.alice.liveman.mediaproxy.MediaProxyManager;
+import site.alice.liveman.model.*;
+import site.alice.liveman.service.BroadcastServerService;
+import site.alice.liveman.service.MediaHistoryService;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * 根据频道的节目时间和历史开播时间预测即将到来的区域打码转播，提前准备动态服务器，空闲的服务器仍由计费周期检查释放
+ */
+@Slf4j
+@Component
+public class ServerForecastJob {
+
+    private static final long                   DAY_MILLIS   = TimeUnit.DAYS.toMillis(1);
+    private static final int                    HISTORY_DAYS = 7;
+    private static final int                    MIN_HIT_DAYS = 2;
+    @Autowired
+    private              LiveManSetting         liveManSetting;
+    @Autowired
+    private              MediaHistoryService    mediaHistoryService;
+    @Autowired
+    private              BroadcastServerService broadcastServerService;
+
+    @Scheduled(cron = "30 0/1 * * * ?")
+    public void serverForecastJob() {
+        int forecastMinutes = liveManSetting.getServerForecastMinutes();
+        if (forecastMinutes <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long leadMillis = TimeUnit.MINUTES.toMillis(forecastMinutes);
+        Set<ChannelInfo> liveChannels = MediaProxyManager.getExecutedProxyTaskMap().values().stream().map(mediaProxyTask -> mediaProxyTask.getVideoInfo()).filter(Objects::nonNull).map(VideoInfo::getChannelInfo).filter(Objects::nonNull).collect(Collectors.toSet());
+        Map<Integer, Integer> demandMap = new HashMap<>();
+        for (ChannelInfo channelInfo : liveManSetting.getChannels()) {
+            VideoCropConf cropConf = channelInfo.getDefaultCropConf();
+            // 只有区域打码的转播需要使用转播服务器，已经在直播的频道由调度流程直接分配
+            if (cropConf == null || cropConf.getVideoBannedType() != VideoBannedTypeEnum.CUSTOM_SCREEN || liveChannels.contains(channelInfo)) {
+                continue;
+            }
+            List<Date> startTimes = mediaHistoryService.getChannelStartTimes(channelInfo.getChannelName(), now - HISTORY_DAYS * DAY_MILLIS);
+            if (isExpected(channelInfo.getStartAt(), startTimes, now, leadMillis)) {
+                demandMap.merge(getPerformance(channelInfo, cropConf), 1, Integer::sum);
+            }
+        }
+        demandMap.forEach((performance, count) -> {
+            log.debug("预计" + forecastMinutes + "分钟内需要" + count + "台性能等级[" + performance + "]的转播服务器");
+            broadcastServerService.reserveServers(performance, count);
+        });
+    }
+
+    /**
+     * @return 节目开始时间在提前量之内，或者过去几天中至少有两天在当前时刻之后的提前量内开播时认为即将开播
+     */
+    private static boolean isExpected(Long startAt, List<Date> startTimes, long now, long leadMillis) {
+        if (startAt != null && startAt > now && startAt - now <= leadMillis) {
+            return true;
+        }
+        int hitDays = 0;
+        for (int day = 1; day <= HISTORY_DAYS; day++) {
+            long windowStart = now - day * DAY_MILLIS;
+            long windowEnd = windowStart + leadMillis;
+            for (Date startTime : startTimes) {
+                if (startTime.getTime() >= windowStart && startTime.getTime() < windowEnd) {
+                    hitDays++;
+                    break;
+                }
+            }
+        }
+        return hitDays >= MIN_HIT_DAYS;
+    }
+
+    private int getPerformance(ChannelInfo channelInfo, VideoCropConf cropConf) {
+        VideoResolutionEnum broadcastResolution = cropConf.getBroadcastResolution();
+        if (broadcastResolution == null) {
+            AccountInfo accountInfo = liveManSetting.findByAccountId(channelInfo.getDefaultAccountId());
+            broadcastResolution = accountInfo != null ? accountInfo.getBroadcastResolution() : null;
+        }
+        if (broadcastResolution == null) {
+            // 与推流时的默认值保持一致
+            broadcastResolution = VideoResolutionEnum.R720F30;
+        }
+        return broadcastResolution.getPerformance();
+    }
+}
@@ -21,23 +21,21 @@ package site.alice.liveman.mediaproxy;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
+import site.alice.liveman.mediaproxy.broadcast.BroadcastRing;
 import site.alice.liveman.mediaproxy.proxytask.FlvMediaProxyTask;
 import site.alice.liveman.mediaproxy.proxytask.MediaProxyTask;
 
 import javax.servlet.http.HttpServletResponse;
-import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.RandomAccessFile;
 import java.net.URI;
-import java.util.Arrays;
-import java.util.Comparator;
 
 @Slf4j
 @Component
 public class FlvMediaProxy implements MediaProxy {
+    private static final long                RING_WAIT_MILLIS = 10000;
     @Autowired
-    private HttpServletResponse response;
+    private              HttpServletResponse response;
 
     @Override
     public boolean isMatch(URI url, String requestFormat) {
@@ -52,39 +50,18 @@ public class FlvMediaProxy implements MediaProxy {
     @Override
     public void requestHandler(String videoId) throws Exception {
         MediaProxyTask mediaProxyTask = MediaProxyManager.getExecutedProxyTaskMap().get(videoId);
-        if (mediaProxyTask != null) {
-            File flvFilePath = new File(MediaProxyManager.getTempPath() + "/flv/" + mediaProxyTask.getVideoInfo().getVideoUnionId() + "/");
-            File[] flvFiles = flvFilePath.listFiles();
-            if (flvFiles != null && flvFiles.length > 0) {
-                Arrays.sort(flvFiles, new Comparator<File>() {
-                    @Override
-                    public int compare(File o1, File o2) {
-                        return (int) (o2.lastModified() - o1.lastModified());
-                    }
-                });
-                byte[] buffer = new byte[1024 * 1024];
-                try (RandomAccessFile raf = new RandomAccessFile(flvFiles[0], "r")) {
-                    try (OutputStream os = response.getOutputStream()) {
-                        if (raf.length() > 2 * buffer.length) {
-                            // 读FLV头部1KB数据
-                            raf.read(buffer, 0, 1024);
-                            os.write(buffer, 0, 1024);
-                            raf.seek(raf.length() - buffer.length);
-                        }
-                        while (!mediaProxyTask.getTerminated()) {
-                            int readed = 0;
-                            if ((readed = raf.read(buffer)) < 0) {
-                                log.info("not have any stream bytes[videoId=" + videoId + "]:" + raf.length());
-                                Thread.sleep(500);
-                            } else {
-                                log.info("read stream bytes[videoId=" + videoId + "]:" + raf.getFilePointer() + "@" + raf.length() + ", read:" + readed);
-                                os.write(buffer, 0, readed);
-                                os.flush();
-                            }
-                        }
-                    }
-                }
-            }
+        if (!(mediaProxyTask instanceof FlvMediaProxyTask)) {
+            return;
+        }
+        BroadcastRing tagRing = mediaProxyTask.awaitBroadcastRing(RING_WAIT_MILLIS);
+        if (tagRing == null) {
+            log.info("等待FLV缓冲区超时[videoId=" + videoId + "]");
+            return;
+        }
+        response.setContentType("video/x-flv");
+        try (OutputStream os = response.getOutputStream()) {
+            long droppedChunks = tagRing.transferTo(os, mediaProxyTask::getTerminated);
+            log.info("FLV读取者断开[videoId=" + videoId + "]，跳过的Tag数量:" + droppedChunks);
         }
     }
 }
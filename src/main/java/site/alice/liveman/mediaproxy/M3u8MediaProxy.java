@@ -21,16 +21,20 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 import site.alice.liveman.mediaproxy.proxytask.M3u8MediaProxyTask;
 import site.alice.liveman.mediaproxy.proxytask.MediaProxyTask;
+import site.alice.liveman.mediaproxy.segment.MediaSegment;
+import site.alice.liveman.mediaproxy.segment.RenderedPlaylist;
 
 import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.net.Proxy;
 import java.net.URI;
-import java.nio.charset.StandardCharsets;
 
 @Component
 public class M3u8MediaProxy implements MediaProxy {
+    @Autowired
+    private HttpServletRequest  request;
     @Autowired
     private HttpServletResponse response;
 
@@ -49,15 +53,48 @@ public class M3u8MediaProxy implements MediaProxy {
         try {
             MediaProxyTask mediaProxyTask = MediaProxyManager.getExecutedProxyTaskMap().get(videoId);
             if (mediaProxyTask instanceof M3u8MediaProxyTask) {
-                M3u8MediaProxyTask m3u8MediaProxyTask = (M3u8MediaProxyTask) mediaProxyTask;
+                RenderedPlaylist playlist = ((M3u8MediaProxyTask) mediaProxyTask).getPlaylist();
                 response.setContentType("application/vnd.apple.mpegurl");
+                if (playlist == null) {
+                    response.setContentLength(0);
+                    return;
+                }
+                response.setHeader("ETag", playlist.getETag());
+                response.setHeader("Cache-Control", "no-cache");
+                if (playlist.getETag().equals(request.getHeader("If-None-Match"))) {
+                    response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                    return;
+                }
+                byte[] content = playlist.getContent();
+                response.setContentLength(content.length);
                 try (ServletOutputStream outputStream = response.getOutputStream()) {
-                    outputStream.write(m3u8MediaProxyTask.createM3U8File().getBytes(StandardCharsets.UTF_8));
+                    outputStream.write(content);
                 }
             }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
+
+    public void segmentHandler(String videoId, long sequence) throws IOException {
+        MediaProxyTask mediaProxyTask = MediaProxyManager.getExecutedProxyTaskMap().get(videoId);
+        if (mediaProxyTask instanceof M3u8MediaProxyTask) {
+            MediaSegment segment = ((M3u8MediaProxyTask) mediaProxyTask).getSegment(sequence);
+            // 持有引用期间分片即使被淘汰也不会释放数据
+            if (segment != null && segment.retain()) {
+                try {
+                    response.setContentType("video/mp2t");
+                    response.setContentLength(segment.size());
+                    try (ServletOutputStream outputStream = response.getOutputStream()) {
+                        segment.writeTo(outputStream);
+                    }
+                } finally {
+                    segment.release();
+                }
+                return;
+            }
+        }
+        response.sendError(HttpServletResponse.SC_NOT_FOUND);
+    }
 }
 
@@ -17,8 +17,10 @@
  */
 package site.alice.liveman.mediaproxy;
 
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
+import site.alice.liveman.mediaproxy.broadcast.BroadcastRing;
 import site.alice.liveman.mediaproxy.proxytask.MediaProxyTask;
 import site.alice.liveman.mediaproxy.proxytask.TwitcastingMediaProxyTask;
 
@@ -26,15 +28,14 @@ import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletResponse;
 import java.net.Proxy;
 import java.net.URI;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.TimeUnit;
 
+@Slf4j
 @Component
 public class TwitcastingMediaProxy implements MediaProxy {
 
+    private static final long                RING_WAIT_MILLIS = 10000;
     @Autowired
-    private HttpServletResponse response;
+    private              HttpServletResponse response;
 
     @Override
     public boolean isMatch(URI url, String requestFormat) {
@@ -50,24 +51,14 @@ public class TwitcastingMediaProxy implements MediaProxy {
     public void requestHandler(String videoId) throws Exception {
         MediaProxyTask mediaProxyTask = MediaProxyManager.getExecutedProxyTaskMap().get(videoId);
         if (mediaProxyTask instanceof TwitcastingMediaProxyTask) {
-            TwitcastingMediaProxyTask twcProxyTask = (TwitcastingMediaProxyTask) mediaProxyTask;
-            BlockingQueue<byte[]> bufferedQueue = new ArrayBlockingQueue<>(20);
-            twcProxyTask.addBufferedQueue(bufferedQueue);
+            BroadcastRing fragmentRing = mediaProxyTask.awaitBroadcastRing(RING_WAIT_MILLIS);
+            if (fragmentRing == null) {
+                log.info("等待MP4分片缓冲区超时[videoId=" + videoId + "]");
+                return;
+            }
             try (ServletOutputStream outputStream = response.getOutputStream()) {
-                boolean headerWrote = false;
-                while (!twcProxyTask.getTerminated()) {
-                    byte[] bytes = bufferedQueue.poll(1000, TimeUnit.MILLISECONDS);
-                    if (bytes == null) {
-                        continue;
-                    }
-                    if (!headerWrote) {
-                        outputStream.write(twcProxyTask.getM4sHeader());
-                        headerWrote = true;
-                    }
-                    outputStream.write(bytes);
-                }
-            } finally {
-                twcProxyTask.removeBufferedQueue(bufferedQueue);
+                long droppedChunks = fragmentRing.transferTo(outputStream, mediaProxyTask::getTerminated);
+                log.info("MP4读取者断开[videoId=" + videoId + "]，跳过的分片数量:" + droppedChunks);
             }
         }
     }
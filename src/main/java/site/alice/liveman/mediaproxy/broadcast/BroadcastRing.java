@@ -0,0 +1,297 @@
+/*
+ * <Alice LiveMan>
+ * Copyright (C) <2018>  <NekoSunflower>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package site.alice.liveman.mediaproxy.broadcast;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BooleanSupplier;
+
+/**
+ * 一个写入者、多个读取者共享的媒体数据环形缓冲区。每个读取者持有独立的游标，
+ * 新读取者先收到缓存的头部数据，再从最近的同步点(如关键帧)开始读取，落后太多被覆盖时跳到最新的同步点。
+ */
+public class BroadcastRing {
+    private final    AtomicReferenceArray<Chunk> chunks;
+    private final    long                        maxBytes;
+    private final    Object                      signal           = new Object();
+    private final    Set<Cursor>                 cursors          = ConcurrentHashMap.newKeySet();
+    private final    AtomicLong                  droppedChunks    = new AtomicLong();
+    private volatile long                        firstPosition    = 0;
+    private volatile long                        nextPosition     = 0;
+    private volatile long                        lastSyncPosition = -1;
+    private volatile byte[]                      header           = new byte[0];
+    private volatile long                        totalBytes;
+    private volatile boolean                     closed;
+
+    public BroadcastRing(int capacity, long maxBytes) {
+        this.chunks = new AtomicReferenceArray<>(capacity);
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * 设置新读取者在读取数据前需要先收到的头部数据，如FLV头、元数据和解码器配置
+     */
+    public void setHeader(byte[] header) {
+        this.header = header;
+    }
+
+    public byte[] getHeader() {
+        return header;
+    }
+
+    /**
+     * @param syncPoint 读取者可以从该数据块开始解码时为true，没有同步点的数据流(如纯音频)需要将每个数据块都标记为同步点
+     */
+    public void append(byte[] data, boolean syncPoint) {
+        while (nextPosition - firstPosition == chunks.length() || (nextPosition > firstPosition && totalBytes + data.length > maxBytes)) {
+            evictOldest();
+        }
+        long position = nextPosition;
+        chunks.set(indexOf(position), new Chunk(position, data, syncPoint));
+        totalBytes += data.length;
+        if (syncPoint) {
+            lastSyncPosition = position;
+        }
+        nextPosition = position + 1;
+        synchronized (signal) {
+            signal.notifyAll();
+        }
+    }
+
+    /**
+     * 关闭后读取者读完剩余数据即结束
+     */
+    public void close() {
+        closed = true;
+        synchronized (signal) {
+            signal.notifyAll();
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public Cursor openCursor() {
+        return new Cursor();
+    }
+
+    /**
+     * 收到第一个数据块时先写入头部数据，之后持续写入新的数据块，直到缓冲区关闭或stopCondition成立
+     *
+     * @return 本次读取跳过的数据块数量
+     */
+    public long transferTo(OutputStream os, BooleanSupplier stopCondition) throws IOException, InterruptedException {
+        try (Cursor cursor = openCursor()) {
+            boolean headerWrote = false;
+            while (!stopCondition.getAsBoolean()) {
+                Chunk chunk = cursor.next(1000);
+                if (chunk == null) {
+                    if (closed) {
+                        break;
+                    }
+                    continue;
+                }
+                if (!headerWrote) {
+                    os.write(header);
+                    headerWrote = true;
+                }
+                os.write(chunk.getData());
+                // 已追上写入位置时立即发送，积压时攒满缓冲区再发送
+                if (cursor.getLag() == 0) {
+                    os.flush();
+                }
+            }
+            return cursor.getDroppedChunks();
+        }
+    }
+
+    public int getReaderCount() {
+        return cursors.size();
+    }
+
+    /**
+     * @return 当前所有读取者中落后最多的读取者尚未读取的数据块已经写入的时间(毫秒)，没有读取者落后时为0
+     */
+    public long getMaxLagMillis() {
+        long now = System.nanoTime();
+        long maxLag = 0;
+        for (Cursor cursor : cursors) {
+            long position = cursor.position;
+            if (position < nextPosition) {
+                Chunk chunk = chunks.get(indexOf(Math.max(position, firstPosition)));
+                if (chunk != null) {
+                    maxLag = Math.max(maxLag, now - chunk.getCreateTime());
+                }
+            }
+        }
+        return TimeUnit.NANOSECONDS.toMillis(maxLag);
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * @return 所有读取者累计跳过的数据块数量
+     */
+    public long getDroppedChunks() {
+        return droppedChunks.get();
+    }
+
+    private int indexOf(long position) {
+        return (int) (position % chunks.length());
+    }
+
+    private void evictOldest() {
+        long position = firstPosition;
+        firstPosition = position + 1;
+        Chunk chunk = chunks.getAndSet(indexOf(position), null);
+        if (chunk != null) {
+            totalBytes -= chunk.getData().length;
+        }
+    }
+
+    private long getStartPosition() {
+        long syncPosition = lastSyncPosition;
+        return syncPosition >= firstPosition ? syncPosition : nextPosition;
+    }
+
+    public static class Chunk {
+        private final long    position;
+        private final byte[]  data;
+        private final boolean syncPoint;
+        private final long    createTime = System.nanoTime();
+
+        private Chunk(long position, byte[] data, boolean syncPoint) {
+            this.position = position;
+            this.data = data;
+            this.syncPoint = syncPoint;
+        }
+
+        public long getPosition() {
+            return position;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        public boolean isSyncPoint() {
+            return syncPoint;
+        }
+
+        public long getCreateTime() {
+            return createTime;
+        }
+    }
+
+    public class Cursor implements AutoCloseable {
+        private volatile long    position;
+        private          boolean waitSync = true;
+        private          long    droppedChunks;
+        private          long    lastCreateTime;
+        private          boolean released;
+
+        private Cursor() {
+            position = getStartPosition();
+            cursors.add(this);
+        }
+
+        /**
+         * @return 下一个数据块，等待超时或缓冲区已关闭且没有剩余数据时返回null
+         */
+        public Chunk next(long timeoutMillis) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            while (true) {
+                if (position < firstPosition) {
+                    // 读取速度跟不上写入，未读的数据已被覆盖，从最近的同步点重新开始
+                    long startPosition = getStartPosition();
+                    drop(startPosition - position);
+                    position = startPosition;
+                    waitSync = true;
+                }
+                if (position < nextPosition) {
+                    Chunk chunk = chunks.get(indexOf(position));
+                    if (chunk == null || chunk.getPosition() != position) {
+                        continue;
+                    }
+                    position++;
+                    if (waitSync && !chunk.isSyncPoint()) {
+                        drop(1);
+                        continue;
+                    }
+                    waitSync = false;
+                    lastCreateTime = chunk.getCreateTime();
+                    return chunk;
+                }
+                if (closed) {
+                    return null;
+                }
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) {
+                    return null;
+                }
+                synchronized (signal) {
+                    if (position >= nextPosition && !closed) {
+                        signal.wait(remaining);
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return 该读取者落后于写入位置的数据块数量
+         */
+        public long getLag() {
+            return nextPosition - position;
+        }
+
+        /**
+         * @return 最近读取的数据块从写入到被读取经过的时间(毫秒)
+         */
+        public long getLagMillis() {
+            return lastCreateTime == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastCreateTime);
+        }
+
+        /**
+         * @return 因读取过慢或等待同步点而跳过的数据块数量
+         */
+        public long getDroppedChunks() {
+            return droppedChunks;
+        }
+
+        private void drop(long count) {
+            droppedChunks += count;
+            BroadcastRing.this.droppedChunks.addAndGet(count);
+        }
+
+        @Override
+        public void close() {
+            if (!released) {
+                released = true;
+                cursors.remove(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * <Alice LiveMan>
+ * Copyright (C) <2018>  <NekoSunflower>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package site.alice.liveman.mediaproxy.broadcast;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 从FLV流中逐个读取完整的Tag，每个Tag的数据包含11字节的Tag头、Tag数据和其后4字节的PreviousTagSize
+ */
+public class FlvTagReader {
+    public static final  int             TAG_TYPE_AUDIO  = 8;
+    public static final  int             TAG_TYPE_VIDEO  = 9;
+    public static final  int             TAG_TYPE_SCRIPT = 18;
+    private static final int             HEADER_SIZE     = 9;
+    private static final int             TAG_HEADER_SIZE = 11;
+    private final        DataInputStream dis;
+
+    public FlvTagReader(InputStream is) {
+        this.dis = new DataInputStream(is);
+    }
+
+    /**
+     * @return FLV头及其后的PreviousTagSize0，共13字节
+     */
+    public byte[] readHeader() throws IOException {
+        byte[] header = new byte[HEADER_SIZE + 4];
+        dis.readFully(header);
+        if (header[0] != 'F' || header[1] != 'L' || header[2] != 'V') {
+            throw new IOException("不是有效的FLV数据流");
+        }
+        return header;
+    }
+
+    /**
+     * @return 下一个Tag，流结束时返回null
+     */
+    public FlvTag readTag() throws IOException {
+        int type = dis.read();
+        if (type < 0) {
+            return null;
+        }
+        try {
+            byte[] tagHeader = new byte[TAG_HEADER_SIZE];
+            tagHeader[0] = (byte) type;
+            dis.readFully(tagHeader, 1, TAG_HEADER_SIZE - 1);
+            int dataSize = (tagHeader[1] & 0xff) << 16 | (tagHeader[2] & 0xff) << 8 | (tagHeader[3] & 0xff);
+            byte[] data = new byte[TAG_HEADER_SIZE + dataSize + 4];
+            System.arraycopy(tagHeader, 0, data, 0, TAG_HEADER_SIZE);
+            dis.readFully(data, TAG_HEADER_SIZE, dataSize + 4);
+            return new FlvTag(type & 0x1f, data);
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    public static class FlvTag {
+        private final int    type;
+        private final byte[] data;
+
+        public FlvTag(int type, byte[] data) {
+            this.type = type;
+            this.data = data;
+        }
+
+        public int getType() {
+            return type;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        public int getDataSize() {
+            return data.length - TAG_HEADER_SIZE - 4;
+        }
+
+        /**
+         * @return 视频关键帧Tag返回true，新的读取者从这里开始可以正常解码
+         */
+        public boolean isKeyFrame() {
+            return type == TAG_TYPE_VIDEO && getDataSize() > 0 && (data[TAG_HEADER_SIZE] & 0xf0) >> 4 == 1;
+        }
+
+        /**
+         * @return AVC或AAC的解码器配置(sequence header)Tag返回true
+         */
+        public boolean isSequenceHeader() {
+            if (getDataSize() < 2) {
+                return false;
+            }
+            int flags = data[TAG_HEADER_SIZE] & 0xff;
+            if (type == TAG_TYPE_VIDEO) {
+                return (flags & 0x0f) == 7 && data[TAG_HEADER_SIZE + 1] == 0;
+            }
+            if (type == TAG_TYPE_AUDIO) {
+                return flags >> 4 == 10 && data[TAG_HEADER_SIZE + 1] == 0;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * <Alice LiveMan>
+ * Copyright (C) <2018>  <NekoSunflower>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package site.alice.liveman.mediaproxy.broadcast;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 解析fMP4分片的box结构，判断读取者能否从该分片开始解码
+ */
+public class Mp4FragmentInspector {
+    private static final int NON_SYNC_SAMPLE_FLAG = 0x00010000;
+
+    /**
+     * @return 数据以moof开头(允许前面有styp/sidx/prft等box)，并且每个轨道的第一个sample都是同步sample时返回true
+     */
+    public static boolean isSyncFragment(byte[] data) {
+        int offset = 0;
+        while (offset + 8 <= data.length) {
+            long size = readUInt32(data, offset);
+            int headerSize = 8;
+            if (size == 1 && offset + 16 <= data.length) {
+                size = readUInt32(data, offset + 8) << 32 | readUInt32(data, offset + 12);
+                headerSize = 16;
+            } else if (size == 0) {
+                size = data.length - offset;
+            }
+            if (size < headerSize || offset + size > data.length) {
+                return false;
+            }
+            String type = readType(data, offset + 4);
+            if (type.equals("moof")) {
+                return isSyncMoof(data, offset + headerSize, (int) (offset + size));
+            }
+            if (type.equals("mdat") || type.equals("moov")) {
+                return false;
+            }
+            offset += size;
+        }
+        return false;
+    }
+
+    private static boolean isSyncMoof(byte[] data, int start, int end) {
+        boolean hasTrack = false;
+        for (int offset = start; offset + 8 <= end; ) {
+            int size = (int) readUInt32(data, offset);
+            if (size < 8 || offset + size > end) {
+                return false;
+            }
+            if (readType(data, offset + 4).equals("traf")) {
+                hasTrack = true;
+                if (!isSyncTraf(data, offset + 8, offset + size)) {
+                    return false;
+                }
+            }
+            offset += size;
+        }
+        return hasTrack;
+    }
+
+    private static boolean isSyncTraf(byte[] data, int start, int end) {
+        Long defaultSampleFlags = null;
+        for (int offset = start; offset + 8 <= end; ) {
+            int size = (int) readUInt32(data, offset);
+            if (size < 8 || offset + size > end) {
+                return false;
+            }
+            String type = readType(data, offset + 4);
+            int flags = (int) readUInt32(data, offset + 8) & 0xffffff;
+            int fieldOffset = offset + 12;
+            if (type.equals("tfhd")) {
+                fieldOffset += 4;
+                fieldOffset += (flags & 0x01) != 0 ? 8 : 0;
+                fieldOffset += (flags & 0x02) != 0 ? 4 : 0;
+                fieldOffset += (flags & 0x08) != 0 ? 4 : 0;
+                fieldOffset += (flags & 0x10) != 0 ? 4 : 0;
+                if ((flags & 0x20) != 0 && fieldOffset + 4 <= offset + size) {
+                    defaultSampleFlags = readUInt32(data, fieldOffset);
+                }
+            } else if (type.equals("trun")) {
+                fieldOffset += 4;
+                fieldOffset += (flags & 0x01) != 0 ? 4 : 0;
+                Long firstSampleFlags = null;
+                if ((flags & 0x04) != 0) {
+                    firstSampleFlags = readUInt32(data, fieldOffset);
+                } else if ((flags & 0x400) != 0) {
+                    fieldOffset += (flags & 0x100) != 0 ? 4 : 0;
+                    fieldOffset += (flags & 0x200) != 0 ? 4 : 0;
+                    firstSampleFlags = readUInt32(data, fieldOffset);
+                } else {
+                    firstSampleFlags = defaultSampleFlags;
+                }
+                // 无法确定sample标志时按同步sample处理，与不解析box时的行为一致
+                return firstSampleFlags == null || (firstSampleFlags & NON_SYNC_SAMPLE_FLAG) == 0;
+            }
+            offset += size;
+        }
+        return true;
+    }
+
+    private static long readUInt32(byte[] data, int offset) {
+        if (offset + 4 > data.length) {
+            return 0;
+        }
+        return (data[offset] & 0xffL) << 24 | (data[offset + 1] & 0xffL) << 16 | (data[offset + 2] & 0xffL) << 8 | (data[offset + 3] & 0xffL);
+    }
+
+    private static String readType(byte[] data, int offset) {
+        return new String(data, offset, 4, StandardCharsets.ISO_8859_1);
+    }
+}
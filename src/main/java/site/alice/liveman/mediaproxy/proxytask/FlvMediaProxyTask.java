@@ -20,19 +20,27 @@ package site.alice.liveman.mediaproxy.proxytask;
 
 import lombok.extern.slf4j.Slf4j;
 import org.apache.http.client.methods.HttpGet;
+import org.springframework.beans.factory.annotation.Autowired;
 import site.alice.liveman.mediaproxy.MediaProxyManager;
-import site.alice.liveman.model.VideoInfo;
+import site.alice.liveman.mediaproxy.broadcast.BroadcastRing;
+import site.alice.liveman.mediaproxy.broadcast.FlvTagReader;
+import site.alice.liveman.model.LiveManSetting;
 import site.alice.liveman.utils.HttpRequestUtil;
 
-import java.io.File;
+import java.io.*;
 import java.net.URI;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 @Slf4j
 public class FlvMediaProxyTask extends MediaProxyTask {
-    private static final int           MAX_RETRY_COUNT = 30;
-    private              HttpGet       httpGet;
-    protected            AtomicInteger retryCount      = new AtomicInteger(0);
+    private static final int            MAX_RETRY_COUNT = 30;
+    private static final int            RING_CAPACITY   = 4096;
+    private              HttpGet        httpGet;
+    protected            AtomicInteger  retryCount      = new AtomicInteger(0);
+    private volatile     BroadcastRing  tagRing;
+    @Autowired
+    private              LiveManSetting liveManSetting;
 
     public FlvMediaProxyTask(String videoId, URI sourceUrl) {
         super(videoId, sourceUrl);
@@ -40,21 +48,111 @@ public class FlvMediaProxyTask extends MediaProxyTask {
 
     @Override
     protected void runTask() throws Exception {
-        while (!getTerminated() && retryCount.get() < MAX_RETRY_COUNT) {
-            try {
-                File flvFile = new File(getTempPath() + "/" + System.currentTimeMillis() + ".flv");
-                httpGet = new HttpGet(getSourceUrl());
-                HttpRequestUtil.downloadToFile(httpGet, flvFile);
-            } catch (Throwable t) {
-                if (getTerminated()) {
-                    return;
+        tagRing = new BroadcastRing(RING_CAPACITY, liveManSetting.getSegmentBufferSize() * 1024L * 1024L);
+        try {
+            while (!getTerminated() && retryCount.get() < MAX_RETRY_COUNT) {
+                try {
+                    httpGet = new HttpGet(getSourceUrl());
+                    HttpRequestUtil.downloadUrl(httpGet, (is, contentLength) -> {
+                        relayTags(is);
+                        return null;
+                    });
+                } catch (Throwable t) {
+                    if (getTerminated()) {
+                        return;
+                    }
+                    log.error(getVideoId() + "出错重试(" + retryCount.incrementAndGet() + "/" + MAX_RETRY_COUNT + ")次", t);
                 }
-                log.error(getVideoId() + "出错重试(" + retryCount.incrementAndGet() + "/" + MAX_RETRY_COUNT + ")次", t);
+                Thread.sleep(1000);
             }
-            Thread.sleep(1000);
+        } finally {
+            tagRing.close();
         }
     }
 
+    /**
+     * 按Tag解析源FLV流放入共享缓冲区，同时缓存FLV头、元数据和解码器配置供新的读取者使用，只有需要录像时才写入磁盘
+     */
+    private void relayTags(InputStream is) throws IOException {
+        FlvTagReader tagReader = new FlvTagReader(is);
+        byte[] flvHeader = tagReader.readHeader();
+        retryCount.set(0);
+        byte[] metadata = new byte[0];
+        byte[] videoConfig = new byte[0];
+        byte[] audioConfig = new byte[0];
+        boolean hasVideo = false;
+        tagRing.setHeader(flvHeader);
+        File recordFile = new File(getTempPath() + "/" + System.currentTimeMillis() + ".flv");
+        File tempFile = new File(recordFile + ".tmp");
+        OutputStream recordStream = null;
+        if (getVideoInfo().isNeedRecord()) {
+            tempFile.getParentFile().mkdirs();
+            recordStream = new BufferedOutputStream(new FileOutputStream(tempFile));
+            recordStream.write(flvHeader);
+        }
+        try {
+            long setLastModifiedTime = System.nanoTime();
+            FlvTagReader.FlvTag tag;
+            while ((tag = tagReader.readTag()) != null) {
+                if (tag.getType() == FlvTagReader.TAG_TYPE_SCRIPT || tag.isSequenceHeader()) {
+                    if (tag.getType() == FlvTagReader.TAG_TYPE_SCRIPT) {
+                        metadata = tag.getData();
+                    } else if (tag.getType() == FlvTagReader.TAG_TYPE_VIDEO) {
+                        videoConfig = tag.getData();
+                    } else {
+                        audioConfig = tag.getData();
+                    }
+                    tagRing.setHeader(concat(flvHeader, metadata, videoConfig, audioConfig));
+                }
+                if (tag.getType() == FlvTagReader.TAG_TYPE_VIDEO) {
+                    hasVideo = true;
+                }
+                // 纯音频流没有关键帧，还没有出现视频Tag时每个音频Tag都可以作为读取的起点
+                tagRing.append(tag.getData(), tag.isKeyFrame() || !hasVideo && tag.getType() == FlvTagReader.TAG_TYPE_AUDIO);
+                if (recordStream != null) {
+                    recordStream.write(tag.getData());
+                    // 录像期间定期刷新目录修改时间，防止录像文件在下载过程中被上传
+                    if (TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - setLastModifiedTime) > 10) {
+                        setLastModifiedTime = System.nanoTime();
+                        recordStream.flush();
+                        tempFile.getParentFile().setLastModified(System.currentTimeMillis());
+                    }
+                }
+            }
+        } finally {
+            if (recordStream != null) {
+                recordStream.close();
+                if (tempFile.length() > 0) {
+                    tempFile.renameTo(recordFile);
+                } else {
+                    tempFile.delete();
+                }
+            }
+        }
+    }
+
+    private static byte[] concat(byte[]... arrays) {
+        int length = 0;
+        for (byte[] array : arrays) {
+            length += array.length;
+        }
+        byte[] result = new byte[length];
+        int offset = 0;
+        for (byte[] array : arrays) {
+            System.arraycopy(array, 0, result, offset, array.length);
+            offset += array.length;
+        }
+        return result;
+    }
+
+    /**
+     * @return 源FLV流的Tag缓冲区，任务启动前为null
+     */
+    @Override
+    public BroadcastRing getBroadcastRing() {
+        return tagRing;
+    }
+
     @Override
     public String getTempPath() {
         return MediaProxyManager.getTempPath() + "/flv/" + getVideoInfo().getVideoUnionId();
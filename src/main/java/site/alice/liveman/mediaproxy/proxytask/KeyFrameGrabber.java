@@ -0,0 +1,187 @@
+/*
+ * <Alice LiveMan>
+ * Copyright (C) <2018>  <NekoSunflower>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package site.alice.liveman.mediaproxy.proxytask;
+
+import lombok.extern.slf4j.Slf4j;
+import site.alice.liveman.mediaproxy.proxytask.MediaProxyTask.KeyFrame;
+import site.alice.liveman.utils.FfmpegUtil;
+import site.alice.liveman.utils.ProcessLogSink;
+import site.alice.liveman.utils.ProcessUtil;
+import site.alice.liveman.utils.ProcessUtil.AliceProcess;
+import site.alice.liveman.utils.ThreadPoolUtil;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 每个媒体代理任务按需常驻一个只解码关键帧的ffmpeg进程，以BMP格式从标准输出读取并在内存中保留最新的关键帧，
+ * 超过一段时间没有被读取时自动退出
+ */
+@Slf4j
+public class KeyFrameGrabber {
+
+    private static final Pattern  FPS_PATTERN       = Pattern.compile(", ([0-9.]+) fps");
+    private static final long     IDLE_TIMEOUT      = 60000;
+    private static final long     WAIT_TIMEOUT      = 10000;
+    private static final int      BMP_HEADER_SIZE   = 14;
+    private static final int      FPS_WAIT_RETRIES  = 20;
+    private static final long     FPS_WAIT_INTERVAL = 100;
+    private final        String   name;
+    private final        URI      mediaUrl;
+    private volatile     KeyFrame keyFrame;
+    private volatile     long     keyFrameTime;
+    private volatile     long     lastReadTime;
+    private volatile     long     pid;
+    private volatile     boolean  closed;
+    private              Integer  fps;
+
+    public KeyFrameGrabber(String name, URI mediaUrl) {
+        this.name = name;
+        this.mediaUrl = mediaUrl;
+    }
+
+    /**
+     * 最新的关键帧不超过maxAgeMillis时立即返回，否则启动解码进程并等待新的关键帧
+     *
+     * @return 超时或者任务已结束时返回null
+     */
+    public KeyFrame getKeyFrame(long maxAgeMillis) {
+        lastReadTime = System.currentTimeMillis();
+        KeyFrame current = keyFrame;
+        if (current != null && lastReadTime - keyFrameTime <= maxAgeMillis) {
+            return current;
+        }
+        startGrab();
+        long deadline = lastReadTime + WAIT_TIMEOUT;
+        synchronized (this) {
+            // 解码进程已退出时不再等待
+            while (!closed && pid != 0 && (keyFrame == null || System.currentTimeMillis() - keyFrameTime > maxAgeMillis)) {
+                long waitTime = deadline - System.currentTimeMillis();
+                if (waitTime <= 0) {
+                    log.error("获取[" + mediaUrl + "]关键帧超时");
+                    return null;
+                }
+                try {
+                    wait(waitTime);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+            if (closed || keyFrame == null || System.currentTimeMillis() - keyFrameTime > maxAgeMillis) {
+                return null;
+            }
+            return keyFrame;
+        }
+    }
+
+    public synchronized void close() {
+        closed = true;
+        if (pid != 0) {
+            ProcessUtil.killProcess(pid);
+            pid = 0;
+        }
+        notifyAll();
+    }
+
+    private synchronized void startGrab() {
+        if (closed || (pid != 0 && ProcessUtil.getAliceProcess(pid) != null)) {
+            return;
+        }
+        long process = ProcessUtil.createPipeProcess(FfmpegUtil.buildKeyFrameGrabCmdLine(mediaUrl.toString()), name);
+        AliceProcess aliceProcess = ProcessUtil.getAliceProcess(process);
+        if (aliceProcess == null) {
+            log.error("启动[" + mediaUrl + "]关键帧解码进程失败");
+            return;
+        }
+        pid = process;
+        ThreadPoolUtil.execute(() -> readFrames(process, aliceProcess));
+    }
+
+    private void readFrames(long process, AliceProcess aliceProcess) {
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(aliceProcess.getInputStream()))) {
+            byte[] header = new byte[BMP_HEADER_SIZE];
+            while (!closed) {
+                dis.readFully(header);
+                // BMP文件头的第2~5字节是小端序的文件总长度
+                int fileSize = (header[2] & 0xff) | (header[3] & 0xff) << 8 | (header[4] & 0xff) << 16 | (header[5] & 0xff) << 24;
+                if (header[0] != 'B' || header[1] != 'M' || fileSize <= BMP_HEADER_SIZE) {
+                    throw new IOException("invalid bmp header");
+                }
+                byte[] data = new byte[fileSize];
+                System.arraycopy(header, 0, data, 0, BMP_HEADER_SIZE);
+                dis.readFully(data, BMP_HEADER_SIZE, fileSize - BMP_HEADER_SIZE);
+                BufferedImage image = ImageIO.read(new ByteArrayInputStream(data));
+                if (fps == null) {
+                    // 标准错误输出由另一个线程定时读取，第一帧到达时可能还没有读到视频流信息，稍等后再发布
+                    int retries = keyFrame == null ? FPS_WAIT_RETRIES : 1;
+                    for (int i = 0; i < retries && !closed; i++) {
+                        fps = parseFps(ProcessLogSink.getLastLines(name, 100));
+                        if (fps != null) {
+                            break;
+                        }
+                        if (i + 1 < retries) {
+                            Thread.sleep(FPS_WAIT_INTERVAL);
+                        }
+                    }
+                }
+                synchronized (this) {
+                    keyFrame = new KeyFrame(fps, image);
+                    keyFrameTime = System.currentTimeMillis();
+                    notifyAll();
+                }
+                if (System.currentTimeMillis() - lastReadTime > IDLE_TIMEOUT) {
+                    log.info("[" + name + "]关键帧超过" + IDLE_TIMEOUT / 1000 + "秒没有被读取，停止解码进程");
+                    break;
+                }
+            }
+        } catch (Throwable e) {
+            if (!closed) {
+                log.warn("读取[" + mediaUrl + "]关键帧失败:" + e.getMessage());
+            }
+        } finally {
+            ProcessUtil.killProcess(process);
+            synchronized (this) {
+                if (pid == process) {
+                    pid = 0;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    private static Integer parseFps(List<String> lines) {
+        for (String line : lines) {
+            if (line.contains("Video:")) {
+                Matcher matcher = FPS_PATTERN.matcher(line);
+                if (matcher.find()) {
+                    return (int) Math.round(Double.parseDouble(matcher.group(1)));
+                }
+            }
+        }
+        return null;
+    }
+}
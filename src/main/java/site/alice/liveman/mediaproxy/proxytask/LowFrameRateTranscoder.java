@@ -0,0 +1,169 @@
+/*
+ * <Alice LiveMan>
+ * Copyright (C) <2018>  <NekoSunflower>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package site.alice.liveman.mediaproxy.proxytask;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import site.alice.liveman.mediaproxy.segment.LatencyHistogram;
+import site.alice.liveman.mediaproxy.segment.MediaSegment;
+import site.alice.liveman.utils.FfmpegUtil;
+import site.alice.liveman.utils.ProcessUtil;
+import site.alice.liveman.utils.ThreadPoolUtil;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 每个节目常驻一个ffmpeg进程做低帧率转码，源分片依次写入进程的标准输入，转码后的分片由ffmpeg切分后读回
+ */
+@Slf4j
+public class LowFrameRateTranscoder {
+    private static final int                    LOG_INTERVAL = 50;
+    private final        String                 videoId;
+    private final        File                   segmentDir;
+    private final        boolean                direct;
+    private final        LatencyHistogram       reEncodeLatency;
+    private final        Consumer<MediaSegment> segmentConsumer;
+    private final        Deque<long[]>          feedMarks    = new ArrayDeque<>();
+    private final        CountDownLatch         readerLatch  = new CountDownLatch(1);
+    private              long                   pid;
+    private              OutputStream           stdin;
+    private              double                 fedDuration;
+    private              double                 producedDuration;
+    private              long                   outputSequence;
+    private volatile     boolean                alive;
+
+    /**
+     * @param reEncodeLatency 源分片写入ffmpeg到包含它的转码分片输出之间的耗时统计
+     * @param segmentConsumer 在读取线程中按顺序接收转码后的分片
+     */
+    public LowFrameRateTranscoder(String videoId, File segmentDir, boolean direct, LatencyHistogram reEncodeLatency, Consumer<MediaSegment> segmentConsumer) {
+        this.videoId = videoId;
+        this.segmentDir = segmentDir;
+        this.direct = direct;
+        this.reEncodeLatency = reEncodeLatency;
+        this.segmentConsumer = segmentConsumer;
+    }
+
+    public boolean start(long segmentTime) {
+        FileUtils.deleteQuietly(segmentDir);
+        segmentDir.mkdirs();
+        pid = ProcessUtil.createPipeProcess(FfmpegUtil.buildToLowFrameRatePipeCmdLine(segmentDir, segmentTime), videoId + "_LOW-FRAME-RATE");
+        ProcessUtil.AliceProcess process = ProcessUtil.getAliceProcess(pid);
+        if (process == null) {
+            readerLatch.countDown();
+            return false;
+        }
+        stdin = process.getOutputStream();
+        alive = true;
+        ThreadPoolUtil.execute(() -> readSegmentList(process.getInputStream()));
+        return true;
+    }
+
+    public void write(MediaSegment segment, double duration) throws IOException {
+        segment.writeTo(stdin);
+        stdin.flush();
+        synchronized (feedMarks) {
+            fedDuration += duration;
+            feedMarks.offer(new long[]{(long) (fedDuration * 1000), System.nanoTime()});
+        }
+    }
+
+    /**
+     * 关闭标准输入让ffmpeg输出剩余的分片，超时后强制结束进程
+     */
+    public void close() {
+        alive = false;
+        IOUtils.closeQuietly(stdin);
+        if (!ProcessUtil.waitProcess(pid, 5000)) {
+            ProcessUtil.killProcess(pid);
+        }
+        try {
+            readerLatch.await(5000, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ignore) {
+        }
+        FileUtils.deleteQuietly(segmentDir);
+    }
+
+    public boolean isAlive() {
+        return alive && ProcessUtil.isProcessExist(pid);
+    }
+
+    /**
+     * @return 已写入ffmpeg但还没有转码输出的媒体时长(毫秒)
+     */
+    public long getBacklogMillis() {
+        synchronized (feedMarks) {
+            return (long) ((fedDuration - producedDuration) * 1000);
+        }
+    }
+
+    private void readSegmentList(InputStream is) {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // segment_list_type为csv时每行的格式为"文件名,开始时间,结束时间"
+                String[] columns = line.split(",");
+                if (columns.length < 3) {
+                    continue;
+                }
+                File segmentFile = new File(segmentDir, columns[0]);
+                try {
+                    double duration = Double.parseDouble(columns[2]) - Double.parseDouble(columns[1]);
+                    MediaSegment segment = MediaSegment.wrap(outputSequence++, FileUtils.readFileToByteArray(segmentFile), direct);
+                    segment.setDuration(duration);
+                    recordLatency(duration);
+                    segmentConsumer.accept(segment);
+                } catch (IOException | NumberFormatException e) {
+                    log.error(videoId + "读取低帧率转码分片失败[" + segmentFile + "]", e);
+                } finally {
+                    FileUtils.deleteQuietly(segmentFile);
+                }
+            }
+        } catch (IOException e) {
+            log.error(videoId + "读取低帧率转码进程输出失败", e);
+        } finally {
+            alive = false;
+            readerLatch.countDown();
+            log.info(videoId + "低帧率转码进程已退出");
+        }
+    }
+
+    private void recordLatency(double duration) {
+        synchronized (feedMarks) {
+            producedDuration += duration;
+            long producedMillis = (long) (producedDuration * 1000);
+            long feedTime = 0;
+            while (!feedMarks.isEmpty() && feedMarks.peek()[0] <= producedMillis) {
+                feedTime = feedMarks.poll()[1];
+            }
+            if (feedTime > 0) {
+                reEncodeLatency.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - feedTime));
+            }
+        }
+        if (outputSequence % LOG_INTERVAL == 0) {
+            log.info("节目[videoId=" + videoId + "]低帧率转码延迟统计[" + reEncodeLatency + "]，转码积压媒体时长:" + getBacklogMillis() + "毫秒");
+        }
+    }
+}
@@ -19,49 +19,66 @@ package site.alice.liveman.mediaproxy.proxytask;
 
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.codec.binary.Hex;
-import org.apache.commons.io.FilenameUtils;
-import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang.StringUtils;
+import org.apache.commons.io.FileUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import site.alice.liveman.jenum.VideoResolutionEnum;
 import site.alice.liveman.mediaproxy.MediaProxyManager;
+import site.alice.liveman.mediaproxy.segment.AesSegmentDecryptor;
+import site.alice.liveman.mediaproxy.segment.LatencyHistogram;
+import site.alice.liveman.mediaproxy.segment.M3u8PlaylistTracker;
+import site.alice.liveman.mediaproxy.segment.MediaSegment;
+import site.alice.liveman.mediaproxy.segment.RenderedPlaylist;
+import site.alice.liveman.mediaproxy.segment.SegmentRingBuffer;
 import site.alice.liveman.model.ChannelInfo;
 import site.alice.liveman.model.LiveManSetting;
 import site.alice.liveman.model.VideoInfo;
 import site.alice.liveman.utils.FfmpegUtil;
 import site.alice.liveman.utils.HttpRequestUtil;
 import site.alice.liveman.utils.ProcessUtil;
+import site.alice.liveman.utils.ThreadPoolUtil;
 
-import javax.crypto.Cipher;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.*;
 import java.net.URI;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Objects;
+import java.util.Locale;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 
 @Slf4j
 public class M3u8MediaProxyTask extends MediaProxyTask {
 
-    protected static final int                         MAX_RETRY_COUNT = 30;
-    private                BlockingDeque<M3u8SeqInfo>  downloadDeque   = new LinkedBlockingDeque<>();
-    private                ConcurrentLinkedQueue<File> seqFileQueue    = new ConcurrentLinkedQueue<>();
-    protected              AtomicInteger               retryCount      = new AtomicInteger(0);
-    private                int                         lastSeqIndex    = 0;
+    protected static final int                         MAX_RETRY_COUNT            = 30;
+    private static final   long                        MIN_LOW_FRAME_RATE_TIMEOUT = 10000;
+    private                BlockingDeque<M3u8SeqInfo>  downloadDeque              = new LinkedBlockingDeque<>();
+    private                BlockingQueue<MediaSegment> recordQueue                = new LinkedBlockingQueue<>();
+    private volatile       SegmentRingBuffer           segmentBuffer;
+    private final          LatencyHistogram            downloadLatency            = new LatencyHistogram();
+    private final          LatencyHistogram            deliverLatency             = new LatencyHistogram();
+    private final          LatencyHistogram            reEncodeLatency            = new LatencyHistogram();
+    protected              AtomicInteger               retryCount                 = new AtomicInteger(0);
     private final          MediaProxyTask              downloadTask;
+    private final          MediaProxyTask              recordTask;
+    private                long                        nextSequence               = -1;
+    private                long                        lastSourceSequence         = -1;
+    private                long                        discontinuitySequence;
+    private volatile       RenderedPlaylist            playlist;
+    private final          String                      playlistEpoch              = Long.toHexString(System.currentTimeMillis());
+    private                long                        playlistVersion;
     @Autowired
     private                LiveManSetting              liveManSetting;
 
     public M3u8MediaProxyTask(String videoId, URI sourceUrl) {
         super(videoId, sourceUrl);
         downloadTask = new MediaProxyTask(getVideoId() + "_DOWNLOAD", null) {
+            private LowFrameRateTranscoder transcoder;
+
             @Override
             protected void runTask() throws InterruptedException {
                 VideoInfo mediaVideoInfo = M3u8MediaProxyTask.this.getVideoInfo();
@@ -69,111 +86,185 @@ public class M3u8MediaProxyTask extends MediaProxyTask {
                         (mediaVideoInfo.getFrameRate() != null && mediaVideoInfo.getFrameRate() > 30 ||
                                 mediaVideoInfo.getResolution() != null && Arrays.stream(mediaVideoInfo.getResolution().split("x")).mapToLong(Long::parseLong).sum() > (1280 + 720));
                 log.info("videoId=" + mediaVideoInfo.getVideoId() + ", fps=" + mediaVideoInfo.getFrameRate() + ", resolution=" + mediaVideoInfo.getResolution() + ", needLowFrameRate=" + needLowFrameRate);
-                final BlockingQueue<M3u8SeqInfo> toLowFrameRatePidQueue = new LinkedBlockingQueue<>();
+                boolean pipeReEncode = needLowFrameRate && liveManSetting.getPreReEncodePipe();
+                // 逐分片转码时按顺序串联各个转码进程的退出事件，由ProcessSupervisor回调写入，不再单独占用一个线程等待
+                CompletableFuture<Void> lowFrameRateChain = CompletableFuture.completedFuture(null);
                 if (needLowFrameRate) {
+                    // 两种转码方式都输出1280x720
                     mediaVideoInfo.setResolution("1280x720");
-                    MediaProxyManager.runProxy(new MediaProxyTask(getVideoId() + "_LOW-FRAME-RATE", null) {
-                        @Override
-                        protected void runTask() throws Exception {
-                            while (!M3u8MediaProxyTask.this.getTerminated()) {
-                                M3u8SeqInfo m3u8SeqInfo = toLowFrameRatePidQueue.poll(1000, TimeUnit.MILLISECONDS);
-                                if (m3u8SeqInfo != null) {
-                                    ProcessUtil.waitProcess(m3u8SeqInfo.getConvertPid());
-                                    m3u8SeqInfo.getSeqFile().delete();
-                                    File recodedFile = new File(m3u8SeqInfo.getSeqFile().toString().replace(".tmp", ""));
-                                    if (recodedFile.exists() && recodedFile.length() > 0) {
-                                        while (seqFileQueue.size() > 100) {
-                                            seqFileQueue.poll();
-                                        }
-                                        seqFileQueue.offer(recodedFile);
-                                    }
-                                }
-                            }
-                        }
-
-                        @Override
-                        public String getTempPath() {
-                            return MediaProxyManager.getTempPath() + "/m3u8/" + M3u8MediaProxyTask.this.getVideoInfo().getVideoUnionId();
-                        }
-                    });
                 }
+                int downloadWindow = Math.max(1, liveManSetting.getSegmentDownloadWindow());
+                Deque<M3u8SeqInfo> pendingDeque = new ArrayDeque<>(downloadWindow);
                 while (retryCount.get() < MAX_RETRY_COUNT) {
                     if (M3u8MediaProxyTask.this.getTerminated()) {
+                        for (M3u8SeqInfo m3u8SeqInfo : pendingDeque) {
+                            m3u8SeqInfo.getDownloadFuture().cancel(true);
+                        }
                         return;
                     }
-                    M3u8SeqInfo m3u8SeqInfo = downloadDeque.poll(1000, TimeUnit.MILLISECONDS);
-                    if (m3u8SeqInfo != null) {
+                    // 补齐下载窗口，窗口内的分片并行下载
+                    while (pendingDeque.size() < downloadWindow) {
+                        M3u8SeqInfo m3u8SeqInfo = pendingDeque.isEmpty() ? downloadDeque.poll(1000, TimeUnit.MILLISECONDS) : downloadDeque.poll();
+                        if (m3u8SeqInfo == null) {
+                            break;
+                        }
                         if (downloadDeque.size() > 10) {
                             log.warn("警告:节目[" + M3u8MediaProxyTask.this.getVideoId() + "]当前的下载队列长度为:" + downloadDeque.size());
                         }
-                        File dictSeqFile = m3u8SeqInfo.getSeqFile();
-                        if (needLowFrameRate) {
-                            m3u8SeqInfo.setSeqFile(new File(m3u8SeqInfo.getSeqFile().toString() + ".tmp"));
-                        }
-                        long startTime = System.nanoTime();
-                        downloadSeqFile(m3u8SeqInfo);
-                        long dt = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
-                        if (dt >= 1000) {
-                            log.warn("警告:下载[videoId=" + M3u8MediaProxyTask.this.getVideoId() + "]seq文件时间过长[耗时:" + dt + "毫秒, 文件地址:" + m3u8SeqInfo.getSeqUrl() + "]");
-                        }
-                        if (needLowFrameRate) {
-                            long process = ProcessUtil.createProcess(FfmpegUtil.buildToLowFrameRateCmdLine(m3u8SeqInfo.getSeqFile(), dictSeqFile), getVideoId() + "_LOW-FRAME-RATE");
-                            m3u8SeqInfo.setConvertPid(process);
-                            toLowFrameRatePidQueue.offer(m3u8SeqInfo);
-                        } else {
-                            while (seqFileQueue.size() > 100) {
-                                seqFileQueue.poll();
+                        m3u8SeqInfo.setDownloadFuture(ThreadPoolUtil.submit(() -> {
+                            long startTime = System.nanoTime();
+                            MediaSegment segment = downloadSegment(m3u8SeqInfo);
+                            long dt = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+                            downloadLatency.record(dt);
+                            if (dt >= 1000) {
+                                log.warn("警告:下载[videoId=" + M3u8MediaProxyTask.this.getVideoId() + "]seq文件时间过长[耗时:" + dt + "毫秒, 文件地址:" + m3u8SeqInfo.getSeqUrl() + "]");
                             }
-                            seqFileQueue.offer(dictSeqFile);
+                            return segment;
+                        }));
+                        pendingDeque.offer(m3u8SeqInfo);
+                    }
+                    // 按媒体序列顺序提交已下载完成的分片
+                    M3u8SeqInfo m3u8SeqInfo = pendingDeque.peek();
+                    if (m3u8SeqInfo == null) {
+                        continue;
+                    }
+                    MediaSegment segment;
+                    try {
+                        segment = m3u8SeqInfo.getDownloadFuture().get(200, TimeUnit.MILLISECONDS);
+                    } catch (TimeoutException e) {
+                        continue;
+                    } catch (ExecutionException e) {
+                        log.error(getVideoId() + "下载媒体分片失败[seq=" + m3u8SeqInfo.getSequence() + "]", e);
+                        segment = null;
+                    }
+                    pendingDeque.poll();
+                    if (segment == null) {
+                        continue;
+                    }
+                    if (pipeReEncode) {
+                        reEncode(m3u8SeqInfo, segment);
+                    } else if (needLowFrameRate) {
+                        File seqTempFile = getSeqTempFile(m3u8SeqInfo);
+                        seqTempFile.getParentFile().mkdirs();
+                        try (FileOutputStream fos = new FileOutputStream(seqTempFile)) {
+                            segment.writeTo(fos);
+                        } catch (IOException e) {
+                            log.error(getVideoId() + "写入待转码的媒体分片失败[" + seqTempFile + "]", e);
+                            continue;
+                        } finally {
+                            segment.release();
                         }
+                        long process = ProcessUtil.createProcess(FfmpegUtil.buildToLowFrameRateCmdLine(seqTempFile, getSeqFile(m3u8SeqInfo)), getVideoId() + "_LOW-FRAME-RATE");
+                        m3u8SeqInfo.setConvertPid(process);
+                        // 卡住的转码进程超时后强制终止，避免后续分片一直排队等待
+                        ProcessUtil.setTimeout(process, Math.max(MIN_LOW_FRAME_RATE_TIMEOUT, Math.round(m3u8SeqInfo.getDuration() * 3000)));
+                        lowFrameRateChain = lowFrameRateChain.thenCompose(v -> ProcessUtil.onExit(process)).thenRunAsync(() -> appendLowFrameRateSegment(m3u8SeqInfo), ThreadPoolUtil::execute).exceptionally(e -> {
+                            // 单个分片失败时不中断后续分片的写入
+                            log.error(getVideoId() + "低帧率转码分片失败[seq=" + m3u8SeqInfo.getSequence() + "]", e);
+                            return null;
+                        });
+                    } else {
+                        appendSegment(m3u8SeqInfo, segment);
                     }
                 }
             }
 
             @Override
             protected void afterTerminate() {
+                if (transcoder != null) {
+                    transcoder.close();
+                }
                 M3u8MediaProxyTask.this.terminate();
             }
 
             @Override
             public String getTempPath() {
-                return MediaProxyManager.getTempPath() + "/m3u8/" + M3u8MediaProxyTask.this.getVideoInfo().getVideoUnionId();
+                return M3u8MediaProxyTask.this.getTempPath();
+            }
+
+            private void reEncode(M3u8SeqInfo m3u8SeqInfo, MediaSegment segment) {
+                try {
+                    if (transcoder == null || !transcoder.isAlive()) {
+                        if (transcoder != null) {
+                            log.warn(getVideoId() + "低帧率转码进程已退出，重新启动转码进程");
+                            transcoder.close();
+                        }
+                        transcoder = new LowFrameRateTranscoder(M3u8MediaProxyTask.this.getVideoId(), new File(getTempPath() + "/low"), liveManSetting.getSegmentBufferDirect(), reEncodeLatency, M3u8MediaProxyTask.this::appendTranscodedSegment);
+                        if (!transcoder.start(Math.max(1, Math.round(m3u8SeqInfo.getDuration())))) {
+                            log.error(getVideoId() + "启动低帧率转码进程失败");
+                            transcoder = null;
+                            return;
+                        }
+                    }
+                    transcoder.write(segment, m3u8SeqInfo.getDuration());
+                } catch (IOException e) {
+                    log.error(getVideoId() + "写入低帧率转码进程失败[seq=" + m3u8SeqInfo.getSequence() + "]", e);
+                    transcoder.close();
+                    transcoder = null;
+                } finally {
+                    segment.release();
+                }
             }
 
-            private void downloadSeqFile(M3u8SeqInfo m3u8SeqInfo) {
+            private MediaSegment downloadSegment(M3u8SeqInfo m3u8SeqInfo) {
+                boolean direct = liveManSetting.getSegmentBufferDirect();
                 for (int i = 0; i < 3; i++) {
+                    VideoInfo mediaVideoInfo = M3u8MediaProxyTask.this.getVideoInfo();
+                    byte[] encodeIV = null;
                     try {
-                        VideoInfo mediaVideoInfo = M3u8MediaProxyTask.this.getVideoInfo();
-                        if (!m3u8SeqInfo.getSeqFile().exists()) {
-                            if (mediaVideoInfo.getEncodeMethod() == null) {
-                                HttpRequestUtil.downloadToFile(m3u8SeqInfo.getSeqUrl(), m3u8SeqInfo.getSeqFile());
-                            } else {
-                                m3u8SeqInfo.getSeqFile().getParentFile().mkdirs();
-                                byte[] encodedData = HttpRequestUtil.downloadUrl(m3u8SeqInfo.getSeqUrl());
-                                try {
-                                    SecretKeySpec sKeySpec = new SecretKeySpec(mediaVideoInfo.getEncodeKey(), "AES");
-                                    Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-                                    IvParameterSpec ivParameterSpec = new IvParameterSpec(mediaVideoInfo.getEncodeIV());
-                                    cipher.init(Cipher.DECRYPT_MODE, sKeySpec, ivParameterSpec);
-                                    byte[] decodedData = cipher.doFinal(encodedData);
-                                    try (FileOutputStream seqFileStream = new FileOutputStream(m3u8SeqInfo.getSeqFile())) {
-                                        IOUtils.write(decodedData, seqFileStream);
-                                    }
-                                } catch (Throwable e) {
-                                    log.warn("媒体数据解密失败{} KEY={},IV={},SEQ={}", e.getMessage(), Hex.encodeHexString(mediaVideoInfo.getEncodeKey()), Hex.encodeHexString(mediaVideoInfo.getEncodeIV()), m3u8SeqInfo.getSeqFile());
+                        MediaSegment segment;
+                        if (mediaVideoInfo.getEncodeMethod() == null) {
+                            segment = HttpRequestUtil.downloadUrl(m3u8SeqInfo.getSeqUrl(), (is, contentLength) -> MediaSegment.read(m3u8SeqInfo.getSequence(), is, contentLength, direct));
+                        } else {
+                            encodeIV = m3u8SeqInfo.getEncodeIV() != null ? m3u8SeqInfo.getEncodeIV() :
+                                    mediaVideoInfo.getEncodeIV() != null ? mediaVideoInfo.getEncodeIV() : AesSegmentDecryptor.sequenceIV(m3u8SeqInfo.getSequence());
+                            final byte[] segmentIV = encodeIV;
+                            segment = HttpRequestUtil.downloadUrl(m3u8SeqInfo.getSeqUrl(), (is, contentLength) -> {
+                                try (InputStream decryptStream = AesSegmentDecryptor.decrypt(is, mediaVideoInfo.getEncodeKey(), segmentIV)) {
+                                    return MediaSegment.read(m3u8SeqInfo.getSequence(), decryptStream, contentLength, direct);
+                                } catch (GeneralSecurityException e) {
+                                    throw new IOException(e);
                                 }
-                            }
-                            retryCount.set(0);
+                            });
                         }
-                        break;
+                        retryCount.set(0);
+                        return segment;
                     } catch (Throwable e) {
                         if (e instanceof FileNotFoundException) {
                             log.warn(getVideoId() + "出错，媒体文件已过期", e);
                             break;
                         }
+                        if (encodeIV != null) {
+                            log.warn("媒体数据下载或解密失败{} KEY={},IV={},SEQ={}", e.getMessage(), Hex.encodeHexString(mediaVideoInfo.getEncodeKey()), Hex.encodeHexString(encodeIV), m3u8SeqInfo.getSequence());
+                        }
                         log.error(getVideoId() + "出错重试(" + retryCount.incrementAndGet() + "/" + MAX_RETRY_COUNT + ")次", e);
                     }
                 }
+                return null;
+            }
+        };
+        recordTask = new MediaProxyTask(getVideoId() + "_RECORD", null) {
+            @Override
+            protected void runTask() throws InterruptedException {
+                while (!M3u8MediaProxyTask.this.getTerminated() || !recordQueue.isEmpty()) {
+                    MediaSegment segment = recordQueue.poll(1000, TimeUnit.MILLISECONDS);
+                    if (segment != null) {
+                        File seqFile = new File(getTempPath() + "/" + segment.getSequence() + ".ts");
+                        seqFile.getParentFile().mkdirs();
+                        try (FileOutputStream fos = new FileOutputStream(seqFile)) {
+                            segment.writeTo(fos);
+                        } catch (IOException e) {
+                            log.error(getVideoId() + "录像分片写入失败[" + seqFile + "]", e);
+                        } finally {
+                            segment.release();
+                        }
+                    }
+                }
+            }
+
+            @Override
+            public String getTempPath() {
+                return M3u8MediaProxyTask.this.getTempPath();
             }
         };
     }
@@ -181,6 +272,10 @@ public class M3u8MediaProxyTask extends MediaProxyTask {
     @Override
     public void afterTerminate() {
         downloadTask.waitForTerminate();
+        SegmentRingBuffer segmentBuffer = this.segmentBuffer;
+        if (segmentBuffer != null) {
+            segmentBuffer.clear();
+        }
     }
 
     @Override
@@ -190,37 +285,37 @@ public class M3u8MediaProxyTask extends MediaProxyTask {
 
     @Override
     public void runTask() throws InterruptedException {
+        segmentBuffer = new SegmentRingBuffer(liveManSetting.getSegmentBufferCapacity(), liveManSetting.getSegmentBufferSize() * 1024L * 1024L, MediaSegment::release);
+        MediaProxyManager.runProxy(recordTask);
         MediaProxyManager.runProxy(downloadTask);
         boolean isFirst = true;
+        M3u8PlaylistTracker playlistTracker = new M3u8PlaylistTracker();
         while (retryCount.get() < MAX_RETRY_COUNT && !getTerminated()) {
             ChannelInfo channelInfo = getVideoInfo().getChannelInfo();
-            List<M3u8SeqInfo> tempSeqList = new LinkedList<>();
             long start = System.nanoTime();
+            boolean changed = false;
             try {
-                String m3u8Context = HttpRequestUtil.downloadUrl(getSourceUrl(), Charset.defaultCharset());
-                String[] m3u8Lines = m3u8Context.split("\n");
-                int seqCount = 0;
-                int readSeqCount = 0;
-                int startSeq = 0;
-                for (String m3u8Line : m3u8Lines) {
-                    if (!m3u8Line.startsWith("#") && StringUtils.isNotEmpty(m3u8Line.trim())) {
-                        int currentSeqIndex = (startSeq + seqCount);
-                        if (currentSeqIndex > lastSeqIndex) {
-                            M3u8SeqInfo m3u8SeqInfo = new M3u8SeqInfo();
-                            m3u8SeqInfo.setSeqUrl(getSourceUrl().resolve(m3u8Line));
-                            m3u8SeqInfo.setSeqFile(new File(getTempPath() + "/" + currentSeqIndex + ".ts"));
-                            if (!downloadDeque.contains(m3u8SeqInfo)) {
-                                tempSeqList.add(m3u8SeqInfo);
-                                lastSeqIndex = currentSeqIndex;
-                                readSeqCount++;
-                            }
-                        }
-                        seqCount++;
-                    } else {
-                        if (m3u8Line.startsWith("#EXT-X-MEDIA-SEQUENCE:")) {
-                            startSeq = Integer.parseInt(m3u8Line.split(":")[1]);
-                        }
+                URI reloadUri = playlistTracker.getReloadUri(getSourceUrl());
+                String m3u8Context;
+                try {
+                    m3u8Context = HttpRequestUtil.downloadUrl(reloadUri, Charset.defaultCharset(), playlistTracker.getReloadTimeoutMillis());
+                } catch (IOException e) {
+                    if (playlistTracker.isBlockReload()) {
+                        log.warn(getVideoId() + "阻塞刷新m3u8播放列表失败，回退到定时刷新[url=" + reloadUri + "]", e);
+                        playlistTracker.onReloadFailed();
+                        continue;
                     }
+                    throw e;
+                }
+                List<M3u8SeqInfo> tempSeqList = new LinkedList<>();
+                for (M3u8PlaylistTracker.SegmentEntry segmentEntry : playlistTracker.update(m3u8Context)) {
+                    M3u8SeqInfo m3u8SeqInfo = new M3u8SeqInfo();
+                    m3u8SeqInfo.setSeqUrl(getSourceUrl().resolve(segmentEntry.getUri()));
+                    m3u8SeqInfo.setSequence(segmentEntry.getSequence());
+                    m3u8SeqInfo.setDuration(segmentEntry.getDuration());
+                    m3u8SeqInfo.setEncodeIV(segmentEntry.getEncodeIV());
+                    m3u8SeqInfo.setDiscontinuity(segmentEntry.isDiscontinuity());
+                    tempSeqList.add(m3u8SeqInfo);
                 }
                 if (isFirst && tempSeqList.size() > 3) {
                     tempSeqList = tempSeqList.subList(tempSeqList.size() - 3, tempSeqList.size());
@@ -229,7 +324,12 @@ public class M3u8MediaProxyTask extends MediaProxyTask {
                 for (M3u8SeqInfo m3u8SeqInfo : tempSeqList) {
                     downloadDeque.offer(m3u8SeqInfo);
                 }
-                if (readSeqCount == 0) {
+                changed = !tempSeqList.isEmpty();
+                if (!changed) {
+                    if (playlistTracker.isEndList()) {
+                        log.info(getVideoId() + "的m3u8播放列表已结束[EXT-X-ENDLIST]，结束媒体流下载");
+                        break;
+                    }
                     if ((retryCount.incrementAndGet() + 2) % 3 == 0) {
                         log.info(getVideoId() + "没有找到可以下载的片段，重试(" + retryCount.get() + "/" + MAX_RETRY_COUNT + ")次");
                     }
@@ -247,17 +347,108 @@ public class M3u8MediaProxyTask extends MediaProxyTask {
                 }
             }
             long dt = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
-            if (dt >= 1500) {
+            if (dt >= 1500 && !playlistTracker.isBlockReload()) {
                 log.warn("警告:处理[videoId=" + getVideoInfo().getVideoUnionId() + "]m3u8媒体序列时间过长[耗时:" + dt + "毫秒, 文件地址:" + getSourceUrl() + "]");
             }
-            Thread.sleep(Math.max(500 - dt, 0));
+            Thread.sleep(playlistTracker.getReloadDelayMillis(changed, dt));
         }
     }
 
+    private void appendLowFrameRateSegment(M3u8SeqInfo m3u8SeqInfo) {
+        File recodedFile = getSeqFile(m3u8SeqInfo);
+        try {
+            if (!getTerminated() && recodedFile.exists() && recodedFile.length() > 0) {
+                appendSegment(m3u8SeqInfo, MediaSegment.wrap(m3u8SeqInfo.getSequence(), FileUtils.readFileToByteArray(recodedFile), liveManSetting.getSegmentBufferDirect()));
+            }
+        } catch (Throwable e) {
+            log.error(getVideoId() + "读取转码后的媒体分片失败[" + recodedFile + "]", e);
+        } finally {
+            FileUtils.deleteQuietly(getSeqTempFile(m3u8SeqInfo));
+            FileUtils.deleteQuietly(recodedFile);
+        }
+    }
+
+    private File getSeqFile(M3u8SeqInfo m3u8SeqInfo) {
+        return new File(getTempPath() + "/" + m3u8SeqInfo.getSequence() + ".ts");
+    }
+
+    private File getSeqTempFile(M3u8SeqInfo m3u8SeqInfo) {
+        return new File(getTempPath() + "/" + m3u8SeqInfo.getSequence() + ".ts.tmp");
+    }
+
+    private void appendSegment(M3u8SeqInfo m3u8SeqInfo, MediaSegment segment) {
+        long sourceSequence = m3u8SeqInfo.getSequence();
+        if (lastSourceSequence >= 0) {
+            // 源播放列表标记了不连续、分片下载失败被跳过或源的序列号被重置时，本地播放列表需要插入EXT-X-DISCONTINUITY
+            boolean continuous = sourceSequence == lastSourceSequence + 1;
+            if (!continuous) {
+                log.info("节目[videoId=" + getVideoId() + "]媒体序列不连续[上一分片seq=" + lastSourceSequence + ", 当前分片seq=" + sourceSequence + "]");
+            }
+            if (!continuous || m3u8SeqInfo.isDiscontinuity()) {
+                segment.setDiscontinuity(true);
+                discontinuitySequence++;
+            }
+        } else {
+            nextSequence = sourceSequence;
+        }
+        lastSourceSequence = sourceSequence;
+        segment.setSequence(nextSequence++);
+        segment.setDiscontinuitySequence(discontinuitySequence);
+        segment.setDuration(m3u8SeqInfo.getDuration());
+        segmentBuffer.offer(segment);
+        renderPlaylist();
+        deliverLatency.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - m3u8SeqInfo.getCreateTime()));
+        if (deliverLatency.getCount() % 100 == 0) {
+            log.info("节目[videoId=" + getVideoId() + "]分片下载耗时统计[" + downloadLatency + "]，入队延迟统计[" + deliverLatency + "]");
+        }
+        // 低清晰度代理只用于推流，不需要录像
+        if (getVideoInfo().isNeedRecord() && !getVideoId().endsWith("_low") && segment.retain()) {
+            recordQueue.offer(segment);
+        }
+    }
+
+    /**
+     * 常驻转码进程输出的分片不对应源的媒体序列，按输出顺序编号后加入缓冲区
+     */
+    private void appendTranscodedSegment(MediaSegment segment) {
+        M3u8SeqInfo m3u8SeqInfo = new M3u8SeqInfo();
+        m3u8SeqInfo.setSequence(segment.getSequence());
+        m3u8SeqInfo.setDuration(segment.getDuration());
+        appendSegment(m3u8SeqInfo, segment);
+    }
+
+    public LatencyHistogram getDownloadLatency() {
+        return downloadLatency;
+    }
+
+    /**
+     * @return 分片从出现在源播放列表到可供本地读取的延迟统计
+     */
+    public LatencyHistogram getDeliverLatency() {
+        return deliverLatency;
+    }
+
+    /**
+     * @return 低帧率转码的耗时统计，只在使用常驻转码进程时有数据
+     */
+    public LatencyHistogram getReEncodeLatency() {
+        return reEncodeLatency;
+    }
+
+    public MediaSegment getSegment(long sequence) {
+        SegmentRingBuffer segmentBuffer = this.segmentBuffer;
+        return segmentBuffer != null ? segmentBuffer.get(sequence) : null;
+    }
+
     class M3u8SeqInfo {
-        private URI  seqUrl;
-        private File seqFile;
-        private Long convertPid;
+        private URI                  seqUrl;
+        private long                 sequence;
+        private double               duration;
+        private Long                 convertPid;
+        private long                 createTime = System.nanoTime();
+        private Future<MediaSegment> downloadFuture;
+        private byte[]               encodeIV;
+        private boolean              discontinuity;
 
         public URI getSeqUrl() {
             return seqUrl;
@@ -267,12 +458,48 @@ public class M3u8MediaProxyTask extends MediaProxyTask {
             this.seqUrl = seqUrl;
         }
 
-        public File getSeqFile() {
-            return seqFile;
+        public long getSequence() {
+            return sequence;
         }
 
-        public void setSeqFile(File seqFile) {
-            this.seqFile = seqFile;
+        public void setSequence(long sequence) {
+            this.sequence = sequence;
+        }
+
+        public double getDuration() {
+            return duration;
+        }
+
+        public void setDuration(double duration) {
+            this.duration = duration;
+        }
+
+        public long getCreateTime() {
+            return createTime;
+        }
+
+        public Future<MediaSegment> getDownloadFuture() {
+            return downloadFuture;
+        }
+
+        public void setDownloadFuture(Future<MediaSegment> downloadFuture) {
+            this.downloadFuture = downloadFuture;
+        }
+
+        public byte[] getEncodeIV() {
+            return encodeIV;
+        }
+
+        public void setEncodeIV(byte[] encodeIV) {
+            this.encodeIV = encodeIV;
+        }
+
+        public boolean isDiscontinuity() {
+            return discontinuity;
+        }
+
+        public void setDiscontinuity(boolean discontinuity) {
+            this.discontinuity = discontinuity;
         }
 
         public Long getConvertPid() {
@@ -282,39 +509,45 @@ public class M3u8MediaProxyTask extends MediaProxyTask {
         public void setConvertPid(Long convertPid) {
             this.convertPid = convertPid;
         }
+    }
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-            M3u8SeqInfo that = (M3u8SeqInfo) o;
-            return Objects.equals(seqFile, that.seqFile);
-        }
-
-        @Override
-        public int hashCode() {
-            return Objects.hash(seqFile);
+    /**
+     * @return 最新的本地播放列表，缓冲区中还没有分片时为null
+     */
+    public RenderedPlaylist getPlaylist() {
+        RenderedPlaylist playlist = this.playlist;
+        if (playlist == null) {
+            log.warn("节目[" + getVideoInfo().getVideoUnionId() + "]的m3u8序列为空!");
         }
+        return playlist;
     }
 
-    public String createM3U8File() {
-        VideoInfo videoInfo = getVideoInfo();
-        StringBuilder sb = new StringBuilder();
-        if (seqFileQueue.isEmpty()) {
-            log.warn("节目[" + videoInfo.getVideoUnionId() + "]的m3u8序列为空!");
-        } else {
-            for (File seqFile : seqFileQueue) {
-                if (sb.length() == 0) {
-                    sb.append("#EXTM3U\n" +
-                            "#EXT-X-VERSION:3\n" +
-                            "#EXT-X-TARGETDURATION:2\n" +
-                            "#EXT-X-MEDIA-SEQUENCE:" + Integer.parseInt(FilenameUtils.getBaseName(seqFile.getName())) + "\n" +
-                            "#EXT-X-DISCONTINUITY-SEQUENCE:1\n");
-                }
-                sb.append("#EXTINF:1.0,\n");
-                sb.append("/mediaProxy/temp/m3u8/" + videoInfo.getVideoUnionId() + "/" + seqFile.getName()).append("\n");
+    /**
+     * 根据缓冲区中的分片重新生成播放列表，每加入一个分片调用一次，播放器请求时直接输出生成好的内容
+     */
+    private void renderPlaylist() {
+        List<MediaSegment> segments = segmentBuffer.snapshot();
+        if (segments.isEmpty()) {
+            return;
+        }
+        double maxDuration = 0;
+        for (MediaSegment segment : segments) {
+            maxDuration = Math.max(maxDuration, segment.getDuration());
+        }
+        MediaSegment firstSegment = segments.get(0);
+        StringBuilder sb = new StringBuilder(128 + segments.size() * 64);
+        sb.append("#EXTM3U\n" +
+                "#EXT-X-VERSION:3\n" +
+                "#EXT-X-TARGETDURATION:" + (maxDuration > 0 ? (long) Math.ceil(maxDuration) : 2) + "\n" +
+                "#EXT-X-MEDIA-SEQUENCE:" + firstSegment.getSequence() + "\n" +
+                "#EXT-X-DISCONTINUITY-SEQUENCE:" + firstSegment.getDiscontinuitySequence() + "\n");
+        for (MediaSegment segment : segments) {
+            if (segment != firstSegment && segment.isDiscontinuity()) {
+                sb.append("#EXT-X-DISCONTINUITY\n");
             }
+            sb.append("#EXTINF:").append(segment.getDuration() > 0 ? String.format(Locale.ROOT, "%.3f", segment.getDuration()) : "1.0").append(",\n");
+            sb.append("/mediaProxy/m3u8/").append(getVideoId()).append("/").append(segment.getSequence()).append(".ts\n");
         }
-        return sb.toString();
+        playlist = new RenderedPlaylist(sb.toString().getBytes(StandardCharsets.UTF_8), "\"" + playlistEpoch + "-" + (++playlistVersion) + "\"");
     }
 }
@@ -18,38 +18,32 @@
 package site.alice.liveman.mediaproxy.proxytask;
 
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.io.IOUtils;
+import org.springframework.beans.factory.annotation.Autowired;
 import site.alice.liveman.mediaproxy.MediaProxyManager;
+import site.alice.liveman.mediaproxy.broadcast.BroadcastRing;
+import site.alice.liveman.model.LiveManSetting;
 import site.alice.liveman.model.VideoInfo;
 import site.alice.liveman.service.live.LiveServiceFactory;
-import site.alice.liveman.utils.FfmpegUtil;
-import site.alice.liveman.utils.ProcessUtil;
-import site.alice.liveman.utils.ProcessUtil.AliceProcess;
 
-import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.InputStreamReader;
 import java.io.Serializable;
 import java.net.URI;
-import java.util.UUID;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 @Slf4j
 public abstract class MediaProxyTask implements Runnable, Serializable {
 
-    private static final Pattern FPS_PATTERN = Pattern.compile(", ([0-9]+) fps");
+    private static final long DEFAULT_KEY_FRAME_AGE = 15000;
 
-    private           String    videoId;
-    private           URI       sourceUrl;
-    private           URI       targetUrl;
-    private           VideoInfo videoInfo;
-    private transient Thread    runThread;
-    private volatile  Boolean   terminated;
-    private           long      lastKeyFrameTime;
-    private           KeyFrame  cachedKeyFrame;
+    private                 String          videoId;
+    private                 URI             sourceUrl;
+    private                 URI             targetUrl;
+    private                 VideoInfo       videoInfo;
+    private transient       Thread          runThread;
+    private volatile        Boolean         terminated;
+    private transient       KeyFrameGrabber keyFrameGrabber;
+    private final transient Object          keyFrameLock = new Object();
+    @Autowired
+    private transient       LiveManSetting  liveManSetting;
 
     public String getVideoId() {
         return videoId;
@@ -88,37 +82,44 @@ public abstract class MediaProxyTask implements Runnable, Serializable {
     }
 
     public KeyFrame getKeyFrame() {
-        if (System.currentTimeMillis() - lastKeyFrameTime < 5000) {
-            return cachedKeyFrame;
-        }
-        String fileName = UUID.randomUUID() + ".png";
-        String keyFrameCmdLine = FfmpegUtil.buildKeyFrameCmdLine(targetUrl.toString(), fileName);
-        long process = ProcessUtil.createProcess(keyFrameCmdLine, getVideoId() + "_KeyFrame");
-        try {
-            AliceProcess aliceProcess = ProcessUtil.getAliceProcess(process);
-            if (ProcessUtil.waitProcess(process, 10000)) {
-                Integer fps = null;
-                File logFile = aliceProcess.getProcessBuilder().redirectOutput().file();
-                String logData = IOUtils.toString(new FileInputStream(logFile));
-                Matcher matcher = FPS_PATTERN.matcher(logData);
-                if (matcher.find()) {
-                    fps = Integer.parseInt(matcher.group(1));
-                }
-                cachedKeyFrame = new KeyFrame(fps, ImageIO.read(new File(fileName)));
-                lastKeyFrameTime = System.currentTimeMillis();
-                return cachedKeyFrame;
-            } else {
-                ProcessUtil.killProcess(process);
-                log.error("获取[" + targetUrl + "]关键帧超时");
+        // 没有经过Spring注入的任务(如内部的子任务)使用默认值
+        return getKeyFrame(liveManSetting != null ? liveManSetting.getKeyFrameMaxAge() : DEFAULT_KEY_FRAME_AGE);
+    }
+
+    /**
+     * @param maxAgeMillis 可以接受的关键帧最长时间，缓存的关键帧足够新时不会阻塞
+     */
+    public KeyFrame getKeyFrame(long maxAgeMillis) {
+        KeyFrameGrabber grabber;
+        // run()在任务运行期间一直持有this的锁，这里使用单独的锁对象
+        synchronized (keyFrameLock) {
+            if (keyFrameGrabber == null) {
+                keyFrameGrabber = new KeyFrameGrabber(videoId + "_keyframe", targetUrl);
             }
-        } catch (Throwable t) {
-            log.error("获取[" + targetUrl + "]关键帧失败", t);
-        } finally {
-            new File(fileName).delete();
+            grabber = keyFrameGrabber;
         }
+        return grabber.getKeyFrame(maxAgeMillis);
+    }
+
+    /**
+     * @return 多个读取者共享的媒体数据缓冲区，不使用共享缓冲区或任务尚未开始读取源时返回null
+     */
+    public BroadcastRing getBroadcastRing() {
         return null;
     }
 
+    /**
+     * 任务刚启动时缓冲区可能还没有创建，等待创建完成，任务结束或超时时返回null
+     */
+    public BroadcastRing awaitBroadcastRing(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        BroadcastRing broadcastRing;
+        while ((broadcastRing = getBroadcastRing()) == null && !Boolean.TRUE.equals(terminated) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        return broadcastRing;
+    }
+
     protected MediaProxyTask(String videoId, URI sourceUrl) {
         this.videoId = videoId;
         this.sourceUrl = sourceUrl;
@@ -135,6 +136,11 @@ public abstract class MediaProxyTask implements Runnable, Serializable {
             log.error(getVideoId() + "代理任务异常退出", e);
         } finally {
             terminated = true;
+            synchronized (keyFrameLock) {
+                if (keyFrameGrabber != null) {
+                    keyFrameGrabber.close();
+                }
+            }
             afterTerminate();
             MediaProxyManager.removeProxy(this);
             log.info(getVideoId() + "代理任务终止@" + runThread.getName());
@@ -22,31 +22,37 @@ import lombok.extern.slf4j.Slf4j;
 import org.dom4j.Document;
 import org.dom4j.DocumentHelper;
 import org.dom4j.Node;
+import org.springframework.beans.factory.annotation.Autowired;
 import site.alice.liveman.mediaproxy.MediaProxyManager;
+import site.alice.liveman.mediaproxy.broadcast.BroadcastRing;
+import site.alice.liveman.mediaproxy.broadcast.Mp4FragmentInspector;
+import site.alice.liveman.model.LiveManSetting;
 import site.alice.liveman.utils.HttpRequestUtil;
 
-import javax.websocket.Session;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.URI;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 
 @Slf4j
 public class Mp4DashMediaProxyTask extends MediaProxyTask {
-    private static final int                         MAX_RETRY_COUNT   = 20;
-    private              BlockingDeque<URI>          downloadDeque     = new LinkedBlockingDeque<>();
-    private              AtomicInteger               retryCount        = new AtomicInteger(0);
-    private transient    BlockingQueue<byte[]>       bufferCache       = new ArrayBlockingQueue<>(20);
-    private transient    List<BlockingQueue<byte[]>> bufferedQueueList = new CopyOnWriteArrayList<>();
-    private transient    byte[]                      m4sVideoHeader;
-    private transient    byte[]                      m4sAudioHeader;
-    private              long                        m4sVideoPosition;
-    private              long                        m4sAudioPosition;
-    private final        MediaProxyTask              downloadTask;
+    private static final int                MAX_RETRY_COUNT  = 20;
+    private static final int                RING_CAPACITY    = 64;
+    private              BlockingDeque<URI> downloadDeque    = new LinkedBlockingDeque<>();
+    private              AtomicInteger      retryCount       = new AtomicInteger(0);
+    private transient    BroadcastRing      fragmentRing;
+    private transient    byte[]             m4sVideoHeader;
+    private transient    byte[]             m4sAudioHeader;
+    private              long               m4sVideoPosition;
+    private              long               m4sAudioPosition;
+    private final        MediaProxyTask     downloadTask;
+    @Autowired
+    private              LiveManSetting     liveManSetting;
 
     public byte[] getM4sVideoHeader() {
         return m4sVideoHeader;
@@ -70,14 +76,7 @@ public class Mp4DashMediaProxyTask extends MediaProxyTask {
                         URI mediaUrl = downloadDeque.poll(1000, TimeUnit.MILLISECONDS);
                         if (mediaUrl != null) {
                             byte[] message = HttpRequestUtil.downloadUrl(mediaUrl);
-                            while (!bufferCache.offer(message)) {
-                                bufferCache.poll();
-                            }
-                            for (BlockingQueue<byte[]> bufferedQueue : bufferedQueueList) {
-                                while (!bufferedQueue.offer(message)) {
-                                    bufferedQueue.poll();
-                                }
-                            }
+                            fragmentRing.append(message, Mp4FragmentInspector.isSyncFragment(message));
                             try {
                                 fos.write(message);
                             } catch (IOException e) {
@@ -103,6 +102,9 @@ public class Mp4DashMediaProxyTask extends MediaProxyTask {
     @Override
     protected void afterTerminate() {
         downloadTask.waitForTerminate();
+        if (fragmentRing != null) {
+            fragmentRing.close();
+        }
     }
 
     @Override
@@ -112,9 +114,12 @@ public class Mp4DashMediaProxyTask extends MediaProxyTask {
 
     @Override
     protected void runTask() throws Exception {
+        fragmentRing = new BroadcastRing(RING_CAPACITY, liveManSetting.getSegmentBufferSize() * 1024L * 1024L);
         MediaProxyManager.runProxy(downloadTask);
         while (!getTerminated() && retryCount.get() < MAX_RETRY_COUNT) {
             try {
+                // 两个初始化分片都设置到缓冲区头部后再下载媒体分片，保证读取者先收到完整的头部
+                List<URI> mediaUrls = new ArrayList<>();
                 String mpdXml = HttpRequestUtil.downloadUrl(getSourceUrl(), StandardCharsets.UTF_8);
                 Document mpdDoc = DocumentHelper.parseText(mpdXml);
                 Node videoAdaptationSet = mpdDoc.selectSingleNode("//AdaptationSet[@mimeType='video/mp4']");
@@ -134,7 +139,7 @@ public class Mp4DashMediaProxyTask extends MediaProxyTask {
                         long d = Long.parseLong((String) ds);
                         if (d + start > m4sVideoPosition) {
                             m4sVideoPosition = d + start;
-                            downloadDeque.offer(getSourceUrl().resolve(mediaTemplate.replace("$RepresentationID$", representationID).replace("$Time$", String.valueOf(m4sVideoPosition))));
+                            mediaUrls.add(getSourceUrl().resolve(mediaTemplate.replace("$RepresentationID$", representationID).replace("$Time$", String.valueOf(m4sVideoPosition))));
                         }
                     }
                 }
@@ -155,22 +160,32 @@ public class Mp4DashMediaProxyTask extends MediaProxyTask {
                         long d = Long.parseLong((String) ds);
                         if (d + start > m4sAudioPosition) {
                             m4sAudioPosition = d + start;
-                            downloadDeque.offer(getSourceUrl().resolve(mediaTemplate.replace("$RepresentationID$", representationID).replace("$Time$", String.valueOf(m4sAudioPosition))));
+                            mediaUrls.add(getSourceUrl().resolve(mediaTemplate.replace("$RepresentationID$", representationID).replace("$Time$", String.valueOf(m4sAudioPosition))));
                         }
                     }
                 }
+                if (m4sVideoHeader != null && m4sAudioHeader != null && fragmentRing.getHeader().length != m4sVideoHeader.length + m4sAudioHeader.length) {
+                    fragmentRing.setHeader(concat(m4sVideoHeader, m4sAudioHeader));
+                }
+                downloadDeque.addAll(mediaUrls);
             } catch (Exception e) {
                 log.error(getVideoId() + "出错重试(" + retryCount.incrementAndGet() + "/" + MAX_RETRY_COUNT + ")次", e);
             }
         }
     }
 
-    public void addBufferedQueue(BlockingQueue<byte[]> bufferedQueue) {
-        bufferedQueue.addAll(bufferCache);
-        bufferedQueueList.add(bufferedQueue);
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] result = new byte[first.length + second.length];
+        System.arraycopy(first, 0, result, 0, first.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
     }
 
-    public void removeBufferedQueue(BlockingQueue<byte[]> bufferedQueue) {
-        bufferedQueueList.remove(bufferedQueue);
+    /**
+     * @return 按下载顺序保存音视频分片的共享缓冲区，头部为音视频的初始化分片，任务启动前为null
+     */
+    @Override
+    public BroadcastRing getBroadcastRing() {
+        return fragmentRing;
     }
 }
@@ -19,7 +19,11 @@ package site.alice.liveman.mediaproxy.proxytask;
 
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.io.IOUtils;
+import org.springframework.beans.factory.annotation.Autowired;
 import site.alice.liveman.mediaproxy.MediaProxyManager;
+import site.alice.liveman.mediaproxy.broadcast.BroadcastRing;
+import site.alice.liveman.mediaproxy.broadcast.Mp4FragmentInspector;
+import site.alice.liveman.model.LiveManSetting;
 
 import javax.websocket.*;
 import java.io.File;
@@ -31,21 +35,20 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicInteger;
 
 @Slf4j
 public class TwitcastingMediaProxyTask extends MediaProxyTask {
 
-    private static final int                         MAX_RETRY_COUNT   = 20;
-    private volatile     long                        LAST_RECV_TIME    = System.currentTimeMillis();
-    private              AtomicInteger               retryCount        = new AtomicInteger(0);
-    private transient    Session                     session           = null;
-    private transient    BlockingQueue<byte[]>       bufferCache       = new ArrayBlockingQueue<>(20);
-    private transient    List<BlockingQueue<byte[]>> bufferedQueueList = new CopyOnWriteArrayList<>();
-    private transient    byte[]                      m4sHeader;
+    private static final int            MAX_RETRY_COUNT = 20;
+    private static final int            RING_CAPACITY   = 64;
+    private volatile     long           LAST_RECV_TIME  = System.currentTimeMillis();
+    private              AtomicInteger  retryCount      = new AtomicInteger(0);
+    private transient    Session        session         = null;
+    private transient    BroadcastRing  fragmentRing;
+    private transient    byte[]         m4sHeader;
+    @Autowired
+    private              LiveManSetting liveManSetting;
 
     public byte[] getM4sHeader() {
         return m4sHeader;
@@ -57,7 +60,7 @@ public class TwitcastingMediaProxyTask extends MediaProxyTask {
 
     @Override
     protected void runTask() {
-
+        fragmentRing = new BroadcastRing(RING_CAPACITY, liveManSetting.getSegmentBufferSize() * 1024L * 1024L);
         File m4sPath = new File(getTempPath());
         m4sPath.mkdirs();
         File mp4File = new File(getTempPath() + "/index.mp4");
@@ -100,15 +103,9 @@ public class TwitcastingMediaProxyTask extends MediaProxyTask {
                             }
                             if (m4sHeader == null) {
                                 m4sHeader = message;
+                                fragmentRing.setHeader(message);
                             } else {
-                                while (!bufferCache.offer(message)) {
-                                    bufferCache.poll();
-                                }
-                                for (BlockingQueue<byte[]> bufferedQueue : bufferedQueueList) {
-                                    while (!bufferedQueue.offer(message)) {
-                                        bufferedQueue.poll();
-                                    }
-                                }
+                                fragmentRing.append(message, Mp4FragmentInspector.isSyncFragment(message));
                             }
                             try {
                                 fos.write(message);
@@ -135,18 +132,20 @@ public class TwitcastingMediaProxyTask extends MediaProxyTask {
         return null;
     }
 
-    public void addBufferedQueue(BlockingQueue<byte[]> bufferedQueue) {
-        bufferedQueue.addAll(bufferCache);
-        bufferedQueueList.add(bufferedQueue);
-    }
-
-    public void removeBufferedQueue(BlockingQueue<byte[]> bufferedQueue) {
-        bufferedQueueList.remove(bufferedQueue);
+    /**
+     * @return WebSocket收到的fMP4分片的共享缓冲区，头部为第一条初始化消息，任务启动前为null
+     */
+    @Override
+    public BroadcastRing getBroadcastRing() {
+        return fragmentRing;
     }
 
     @Override
     protected void afterTerminate() {
         IOUtils.closeQuietly(session);
+        if (fragmentRing != null) {
+            fragmentRing.close();
+        }
     }
 
     @Override
@@ -0,0 +1,70 @@
+/*
+ * <Alice LiveMan>
+ * Copyright (C) <2018>  <NekoSunflower>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package site.alice.liveman.mediaproxy.segment;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * HLS AES-128分片的流式解密，每个线程复用一个Cipher实例
+ */
+public class AesSegmentDecryptor {
+    private static final ThreadLocal<CachedCipher> CIPHER_CACHE = new ThreadLocal<>();
+
+    public static InputStream decrypt(InputStream is, byte[] key, byte[] iv) throws GeneralSecurityException {
+        return new CipherInputStream(is, getCipher(key, iv));
+    }
+
+    /**
+     * EXT-X-KEY没有IV属性时，使用媒体序列号的128位大端表示作为IV(RFC 8216 5.2)
+     */
+    public static byte[] sequenceIV(long sequence) {
+        return ByteBuffer.allocate(16).putLong(8, sequence).array();
+    }
+
+    private static Cipher getCipher(byte[] key, byte[] iv) throws GeneralSecurityException {
+        CachedCipher cachedCipher = CIPHER_CACHE.get();
+        if (cachedCipher == null) {
+            cachedCipher = new CachedCipher(Cipher.getInstance("AES/CBC/PKCS5Padding"));
+            CIPHER_CACHE.set(cachedCipher);
+        }
+        if (!Arrays.equals(cachedCipher.key, key)) {
+            cachedCipher.key = key.clone();
+            cachedCipher.keySpec = new SecretKeySpec(key, "AES");
+        }
+        // 每个分片都需要重新初始化CBC状态，上一个分片可能没有完整读取
+        cachedCipher.cipher.init(Cipher.DECRYPT_MODE, cachedCipher.keySpec, new IvParameterSpec(iv));
+        return cachedCipher.cipher;
+    }
+
+    private static class CachedCipher {
+        private final Cipher        cipher;
+        private       byte[]        key;
+        private       SecretKeySpec keySpec;
+
+        private CachedCipher(Cipher cipher) {
+            this.cipher = cipher;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * <Alice LiveMan>
+ * Copyright (C) <2018>  <NekoSunflower>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package site.alice.liveman.mediaproxy.segment;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 固定桶边界的耗时直方图(毫秒)，用于统计分片下载及入队延迟
+ */
+public class LatencyHistogram {
+    private static final long[]          BUCKET_BOUNDS = {50, 100, 200, 500, 1000, 2000, 5000, 10000};
+    private final        AtomicLongArray buckets       = new AtomicLongArray(BUCKET_BOUNDS.length + 1);
+    private final        AtomicLong      count         = new AtomicLong();
+    private final        AtomicLong      totalMillis   = new AtomicLong();
+    private final        AtomicLong      maxMillis     = new AtomicLong();
+
+    public void record(long millis) {
+        int i = 0;
+        while (i < BUCKET_BOUNDS.length && millis > BUCKET_BOUNDS[i]) {
+            i++;
+        }
+        buckets.incrementAndGet(i);
+        count.incrementAndGet();
+        totalMillis.addAndGet(millis);
+        long max;
+        while ((max = maxMillis.get()) < millis && !maxMillis.compareAndSet(max, millis)) {
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMeanMillis() {
+        long n = count.get();
+        return n > 0 ? totalMillis.get() / n : 0;
+    }
+
+    public long getMaxMillis() {
+        return maxMillis.get();
+    }
+
+    /**
+     * @return 指定百分位所在桶的上边界，落在最后一个桶时返回记录到的最大值
+     */
+    public long getPercentileMillis(double percentile) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(n * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+            seen += buckets.get(i);
+            if (seen >= target) {
+                return BUCKET_BOUNDS[i];
+            }
+        }
+        return maxMillis.get();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("count=").append(getCount())
+                .append(", mean=").append(getMeanMillis()).append("ms")
+                .append(", p50<=").append(getPercentileMillis(50)).append("ms")
+                .append(", p90<=").append(getPercentileMillis(90)).append("ms")
+                .append(", p99<=").append(getPercentileMillis(99)).append("ms")
+                .append(", max=").append(getMaxMillis()).append("ms, buckets=[");
+        for (int i = 0; i <= BUCKET_BOUNDS.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(i < BUCKET_BOUNDS.length ? "<=" + BUCKET_BOUNDS[i] : ">" + BUCKET_BOUNDS[BUCKET_BOUNDS.length - 1]).append(":").append(buckets.get(i));
+        }
+        return sb.append("]").toString();
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * <Alice LiveMan>
+ * Copyright (C) <2018>  <NekoSunflower>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package site.alice.liveman.mediaproxy.segment;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.lang.StringUtils;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 增量解析源m3u8播放列表，只为新出现的媒体分片创建对象，并根据EXT-X-TARGETDURATION计算下次刷新的时间。
+ * 解析完头部标签后直接定位到上次最后一个分片之后继续解析，已经读取过的部分不再逐行解析
+ */
+public class M3u8PlaylistTracker {
+    private static final long           DEFAULT_RELOAD_MILLIS = 500;
+    private static final long           MIN_RELOAD_MILLIS     = 200;
+    private static final String         EXTINF                = "#EXTINF:";
+    private static final String         MEDIA_SEQUENCE        = "#EXT-X-MEDIA-SEQUENCE:";
+    private static final String         TARGET_DURATION       = "#EXT-X-TARGETDURATION:";
+    private static final String         SERVER_CONTROL        = "#EXT-X-SERVER-CONTROL:";
+    private static final String         DISCONTINUITY         = "#EXT-X-DISCONTINUITY";
+    private static final String         ENDLIST               = "#EXT-X-ENDLIST";
+    private static final String         KEY                   = "#EXT-X-KEY:";
+    private static final int            SEEN_WINDOW_SIZE      = 1024;
+    private static final int            MIN_RESET_GAP         = 10;
+    private final        SequenceWindow seenWindow            = new SequenceWindow(SEEN_WINDOW_SIZE);
+    private              double         targetDuration;
+    private              boolean        canBlockReload;
+    private              boolean        blockReloadFailed;
+    private              boolean        endList;
+    private              boolean        encrypted;
+    private              byte[]         keyIV;
+    private              int            playlistSize;
+    private              long           playlistLastSequence;
+    private              String         lastSegmentUri;
+    private              long           lastSegmentSequence   = -1;
+    private              boolean        lastSegmentEncrypted;
+    private              byte[]         lastSegmentKeyIV;
+
+    /**
+     * @return 本次播放列表中之前没有出现过的分片，源的媒体序列号被重置时返回重置后的全部分片
+     */
+    public List<SegmentEntry> update(String playlist) {
+        long lastSequence = seenWindow.getHighest();
+        List<SegmentEntry> entries = parse(playlist, true);
+        if (lastSequence >= 0 && playlistLastSequence + Math.max(playlistSize, MIN_RESET_GAP) < lastSequence) {
+            // 播放列表中最新的分片远早于已读取的分片，说明源重新开始了序列编号
+            seenWindow.clear();
+            entries = parse(playlist, false);
+            if (!entries.isEmpty()) {
+                SegmentEntry first = entries.get(0);
+                entries.set(0, new SegmentEntry(first.getSequence(), first.getUri(), first.getDuration(), true, first.getEncodeIV()));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * @param skipKnown 是否跳过上次已经读取到的分片
+     */
+    private List<SegmentEntry> parse(String playlist, boolean skipKnown) {
+        List<SegmentEntry> entries = new ArrayList<>();
+        long mediaSequence = 0;
+        int segmentIndex = 0;
+        double duration = 0;
+        boolean discontinuity = false;
+        boolean blockReload = false;
+        endList = false;
+        encrypted = false;
+        keyIV = null;
+        int length = playlist.length();
+        int pos = 0;
+        while (pos < length) {
+            int end = playlist.indexOf('\n', pos);
+            if (end < 0) {
+                end = length;
+            }
+            int lineEnd = end;
+            while (lineEnd > pos && Character.isWhitespace(playlist.charAt(lineEnd - 1))) {
+                lineEnd--;
+            }
+            if (lineEnd > pos) {
+                if (playlist.charAt(pos) == '#') {
+                    if (playlist.startsWith(EXTINF, pos)) {
+                        int comma = playlist.indexOf(',', pos);
+                        duration = parseDouble(playlist.substring(pos + EXTINF.length(), comma < 0 || comma > lineEnd ? lineEnd : comma));
+                    } else if (playlist.startsWith(MEDIA_SEQUENCE, pos)) {
+                        mediaSequence = Long.parseLong(playlist.substring(pos + MEDIA_SEQUENCE.length(), lineEnd).trim());
+                    } else if (playlist.startsWith(TARGET_DURATION, pos)) {
+                        targetDuration = parseDouble(playlist.substring(pos + TARGET_DURATION.length(), lineEnd));
+                    } else if (playlist.startsWith(SERVER_CONTROL, pos)) {
+                        blockReload = playlist.substring(pos, lineEnd).contains("CAN-BLOCK-RELOAD=YES");
+                    } else if (lineEnd - pos == DISCONTINUITY.length() && playlist.startsWith(DISCONTINUITY, pos)) {
+                        discontinuity = true;
+                    } else if (playlist.startsWith(ENDLIST, pos)) {
+                        endList = true;
+                    } else if (playlist.startsWith(KEY, pos)) {
+                        updateKey(playlist.substring(pos + KEY.length(), lineEnd));
+                    }
+                } else if (!StringUtils.isBlank(playlist.substring(pos, lineEnd))) {
+                    if (skipKnown && segmentIndex == 0) {
+                        skipKnown = false;
+                        int knownEnd = findKnownEnd(playlist, pos, mediaSequence);
+                        if (knownEnd >= 0) {
+                            // 上次最后一个分片之前的分片都已读取，加密状态沿用上次解析到该分片时的状态
+                            segmentIndex = (int) (lastSegmentSequence - mediaSequence + 1);
+                            encrypted = lastSegmentEncrypted;
+                            keyIV = lastSegmentKeyIV;
+                            duration = 0;
+                            discontinuity = false;
+                            pos = knownEnd;
+                            continue;
+                        }
+                    }
+                    String uri = playlist.substring(pos, lineEnd).trim();
+                    long sequence = mediaSequence + segmentIndex++;
+                    if (seenWindow.add(sequence)) {
+                        byte[] encodeIV = encrypted ? (keyIV != null ? keyIV : AesSegmentDecryptor.sequenceIV(sequence)) : null;
+                        entries.add(new SegmentEntry(sequence, uri, duration, discontinuity, encodeIV));
+                    }
+                    lastSegmentUri = uri;
+                    lastSegmentSequence = sequence;
+                    lastSegmentEncrypted = encrypted;
+                    lastSegmentKeyIV = keyIV;
+                    duration = 0;
+                    discontinuity = false;
+                }
+            }
+            pos = end + 1;
+        }
+        canBlockReload = blockReload;
+        playlistSize = segmentIndex;
+        playlistLastSequence = mediaSequence + segmentIndex - 1;
+        return entries;
+    }
+
+    /**
+     * @param pos 第一个分片所在行的位置
+     * @return 上次最后一个分片仍在本次播放列表中时返回该分片下一行的位置，否则返回-1
+     */
+    private int findKnownEnd(String playlist, int pos, long mediaSequence) {
+        if (lastSegmentUri == null || mediaSequence > lastSegmentSequence || lastSegmentSequence - mediaSequence >= Integer.MAX_VALUE) {
+            return -1;
+        }
+        int index = playlist.indexOf(lastSegmentUri, pos);
+        while (index >= 0) {
+            int end = index + lastSegmentUri.length();
+            // 必须是完整的一行，不能只是其他分片地址的一部分
+            if (index > 0 && playlist.charAt(index - 1) == '\n' && (end == playlist.length() || playlist.charAt(end) == '\n' || playlist.charAt(end) == '\r')) {
+                int lineEnd = playlist.indexOf('\n', end);
+                return lineEnd < 0 ? playlist.length() : lineEnd + 1;
+            }
+            index = playlist.indexOf(lastSegmentUri, end);
+        }
+        return -1;
+    }
+
+    /**
+     * 播放列表有变化时等待一个目标时长，没有变化时等待半个目标时长，源支持阻塞刷新时立即发起下一次请求
+     */
+    public long getReloadDelayMillis(boolean changed, long elapsedMillis) {
+        if (isBlockReload()) {
+            return 0;
+        }
+        if (targetDuration <= 0) {
+            return Math.max(DEFAULT_RELOAD_MILLIS - elapsedMillis, 0);
+        }
+        long delay = (long) (targetDuration * (changed ? 1000 : 500));
+        return Math.max(delay - elapsedMillis, MIN_RELOAD_MILLIS);
+    }
+
+    /**
+     * @return 源支持LL-HLS阻塞刷新时附带_HLS_msn参数的地址，否则返回原地址
+     */
+    public URI getReloadUri(URI sourceUrl) {
+        if (!isBlockReload()) {
+            return sourceUrl;
+        }
+        String url = sourceUrl.toString();
+        int fragment = url.indexOf('#');
+        if (fragment >= 0) {
+            url = url.substring(0, fragment);
+        }
+        return URI.create(url + (sourceUrl.getRawQuery() == null ? "?" : "&") + "_HLS_msn=" + (seenWindow.getHighest() + 1));
+    }
+
+    /**
+     * @return 阻塞刷新请求在服务端最长可能挂起的时间(毫秒)
+     */
+    public int getReloadTimeoutMillis() {
+        return isBlockReload() ? (int) Math.max(targetDuration * 3000, 5000) + 2000 : 5000;
+    }
+
+    public void onReloadFailed() {
+        if (isBlockReload()) {
+            blockReloadFailed = true;
+        }
+    }
+
+    public boolean isBlockReload() {
+        return canBlockReload && !blockReloadFailed && seenWindow.getHighest() >= 0;
+    }
+
+    public long getLastSequence() {
+        return seenWindow.getHighest();
+    }
+
+    public double getTargetDuration() {
+        return targetDuration;
+    }
+
+    public boolean isEndList() {
+        return endList;
+    }
+
+    private void updateKey(String attributes) {
+        encrypted = false;
+        keyIV = null;
+        for (String attribute : attributes.split(",")) {
+            int split = attribute.indexOf('=');
+            if (split < 0) {
+                continue;
+            }
+            String name = attribute.substring(0, split).trim();
+            String value = attribute.substring(split + 1).trim();
+            if (name.equals("METHOD")) {
+                encrypted = !value.equals("NONE");
+            } else if (name.equals("IV") && value.length() > 2) {
+                try {
+                    keyIV = Hex.decodeHex(value.substring(2).toCharArray());
+                } catch (DecoderException ignore) {
+                }
+            }
+        }
+    }
+
+    private static double parseDouble(String value) {
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    public static class SegmentEntry {
+        private final long    sequence;
+        private final String  uri;
+        private final double  duration;
+        private final boolean discontinuity;
+        private final byte[]  encodeIV;
+
+        public SegmentEntry(long sequence, String uri, double duration, boolean discontinuity, byte[] encodeIV) {
+            this.sequence = sequence;
+            this.uri = uri;
+            this.duration = duration;
+            this.discontinuity = discontinuity;
+            this.encodeIV = encodeIV;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public String getUri() {
+            return uri;
+        }
+
+        public double getDuration() {
+            return duration;
+        }
+
+        public boolean isDiscontinuity() {
+            return discontinuity;
+        }
+
+        /**
+         * @return 该分片使用的解密IV，播放列表未加密时为null
+         */
+        public byte[] getEncodeIV() {
+            return encodeIV;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * <Alice LiveMan>
+ * Copyright (C) <2018>  <NekoSunflower>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package site.alice.liveman.mediaproxy.segment;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class MediaSegment {
+    private static final int           WRITE_CHUNK_SIZE = 64 * 1024;
+    private final        ByteBuffer    data;
+    private final        AtomicInteger refCount         = new AtomicInteger(1);
+    private              long          sequence;
+    private              double        duration;
+    private              boolean       discontinuity;
+    private              long          discontinuitySequence;
+
+    public MediaSegment(long sequence, ByteBuffer data) {
+        this.sequence = sequence;
+        this.data = data;
+    }
+
+    /**
+     * @param direct 为true时将媒体数据复制到堆外内存中，避免大量分片数据占用Java堆
+     */
+    public static MediaSegment wrap(long sequence, byte[] data, boolean direct) {
+        ByteBuffer buffer;
+        if (direct) {
+            buffer = ByteBuffer.allocateDirect(data.length);
+            buffer.put(data);
+            buffer.flip();
+        } else {
+            buffer = ByteBuffer.wrap(data);
+        }
+        return new MediaSegment(sequence, buffer);
+    }
+
+    /**
+     * 直接从输入流读取分片数据，contentLength已知时只分配一次缓冲区
+     *
+     * @param contentLength 预期的数据长度，未知时为负数
+     */
+    public static MediaSegment read(long sequence, InputStream is, long contentLength, boolean direct) throws IOException {
+        ByteBuffer buffer = allocate(contentLength > 0 ? (int) contentLength : 1024 * 1024, direct);
+        ReadableByteChannel channel = Channels.newChannel(is);
+        while (true) {
+            if (!buffer.hasRemaining()) {
+                // 缓冲区已满时先探测是否已到达流末尾，避免长度恰好相等时多复制一次
+                int next = is.read();
+                if (next < 0) {
+                    break;
+                }
+                ByteBuffer grownBuffer = allocate(buffer.capacity() * 2, direct);
+                buffer.flip();
+                grownBuffer.put(buffer);
+                grownBuffer.put((byte) next);
+                buffer = grownBuffer;
+            }
+            if (channel.read(buffer) < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        return new MediaSegment(sequence, buffer);
+    }
+
+    private static ByteBuffer allocate(int capacity, boolean direct) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * 下载时使用源的媒体序列号，加入缓冲区前会被替换为本地连续的序列号
+     */
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    public int size() {
+        return data.remaining();
+    }
+
+    public double getDuration() {
+        return duration;
+    }
+
+    public void setDuration(double duration) {
+        this.duration = duration;
+    }
+
+    public boolean isDiscontinuity() {
+        return discontinuity;
+    }
+
+    public void setDiscontinuity(boolean discontinuity) {
+        this.discontinuity = discontinuity;
+    }
+
+    /**
+     * @return 该分片所在的不连续序列号，即之前出现过的EXT-X-DISCONTINUITY数量
+     */
+    public long getDiscontinuitySequence() {
+        return discontinuitySequence;
+    }
+
+    public void setDiscontinuitySequence(long discontinuitySequence) {
+        this.discontinuitySequence = discontinuitySequence;
+    }
+
+    /**
+     * 读取分片数据前调用，与release成对使用
+     *
+     * @return 分片已被释放时返回false，此时不能再读取数据
+     */
+    public boolean retain() {
+        while (true) {
+            int count = refCount.get();
+            if (count <= 0) {
+                return false;
+            }
+            if (refCount.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 引用计数归零时立即释放堆外内存，不必等待GC回收
+     */
+    public void release() {
+        if (refCount.decrementAndGet() == 0 && data.isDirect()) {
+            try {
+                Method cleanerMethod = data.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(data);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            } catch (Exception ignore) {
+                // 无法访问Cleaner时交给GC回收
+            }
+        }
+    }
+
+    public void writeTo(OutputStream os) throws IOException {
+        ByteBuffer buffer = data.duplicate();
+        if (buffer.hasArray()) {
+            os.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        } else {
+            byte[] chunk = new byte[Math.min(WRITE_CHUNK_SIZE, buffer.remaining())];
+            while (buffer.hasRemaining()) {
+                int length = Math.min(chunk.length, buffer.remaining());
+                buffer.get(chunk, 0, length);
+                os.write(chunk, 0, length);
+            }
+        }
+    }
+}
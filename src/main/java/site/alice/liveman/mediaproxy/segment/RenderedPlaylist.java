@@ -0,0 +1,42 @@
+/*
+ * <Alice LiveMan>
+ * Copyright (C) <2018>  <NekoSunflower>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package site.alice.liveman.mediaproxy.segment;
+
+/**
+ * 预先渲染好的本地m3u8播放列表，只在缓冲区加入新分片时重新生成
+ */
+public class RenderedPlaylist {
+    private final byte[] content;
+    private final String eTag;
+
+    public RenderedPlaylist(byte[] content, String eTag) {
+        this.content = content;
+        this.eTag = eTag;
+    }
+
+    public byte[] getContent() {
+        return content;
+    }
+
+    /**
+     * @return 带双引号的强校验ETag，播放列表内容变化时一定会改变
+     */
+    public String getETag() {
+        return eTag;
+    }
+}
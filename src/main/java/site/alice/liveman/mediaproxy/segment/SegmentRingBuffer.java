@@ -0,0 +1,135 @@
+/*
+ * <Alice LiveMan>
+ * Copyright (C) <2018>  <NekoSunflower>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package site.alice.liveman.mediaproxy.segment;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * 按连续媒体序列号保存的定长分片环形缓冲区，同时受分片数量和总字节数限制，超出时淘汰最旧的分片。
+ * 写入和清空互斥，读取不加锁，分片位置由序列号直接计算。清空后缓冲区关闭，之后追加的分片直接释放。
+ */
+public class SegmentRingBuffer {
+    private final    AtomicReferenceArray<MediaSegment> segments;
+    private final    long                               maxBytes;
+    private final    Consumer<MediaSegment>             evictionListener;
+    private volatile long                               firstSequence = 0;
+    private volatile long                               lastSequence  = -1;
+    private final    AtomicLong                         totalBytes    = new AtomicLong();
+    private          boolean                            closed;
+
+    /**
+     * @param evictionListener 分片被淘汰后的回调，用于立即释放分片占用的资源，可以为null
+     */
+    public SegmentRingBuffer(int capacity, long maxBytes, Consumer<MediaSegment> evictionListener) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("分片缓冲区容量必须大于0[capacity=" + capacity + "]");
+        }
+        this.segments = new AtomicReferenceArray<>(capacity);
+        this.maxBytes = maxBytes;
+        this.evictionListener = evictionListener;
+    }
+
+    /**
+     * 追加分片，分片的序列号必须紧接在上一个分片之后
+     */
+    public synchronized void offer(MediaSegment segment) {
+        if (closed) {
+            if (evictionListener != null) {
+                evictionListener.accept(segment);
+            }
+            return;
+        }
+        long sequence = segment.getSequence();
+        if (!isEmpty() && sequence != lastSequence + 1) {
+            throw new IllegalArgumentException("分片序列号不连续[上一分片seq=" + lastSequence + ", 当前分片seq=" + sequence + "]");
+        }
+        while (size() == segments.length() || (!isEmpty() && totalBytes.get() + segment.size() > maxBytes)) {
+            evictOldest();
+        }
+        if (isEmpty()) {
+            firstSequence = sequence;
+        }
+        segments.set(indexOf(sequence), segment);
+        totalBytes.addAndGet(segment.size());
+        lastSequence = sequence;
+    }
+
+    public MediaSegment get(long sequence) {
+        if (sequence < firstSequence || sequence > lastSequence) {
+            return null;
+        }
+        MediaSegment segment = segments.get(indexOf(sequence));
+        // 读取期间该位置可能已被新的分片覆盖
+        return segment != null && segment.getSequence() == sequence ? segment : null;
+    }
+
+    public List<MediaSegment> snapshot() {
+        long first = firstSequence;
+        long last = lastSequence;
+        List<MediaSegment> segmentList = new ArrayList<>((int) Math.max(last - first + 1, 0));
+        for (long sequence = first; sequence <= last; sequence++) {
+            MediaSegment segment = get(sequence);
+            if (segment != null) {
+                segmentList.add(segment);
+            }
+        }
+        return segmentList;
+    }
+
+    /**
+     * 淘汰全部分片并关闭缓冲区，缓冲区不再使用时调用
+     */
+    public synchronized void clear() {
+        closed = true;
+        while (!isEmpty()) {
+            evictOldest();
+        }
+    }
+
+    public boolean isEmpty() {
+        return lastSequence < firstSequence;
+    }
+
+    public int size() {
+        return (int) Math.max(lastSequence - firstSequence + 1, 0);
+    }
+
+    public long getTotalBytes() {
+        return totalBytes.get();
+    }
+
+    private int indexOf(long sequence) {
+        return (int) (sequence % segments.length());
+    }
+
+    private void evictOldest() {
+        long sequence = firstSequence;
+        firstSequence = sequence + 1;
+        MediaSegment segment = segments.getAndSet(indexOf(sequence), null);
+        if (segment != null) {
+            totalBytes.addAndGet(-segment.size());
+            if (evictionListener != null) {
+                evictionListener.accept(segment);
+            }
+        }
+    }
+}
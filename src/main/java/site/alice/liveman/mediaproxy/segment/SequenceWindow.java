@@ -0,0 +1,91 @@
+/*
+ * <Alice LiveMan>
+ * Copyright (C) <2018>  <NekoSunflower>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package site.alice.liveman.mediaproxy.segment;
+
+import java.util.Arrays;
+
+/**
+ * 用位图记录最近一段范围内出现过的媒体序列号，判重和窗口滑动都不需要遍历队列
+ */
+public class SequenceWindow {
+    private final long[] words;
+    private final int    mask;
+    private       long   highest = -1;
+
+    /**
+     * @param size 窗口能记录的序列号数量，会向上取整为2的幂
+     */
+    public SequenceWindow(int size) {
+        int bits = Integer.highestOneBit(Math.max(size, Long.SIZE) - 1) << 1;
+        this.words = new long[bits / Long.SIZE];
+        this.mask = bits - 1;
+    }
+
+    /**
+     * @return 序列号第一次出现时返回true，已出现过或早于窗口范围时返回false
+     */
+    public boolean add(long sequence) {
+        if (sequence < 0) {
+            return false;
+        }
+        if (sequence > highest) {
+            if (highest < 0 || sequence - highest > mask) {
+                Arrays.fill(words, 0);
+            } else {
+                for (long i = highest + 1; i < sequence; i++) {
+                    clearBit(i);
+                }
+            }
+            highest = sequence;
+            setBit(sequence);
+            return true;
+        }
+        if (highest - sequence > mask) {
+            return false;
+        }
+        int index = (int) (sequence & mask);
+        long bit = 1L << index;
+        if ((words[index >>> 6] & bit) != 0) {
+            return false;
+        }
+        words[index >>> 6] |= bit;
+        return true;
+    }
+
+    public void clear() {
+        Arrays.fill(words, 0);
+        highest = -1;
+    }
+
+    /**
+     * @return 窗口内出现过的最大序列号，没有记录时为-1
+     */
+    public long getHighest() {
+        return highest;
+    }
+
+    private void setBit(long sequence) {
+        int index = (int) (sequence & mask);
+        words[index >>> 6] |= 1L << index;
+    }
+
+    private void clearBit(long sequence) {
+        int index = (int) (sequence & mask);
+        words[index >>> 6] &= ~(1L << index);
+    }
+}
@@ -41,8 +41,21 @@ public class LiveManSetting {
     private CopyOnWriteArraySet<ExternalAppSecretDO> externalAppSecretDOS;
     private String                                   encodeKey;
     private String                                   apShopUrl;
-    private int[]                                    serverPoints = {0, 8, 30};
-    private Boolean                                  preReEncode  = false;
+    private int[]                                    serverPoints                = {0, 8, 30};
+    private Boolean                                  preReEncode                 = false;
+    private Boolean                                  preReEncodePipe             = true;
+    private int                                      segmentBufferCapacity       = 100;
+    private int                                      segmentBufferSize           = 64;
+    private Boolean                                  segmentBufferDirect         = false;
+    private int                                      segmentDownloadWindow       = 3;
+    private int                                      serverStandbyCount          = 0;
+    private int                                      serverForecastMinutes       = 0;
+    private Boolean                                  overlayRawStream            = false;
+    private String                                   textLocationBackend;
+    private String                                   imageSegmentBackend;
+    private int                                      textLocationCaptureInterval = 0;
+    private int                                      autoBlurSize                = 5;
+    private long                                     keyFrameMaxAge              = 15000;
     private Proxy                                    proxy;
 
     public String[] getBannedYoutubeChannel() {
@@ -149,6 +162,55 @@ public class LiveManSetting {
         this.preReEncode = preReEncode;
     }
 
+    /**
+     * @return 为true时每个节目使用一个常驻的ffmpeg进程做低帧率转码，否则每个分片单独启动一次ffmpeg
+     */
+    public Boolean getPreReEncodePipe() {
+        return preReEncodePipe;
+    }
+
+    public void setPreReEncodePipe(Boolean preReEncodePipe) {
+        this.preReEncodePipe = preReEncodePipe;
+    }
+
+    public int getSegmentBufferCapacity() {
+        return segmentBufferCapacity;
+    }
+
+    public void setSegmentBufferCapacity(int segmentBufferCapacity) {
+        this.segmentBufferCapacity = segmentBufferCapacity;
+    }
+
+    /**
+     * @return 每个媒体代理任务的分片缓冲区大小上限(MB)
+     */
+    public int getSegmentBufferSize() {
+        return segmentBufferSize;
+    }
+
+    public void setSegmentBufferSize(int segmentBufferSize) {
+        this.segmentBufferSize = segmentBufferSize;
+    }
+
+    public Boolean getSegmentBufferDirect() {
+        return segmentBufferDirect;
+    }
+
+    public void setSegmentBufferDirect(Boolean segmentBufferDirect) {
+        this.segmentBufferDirect = segmentBufferDirect;
+    }
+
+    /**
+     * @return 每个m3u8代理任务同时下载的分片数量
+     */
+    public int getSegmentDownloadWindow() {
+        return segmentDownloadWindow;
+    }
+
+    public void setSegmentDownloadWindow(int segmentDownloadWindow) {
+        this.segmentDownloadWindow = segmentDownloadWindow;
+    }
+
     public String getEncodeKey() {
         return encodeKey;
     }
@@ -225,4 +287,92 @@ public class LiveManSetting {
     public void setExternalAppSecretDOS(CopyOnWriteArraySet<ExternalAppSecretDO> externalAppSecretDOS) {
         this.externalAppSecretDOS = externalAppSecretDOS;
     }
+
+    /**
+     * @return 每个性能等级预留的空闲服务器数量，为0时只在没有空闲服务器时才动态扩容
+     */
+    public int getServerStandbyCount() {
+        return serverStandbyCount;
+    }
+
+    public void setServerStandbyCount(int serverStandbyCount) {
+        this.serverStandbyCount = serverStandbyCount;
+    }
+
+    /**
+     * @return 根据历史开播时间提前准备转播服务器的分钟数，为0时不做预测
+     */
+    public int getServerForecastMinutes() {
+        return serverForecastMinutes;
+    }
+
+    public void setServerForecastMinutes(int serverForecastMinutes) {
+        this.serverForecastMinutes = serverForecastMinutes;
+    }
+
+    /**
+     * @return 为true时自定义画面和模糊遮罩以RGBA原始帧的形式持续传输给ffmpeg，否则ffmpeg循环请求PNG图片
+     */
+    public Boolean getOverlayRawStream() {
+        return overlayRawStream;
+    }
+
+    public void setOverlayRawStream(Boolean overlayRawStream) {
+        this.overlayRawStream = overlayRawStream;
+    }
+
+    /**
+     * @return 文字定位使用的TextLocationService的Bean名称，为空时使用远程接口
+     */
+    public String getTextLocationBackend() {
+        return textLocationBackend;
+    }
+
+    public void setTextLocationBackend(String textLocationBackend) {
+        this.textLocationBackend = textLocationBackend;
+    }
+
+    /**
+     * @return 图像分割使用的ImageSegmentService的Bean名称，为空时使用远程接口
+     */
+    public String getImageSegmentBackend() {
+        return imageSegmentBackend;
+    }
+
+    public void setImageSegmentBackend(String imageSegmentBackend) {
+        this.imageSegmentBackend = imageSegmentBackend;
+    }
+
+    /**
+     * @return 保存评论区识别记录到./easydl/的最小间隔(秒)，为0时不保存
+     */
+    public int getTextLocationCaptureInterval() {
+        return textLocationCaptureInterval;
+    }
+
+    public void setTextLocationCaptureInterval(int textLocationCaptureInterval) {
+        this.textLocationCaptureInterval = textLocationCaptureInterval;
+    }
+
+    /**
+     * @return 自动打码识别到评论区后开启的模糊强度，只在节目没有设置模糊强度时生效，为0时不自动开启模糊
+     */
+    public int getAutoBlurSize() {
+        return autoBlurSize;
+    }
+
+    public void setAutoBlurSize(int autoBlurSize) {
+        this.autoBlurSize = autoBlurSize;
+    }
+
+    /**
+     * @return 识别和预览使用的关键帧可以接受的最长时间(毫秒)，缓存的关键帧超过该时间才会等待解码新的关键帧
+     */
+    public long getKeyFrameMaxAge() {
+        return keyFrameMaxAge;
+    }
+
+    public void setKeyFrameMaxAge(long keyFrameMaxAge) {
+        this.keyFrameMaxAge = keyFrameMaxAge;
+    }
 }
@@ -36,6 +36,8 @@ public class ServerInfo {
     private boolean                    available;
     @JSONField(serialize = false)
     private AtomicReference<VideoInfo> currentVideo = new AtomicReference<>();
+    @JSONField(serialize = false)
+    private ServerLoad                 load         = new ServerLoad();
 
     public Integer getPort() {
         return port;
@@ -105,6 +107,10 @@ public class ServerInfo {
         return this.currentVideo.compareAndSet(currentVideo, null) || this.currentVideo.compareAndSet(null, null);
     }
 
+    public ServerLoad getLoad() {
+        return load;
+    }
+
     public String getRemark() {
         return remark;
     }
@@ -0,0 +1,121 @@
+/*
+ * <Alice LiveMan>
+ * Copyright (C) <2018>  <NekoSunflower>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package site.alice.liveman.model;
+
+/**
+ * 转播服务器的实时负载模型，由后台探测任务和推流健康度共同更新
+ */
+public class ServerLoad {
+    private static final long   PROBE_EXPIRE_MILLIS = 60000;
+    private static final double HEALTH_WEIGHT       = 0.1;
+    private volatile     int    cpuCount            = 1;
+    private volatile     double loadAverage;
+    private volatile     int    ffmpegCount;
+    private volatile     double txBytesPerSecond;
+    private volatile     long   lastTxBytes         = -1;
+    private volatile     long   lastProbeTime;
+    private volatile     long   lastReachableTime;
+    private volatile     int    probeFailedCount;
+    private volatile     double pushHealth          = 100;
+
+    /**
+     * 记录一次成功的探测结果，网络发送速率由两次探测间的发送字节数差值计算
+     */
+    public synchronized void onProbe(int cpuCount, double loadAverage, int ffmpegCount, long txBytes) {
+        long now = System.currentTimeMillis();
+        if (lastTxBytes >= 0 && txBytes >= lastTxBytes && now > lastProbeTime) {
+            txBytesPerSecond = (txBytes - lastTxBytes) * 1000.0 / (now - lastProbeTime);
+        }
+        this.cpuCount = Math.max(cpuCount, 1);
+        this.loadAverage = loadAverage;
+        this.ffmpegCount = ffmpegCount;
+        lastTxBytes = txBytes;
+        lastProbeTime = now;
+        lastReachableTime = now;
+        probeFailedCount = 0;
+    }
+
+    public synchronized void onProbeFailed() {
+        lastProbeTime = System.currentTimeMillis();
+        lastTxBytes = -1;
+        probeFailedCount++;
+    }
+
+    /**
+     * 以指数滑动平均记录该服务器上推流的健康度
+     */
+    public void recordHealth(double health) {
+        pushHealth += (Math.min(health, 100) - pushHealth) * HEALTH_WEIGHT;
+    }
+
+    /**
+     * @return 尚未探测过或最近一次探测成功时视为可连接
+     */
+    public boolean isReachable() {
+        return probeFailedCount == 0;
+    }
+
+    public boolean isProbed() {
+        return lastReachableTime > 0 && System.currentTimeMillis() - lastReachableTime < PROBE_EXPIRE_MILLIS;
+    }
+
+    /**
+     * @return 负载评分，越小越空闲：CPU负载率 + 残留ffmpeg进程数 + 每100Mbps发送带宽计1分 + 历史推流健康度的缺失比例
+     */
+    public double getScore() {
+        double score = loadAverage / cpuCount + ffmpegCount + txBytesPerSecond * 8 / 100_000_000 + (100 - pushHealth) / 100;
+        // 长时间没有探测结果的服务器排在已探测的服务器之后
+        return isProbed() ? score : score + 1;
+    }
+
+    public int getCpuCount() {
+        return cpuCount;
+    }
+
+    public double getLoadAverage() {
+        return loadAverage;
+    }
+
+    public int getFfmpegCount() {
+        return ffmpegCount;
+    }
+
+    public double getTxBytesPerSecond() {
+        return txBytesPerSecond;
+    }
+
+    public long getLastProbeTime() {
+        return lastProbeTime;
+    }
+
+    public double getPushHealth() {
+        return pushHealth;
+    }
+
+    @Override
+    public String toString() {
+        return "ServerLoad{" +
+                "cpuCount=" + cpuCount +
+                ", loadAverage=" + loadAverage +
+                ", ffmpegCount=" + ffmpegCount +
+                ", txBytesPerSecond=" + (long) txBytesPerSecond +
+                ", pushHealth=" + (int) pushHealth +
+                ", reachable=" + isReachable() +
+                '}';
+    }
+}
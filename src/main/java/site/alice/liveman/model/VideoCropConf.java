@@ -21,14 +21,18 @@ package site.alice.liveman.model;
 import com.alibaba.fastjson.annotation.JSONField;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import site.alice.liveman.customlayout.CustomLayout;
+import site.alice.liveman.customlayout.LayoutCompositor;
 import site.alice.liveman.jenum.VideoBannedTypeEnum;
 import site.alice.liveman.jenum.VideoResolutionEnum;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.function.Consumer;
 
 public class VideoCropConf implements Serializable {
     private VideoBannedTypeEnum                videoBannedType = VideoBannedTypeEnum.NONE;
@@ -38,9 +42,11 @@ public class VideoCropConf implements Serializable {
     private CopyOnWriteArrayList<CustomLayout> layouts;
     private VideoResolutionEnum                broadcastResolution;
     @JsonIgnore
-    private byte[]                             cachedDrawBytes;
+    @JSONField(serialize = false)
+    private LayoutCompositor                   screenCompositor = new LayoutCompositor();
     @JsonIgnore
-    private byte[]                             cachedBlurBytes;
+    @JSONField(serialize = false)
+    private LayoutCompositor                   maskCompositor   = new LayoutCompositor();
 
     public VideoCropConf() {
         layouts = new CopyOnWriteArrayList<>();
@@ -66,24 +72,29 @@ public class VideoCropConf implements Serializable {
         return layouts;
     }
 
-    public void setLayouts(CopyOnWriteArrayList<CustomLayout> layouts) {
+    public synchronized void setLayouts(CopyOnWriteArrayList<CustomLayout> layouts) {
         this.layouts = layouts;
     }
 
-    public byte[] getCachedDrawBytes() {
-        return cachedDrawBytes;
-    }
-
-    public void setCachedDrawBytes(byte[] cachedDrawBytes) {
-        this.cachedDrawBytes = cachedDrawBytes;
+    /**
+     * 在当前渲染层的副本上修改后一次性替换，渲染时不会读到修改了一半的列表。
+     * 已经发布的渲染层都要通过这里修改，多个修改方之间不会互相覆盖
+     *
+     * @return 替换后的渲染层
+     */
+    public synchronized CopyOnWriteArrayList<CustomLayout> updateLayouts(Consumer<List<CustomLayout>> updater) {
+        List<CustomLayout> newLayouts = layouts != null ? new ArrayList<>(layouts) : new ArrayList<>();
+        updater.accept(newLayouts);
+        layouts = new CopyOnWriteArrayList<>(newLayouts);
+        return layouts;
     }
 
-    public byte[] getCachedBlurBytes() {
-        return cachedBlurBytes;
+    public LayoutCompositor getScreenCompositor() {
+        return screenCompositor;
     }
 
-    public void setCachedBlurBytes(byte[] cachedBlurBytes) {
-        this.cachedBlurBytes = cachedBlurBytes;
+    public LayoutCompositor getMaskCompositor() {
+        return maskCompositor;
     }
 
     public boolean isAutoBlur() {
@@ -20,12 +20,11 @@ package site.alice.liveman.model;
 import site.alice.liveman.customlayout.CustomLayout;
 import site.alice.liveman.jenum.VideoResolutionEnum;
 import site.alice.liveman.service.broadcast.BroadcastServiceManager.BroadcastTask;
-import site.alice.liveman.service.external.TextLocation;
+import site.alice.liveman.service.external.RegionTracker;
 
 import java.io.Serializable;
 import java.net.URI;
 import java.util.Arrays;
-import java.util.List;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.atomic.AtomicReference;
@@ -52,7 +51,7 @@ public class VideoInfo implements Serializable {
     private boolean                        vertical;
     private Double                         frameRate;
     private String                         resolution;
-    private List<TextLocation>             textLocations;
+    private RegionTracker                  regionTracker;
 
     public VideoInfo(ChannelInfo channelInfo, String videoId, String title, URI videoInfoUrl, URI mediaUrl, String mediaFormat) {
         this.channelInfo = channelInfo;
@@ -233,12 +232,12 @@ public class VideoInfo implements Serializable {
         this.vertical = vertical;
     }
 
-    public List<TextLocation> getTextLocations() {
-        return textLocations;
+    public RegionTracker getRegionTracker() {
+        return regionTracker;
     }
 
-    public void setTextLocations(List<TextLocation> textLocations) {
-        this.textLocations = textLocations;
+    public void setRegionTracker(RegionTracker regionTracker) {
+        this.regionTracker = regionTracker;
     }
 
     @Override
@@ -27,101 +27,210 @@ import site.alice.liveman.config.SettingConfig;
 import site.alice.liveman.jenum.ExternalServiceType;
 import site.alice.liveman.model.LiveManSetting;
 import site.alice.liveman.model.ServerInfo;
-import site.alice.liveman.model.VideoCropConf;
+import site.alice.liveman.model.ServerLoad;
 import site.alice.liveman.model.VideoInfo;
 import site.alice.liveman.service.external.DynamicServerService;
 import site.alice.liveman.utils.JschSshUtil;
-import site.alice.liveman.utils.ProcessUtil;
+import site.alice.liveman.utils.SshSessionPool;
+import site.alice.liveman.utils.ThreadPoolUtil;
 
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 @Service
 @Slf4j
 public class BroadcastServerService {
 
-    private static final String[]             STATIC_SYNC_FILES = new String[]{"/etc/resolv.conf", "/etc/hosts"};
+    private static final String[]                    STATIC_SYNC_FILES   = new String[]{"/etc/resolv.conf", "/etc/hosts"};
+    private static final int                         INSTALL_PARALLELISM = 4;
+    private static final String                      PROBE_COMMAND       = "nproc; cat /proc/loadavg; pgrep -c ffmpeg; cat /proc/net/dev";
+    private static final long                        PROBE_TIMEOUT       = 5000;
+    private final        ExecutorService             installExecutor     = Executors.newFixedThreadPool(INSTALL_PARALLELISM);
+    private final        Set<ServerInfo>             installingServers   = ConcurrentHashMap.newKeySet();
+    private final        Set<ServerInfo>             probingServers      = ConcurrentHashMap.newKeySet();
+    private final        Map<Integer, AtomicInteger> provisioningCounts  = new ConcurrentHashMap<>();
+    private final        Object                      serverSignal        = new Object();
+    private volatile     long                        serverVersion;
     @Autowired
-    private              LiveManSetting       liveManSetting;
+    private              LiveManSetting              liveManSetting;
     @Autowired
-    private              SettingConfig        settingConfig;
+    private              SettingConfig               settingConfig;
     @Autowired
-    private              DynamicServerService dynamicServerService;
+    private              DynamicServerService        dynamicServerService;
 
     public ServerInfo getAvailableServer(VideoInfo videoInfo) {
         CopyOnWriteArraySet<ServerInfo> servers = liveManSetting.getServers();
+        int performance = videoInfo.getCropConf().getBroadcastResolution().getPerformance();
         try {
             // 获取服务器之前先释放掉所有被占用的服务器
             releaseServer(videoInfo);
-            // 查找已经可用的服务器
-            List<ServerInfo> availableServers = servers.stream().filter(server -> server.getCurrentVideo() == null && server.getPerformance() == videoInfo.getCropConf().getBroadcastResolution().getPerformance() && server.isAvailable()).collect(Collectors.toList());
-            while (!availableServers.isEmpty()) {
-                ServerInfo serverInfo = availableServers.get((int) (Math.random() * availableServers.size()));
+            // 按负载评分从低到高占用已经可用的服务器，连接状态由后台探测任务维护
+            List<ServerInfo> availableServers = servers.stream().filter(server -> server.getCurrentVideo() == null && server.getPerformance() == performance && server.isAvailable() && server.getLoad().isReachable()).sorted(Comparator.comparingDouble(server -> server.getLoad().getScore())).collect(Collectors.toList());
+            for (ServerInfo serverInfo : availableServers) {
                 if (serverInfo.setCurrentVideo(videoInfo)) {
-                    log.info("转播服务器调度成功[" + serverInfo.getRemark() + "@" + serverInfo.getAddress() + ":" + serverInfo.getPort() + "] => videoId=" + videoInfo.getVideoId());
+                    log.info("转播服务器调度成功[" + serverInfo.getRemark() + "@" + serverInfo.getAddress() + ":" + serverInfo.getPort() + "] => videoId=" + videoInfo.getVideoId() + ", " + serverInfo.getLoad());
+                    ensureStandby(performance);
                     return serverInfo;
-                } else {
-                    availableServers.remove(serverInfo);
                 }
             }
-            // 查找尚未初始化完毕的服务器
-            List<ServerInfo> unavailableServers = servers.stream().filter(server -> server.getCurrentVideo() == null && server.getPerformance() == videoInfo.getCropConf().getBroadcastResolution().getPerformance() && !server.isAvailable()).collect(Collectors.toList());
-            if (unavailableServers.isEmpty()) {
-                // 没有找到可用的服务器，动态扩容
-                VideoCropConf cropConf = videoInfo.getCropConf();
-                ServerInfo serverInfo = dynamicServerService.create(cropConf.getBroadcastResolution().getPerformance());
+            // 尚未初始化完毕的服务器会在可以连接后由后台探测任务完成初始化，没有这样的服务器时动态扩容
+            if (servers.stream().noneMatch(server -> server.getPerformance() == performance && !server.isAvailable())) {
+                provisionServerAsync(performance, 1);
+            }
+            log.info("没有找到空闲的转播服务器![videoId=" + videoInfo.getVideoUnionId() + "]");
+        } catch (Throwable e) {
+            releaseServer(videoInfo);
+            throw e;
+        }
+        return null;
+    }
+
+    /**
+     * 探测所有服务器的负载和连接状态，并初始化已经可以连接但尚未初始化的服务器
+     */
+    public void probeServers() {
+        for (ServerInfo serverInfo : liveManSetting.getServers()) {
+            if (!serverInfo.isAvailable()) {
+                installServerAsync(serverInfo);
+            } else if (probingServers.add(serverInfo)) {
+                ThreadPoolUtil.execute(() -> {
+                    try {
+                        probeServer(serverInfo);
+                    } finally {
+                        probingServers.remove(serverInfo);
+                    }
+                });
+            }
+        }
+    }
+
+    private void probeServer(ServerInfo serverInfo) {
+        ServerLoad load = serverInfo.getLoad();
+        try {
+            String output = SshSessionPool.execForOutput(serverInfo, PROBE_COMMAND, PROBE_TIMEOUT);
+            if (output == null) {
+                throw new IOException("probe timeout");
+            }
+            String[] lines = output.split("\n");
+            long txBytes = 0;
+            for (int i = 3; i < lines.length; i++) {
+                // /proc/net/dev中每个网卡冒号后的第9列为累计发送字节数
+                int colon = lines[i].indexOf(':');
+                if (colon > 0 && !lines[i].substring(0, colon).trim().equals("lo")) {
+                    String[] fields = lines[i].substring(colon + 1).trim().split("\\s+");
+                    if (fields.length > 8) {
+                        txBytes += Long.parseLong(fields[8]);
+                    }
+                }
+            }
+            boolean wasReachable = load.isReachable();
+            load.onProbe(Integer.parseInt(lines[0].trim()), Double.parseDouble(lines[1].trim().split(" ")[0]), Integer.parseInt(lines[2].trim()), txBytes);
+            if (!wasReachable) {
+                signalServerChange();
+            }
+        } catch (Throwable e) {
+            if (load.isReachable()) {
+                log.warn("探测服务器[" + serverInfo.getRemark() + "@" + serverInfo.getAddress() + "]负载失败:" + e.getMessage());
+            }
+            load.onProbeFailed();
+            // 负载高时探测也可能超时，会话仍然连接时保留，以免中断该会话上正在推流的进程
+            SshSessionPool.invalidateIfDisconnected(serverInfo);
+        }
+    }
+
+    private void ensureStandby(int performance) {
+        reserveServers(performance, liveManSetting.getServerStandbyCount());
+    }
+
+    /**
+     * 同一性能等级下空闲的服务器(包括尚未初始化完毕的)少于指定数量时在后台补足差额，正在创建中的服务器计入差额
+     */
+    public void reserveServers(int performance, int count) {
+        if (count <= 0) {
+            return;
+        }
+        long idleCount = liveManSetting.getServers().stream().filter(server -> server.getCurrentVideo() == null && server.getPerformance() == performance).count();
+        int missingCount = (int) (count - idleCount);
+        if (missingCount > 0) {
+            log.info("性能等级[" + performance + "]的空闲服务器不足" + count + "台，预先扩容" + missingCount + "台");
+            for (int i = 0; i < missingCount; i++) {
+                if (!provisionServerAsync(performance, missingCount)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param limit 同一性能等级同时创建中的服务器数量上限
+     * @return 是否提交了新的创建任务
+     */
+    private boolean provisionServerAsync(int performance, int limit) {
+        AtomicInteger provisioningCount = provisioningCounts.computeIfAbsent(performance, k -> new AtomicInteger());
+        int count;
+        do {
+            count = provisioningCount.get();
+            if (count >= limit) {
+                return false;
+            }
+        } while (!provisioningCount.compareAndSet(count, count + 1));
+        installExecutor.execute(() -> {
+            try {
+                ServerInfo serverInfo = dynamicServerService.create(performance);
                 if (serverInfo != null) {
                     addServer(serverInfo);
-                    settingConfig.saveSetting(liveManSetting);
-                    if (serverInfo.setCurrentVideo(videoInfo)) {
-                        if (testServer(serverInfo) && installServer(serverInfo)) {
-                            serverInfo.setAvailable(true);
-                            settingConfig.saveSetting(liveManSetting);
-                            log.info("转播服务器调度成功[" + serverInfo.getRemark() + "@" + serverInfo.getAddress() + ":" + serverInfo.getPort() + "] => videoId=" + videoInfo.getVideoId());
-                            return serverInfo;
-                        } else {
-                            serverInfo.removeCurrentVideo(videoInfo);
-                        }
-                    }
+                    installServerAsync(serverInfo);
                 }
+                signalServerChange();
+            } catch (Throwable e) {
+                log.error("动态扩容服务器失败[performance=" + performance + "]", e);
+            } finally {
+                provisioningCount.decrementAndGet();
             }
-            while (!unavailableServers.isEmpty()) {
-                ServerInfo serverInfo = unavailableServers.get((int) (Math.random() * unavailableServers.size()));
-                if (serverInfo.setCurrentVideo(videoInfo)) {
-                    if (serverInfo.getExternalServiceType() == ExternalServiceType.VULTR_API) {
-                        if (dynamicServerService.update(serverInfo) == null) {
-                            log.warn("server " + serverInfo.getRemark() + " was not found, remove it.");
-                            servers.remove(serverInfo);
-                            unavailableServers.remove(serverInfo);
-                            serverInfo.removeCurrentVideo(videoInfo);
-                            settingConfig.saveSetting(liveManSetting);
-                            continue;
-                        }
-                    }
-                    if (testServer(serverInfo) && installServer(serverInfo)) {
-                        serverInfo.setAvailable(true);
+        });
+        return true;
+    }
+
+    private void installServerAsync(ServerInfo serverInfo) {
+        if (!installingServers.add(serverInfo)) {
+            return;
+        }
+        installExecutor.execute(() -> {
+            try {
+                if (serverInfo.getExternalServiceType() == ExternalServiceType.VULTR_API) {
+                    if (dynamicServerService.update(serverInfo) == null) {
+                        log.warn("server " + serverInfo.getRemark() + " was not found, remove it.");
+                        liveManSetting.getServers().remove(serverInfo);
                         settingConfig.saveSetting(liveManSetting);
-                        log.info("转播服务器调度成功[" + serverInfo.getRemark() + "@" + serverInfo.getAddress() + ":" + serverInfo.getPort() + "] => videoId=" + videoInfo.getVideoId());
-                        return serverInfo;
-                    } else {
-                        log.info("转播服务器[" + serverInfo.getRemark() + "]尚未初始化完毕，当前无法连接。");
-                        unavailableServers.remove(serverInfo);
-                        serverInfo.removeCurrentVideo(videoInfo);
+                        return;
                     }
+                }
+                if (testServer(serverInfo) && installServer(serverInfo)) {
+                    serverInfo.setAvailable(true);
+                    settingConfig.saveSetting(liveManSetting);
+                    log.info("转播服务器[" + serverInfo.getRemark() + "@" + serverInfo.getAddress() + ":" + serverInfo.getPort() + "]初始化完毕");
+                    signalServerChange();
                 } else {
-                    unavailableServers.remove(serverInfo);
+                    log.info("转播服务器[" + serverInfo.getRemark() + "]尚未初始化完毕，当前无法连接。");
                 }
+            } catch (Throwable e) {
+                log.error("初始化服务器[" + serverInfo.getRemark() + "]失败", e);
+            } finally {
+                installingServers.remove(serverInfo);
             }
-            log.info("没有找到空闲的转播服务器![videoId=" + videoInfo.getVideoUnionId() + "]");
-        } catch (Throwable e) {
-            releaseServer(videoInfo);
-            throw e;
-        }
-        return null;
+        });
     }
 
-
     public boolean testServer(ServerInfo serverInfo) {
         if (StringUtils.isBlank(serverInfo.getAddress()) || "0.0.0.0".equals(serverInfo.getAddress())) {
             log.info("Connect to server" + serverInfo.getRemark() + " server failed: invalid host [" + serverInfo.getAddress() + "]");
@@ -146,6 +255,27 @@ public class BroadcastServerService {
         }
     }
 
+    /**
+     * 在并发数有限的线程池中检测并初始化新发现的服务器，同一台服务器初始化完成前不会重复提交
+     */
+    public void addAndInstallServerAsync(ServerInfo serverInfo) {
+        if (!installingServers.add(serverInfo)) {
+            return;
+        }
+        installExecutor.execute(() -> {
+            try {
+                if (testServer(serverInfo)) {
+                    serverInfo.setAvailable(true);
+                    addAndInstallServer(serverInfo);
+                }
+            } catch (Throwable e) {
+                log.error("初始化服务器[" + serverInfo.getRemark() + "]失败", e);
+            } finally {
+                installingServers.remove(serverInfo);
+            }
+        });
+    }
+
     public void addServer(ServerInfo serverInfo) {
         log.info("addServer " + serverInfo);
         if (liveManSetting.getServers().add(serverInfo)) {
@@ -162,7 +292,7 @@ public class BroadcastServerService {
             return true;
         }
         try (JschSshUtil jschSshUtil = new JschSshUtil(serverInfo)) {
-            jschSshUtil.transferFile(liveManSetting.getFfmpegPath(), liveManSetting.getFfmpegPath());
+            jschSshUtil.syncFile(liveManSetting.getFfmpegPath(), liveManSetting.getFfmpegPath());
             for (String syncFile : STATIC_SYNC_FILES) {
                 jschSshUtil.transferFile(syncFile, syncFile);
             }
@@ -175,9 +305,48 @@ public class BroadcastServerService {
 
     public void releaseServer(VideoInfo videoInfo) {
         CopyOnWriteArraySet<ServerInfo> servers = liveManSetting.getServers();
+        boolean released = false;
         for (ServerInfo server : servers) {
+            // removeCurrentVideo对空闲服务器同样返回true，只有确实占用了该视频的服务器才算释放
+            boolean occupied = videoInfo != null && server.getCurrentVideo() == videoInfo;
             server.removeCurrentVideo(videoInfo);
+            released |= occupied;
         }
+        if (released) {
+            signalServerChange();
+        }
+    }
+
+    /**
+     * @return 服务器状态的版本号，有服务器可能变为可用时递增，配合{@link #awaitServerChange}使用
+     */
+    public long getServerVersion() {
+        return serverVersion;
+    }
+
+    /**
+     * 等待服务器初始化完成、扩容完成、恢复连接或被释放，期间版本号已经变化时立即返回
+     */
+    public void awaitServerChange(long version, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (serverSignal) {
+            long remaining;
+            while (serverVersion == version && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                serverSignal.wait(remaining);
+            }
+        }
+    }
+
+    private void signalServerChange() {
+        synchronized (serverSignal) {
+            serverVersion++;
+            serverSignal.notifyAll();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        installExecutor.shutdownNow();
     }
 
 }
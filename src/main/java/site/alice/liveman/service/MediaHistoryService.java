@@ -37,7 +37,9 @@ import java.nio.charset.StandardCharsets;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
 
 @Service
 @Slf4j
@@ -106,4 +108,11 @@ public class MediaHistoryService {
         return mediaHistory;
     }
 
+    /**
+     * @return 该频道在指定时间之后开始转播的时间
+     */
+    public List<Date> getChannelStartTimes(String channelName, long since) {
+        return mediaHistoryMap.values().stream().filter(mediaHistory -> Objects.equals(channelName, mediaHistory.getChannelName()) && mediaHistory.getDatetime().getTime() >= since).map(MediaHistory::getDatetime).collect(Collectors.toList());
+    }
+
 }
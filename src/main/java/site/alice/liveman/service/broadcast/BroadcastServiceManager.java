@@ -19,7 +19,6 @@ package site.alice.liveman.service.broadcast;
 
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.IOUtils;
 import org.springframework.beans.BeansException;
 import org.springframework.beans.factory.BeanDefinitionStoreException;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -38,48 +37,47 @@ import site.alice.liveman.model.*;
 import site.alice.liveman.service.BroadcastServerService;
 import site.alice.liveman.service.MediaHistoryService;
 import site.alice.liveman.service.VideoFilterService;
-import site.alice.liveman.service.external.ImageSegmentService;
-import site.alice.liveman.service.external.TextLocationService;
+import site.alice.liveman.service.external.InferenceScheduler;
 import site.alice.liveman.service.external.consumer.impl.ImageSegmentConsumerImpl;
 import site.alice.liveman.service.external.consumer.impl.TextLocationConsumerImpl;
 import site.alice.liveman.service.live.LiveServiceFactory;
 import site.alice.liveman.utils.BilibiliApiUtil;
+import site.alice.liveman.utils.FfmpegProgressReader;
+import site.alice.liveman.utils.FfmpegProgressReader.ProgressSample;
 import site.alice.liveman.utils.FfmpegUtil;
+import site.alice.liveman.utils.ProcessLogSink;
 import site.alice.liveman.utils.ProcessUtil;
 import site.alice.liveman.utils.ThreadPoolUtil;
 
 import javax.annotation.PostConstruct;
 import java.io.File;
-import java.io.FileInputStream;
-import java.nio.charset.StandardCharsets;
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 @Slf4j
 @Component
 public class BroadcastServiceManager implements ApplicationContextAware {
-    private Map<String, BroadcastService> broadcastServiceMap;
+    private static final long                          PROGRESS_START_TIMEOUT = 30000;
+    private static final long                          PROGRESS_STALL_TIMEOUT = 10000;
+    private static final long                          MIN_SERVER_WAIT        = 1000;
+    private static final long                          MAX_SERVER_WAIT        = 10000;
+    private              Map<String, BroadcastService> broadcastServiceMap;
     @Autowired
-    private LiveManSetting                liveManSetting;
+    private              LiveManSetting                liveManSetting;
     @Autowired
-    private BilibiliApiUtil               bilibiliApiUtil;
+    private              BilibiliApiUtil               bilibiliApiUtil;
     @Autowired
-    private MediaHistoryService           mediaHistoryService;
+    private              MediaHistoryService           mediaHistoryService;
     @Autowired
-    private LiveServiceFactory            liveServiceFactory;
+    private              LiveServiceFactory            liveServiceFactory;
     @Autowired
-    private BroadcastServerService        broadcastServerService;
+    private              BroadcastServerService        broadcastServerService;
     @Autowired
-    private TextLocationService           textLocationService;
+    private              InferenceScheduler            inferenceScheduler;
     @Autowired
-    private ImageSegmentService           imageSegmentService;
-    @Autowired
-    private VideoFilterService            videoFilterService;
+    private              VideoFilterService            videoFilterService;
 
     @PostConstruct
     public void init() {
@@ -247,15 +245,11 @@ public class BroadcastServiceManager implements ApplicationContextAware {
 
     public class BroadcastTask implements Runnable {
 
-        private Pattern     logSpeedPattern = Pattern.compile("speed=([0-9\\.\\s]+)x");
         private VideoInfo   videoInfo;
         private long        pid;
         private AccountInfo broadcastAccount;
         private boolean     terminate;
         private boolean     singleTask;
-        private long        lastHitTime;
-        private long        lastLogLength;
-        private long        lastLogTime;
         private float       health;
         private int         lowHealthCount;
 
@@ -304,7 +298,7 @@ public class BroadcastServiceManager implements ApplicationContextAware {
                             if (broadcastAccount != null && videoInfo.getCropConf().getVideoBannedType() == VideoBannedTypeEnum.CUSTOM_SCREEN && videoInfo.getCropConf().isAutoBlur()) {
                                 MediaProxyTask mediaProxyTask = MediaProxyManager.getExecutedProxyTaskMap().get(videoInfo.getVideoId());
                                 if (mediaProxyTask != null) {
-                                    textLocationService.requireTextLocation(mediaProxyTask.getKeyFrame().getFrameImage(), new TextLocationConsumerImpl(videoInfo));
+                                    inferenceScheduler.requireTextLocation(videoInfo.getVideoId(), mediaProxyTask.getKeyFrame().getFrameImage(), new TextLocationConsumerImpl(videoInfo, liveManSetting.getTextLocationCaptureInterval(), liveManSetting.getAutoBlurSize()));
                                 }
                             }
                         } catch (Throwable e) {
@@ -322,12 +316,12 @@ public class BroadcastServiceManager implements ApplicationContextAware {
                             if (broadcastAccount != null && videoInfo.getCropConf().getVideoBannedType() == VideoBannedTypeEnum.CUSTOM_SCREEN && videoInfo.getCropConf().isAutoImageSegment()) {
                                 MediaProxyTask mediaProxyTask = MediaProxyManager.getExecutedProxyTaskMap().get(videoInfo.getVideoId());
                                 if (mediaProxyTask != null) {
-                                    imageSegmentService.imageSegment(mediaProxyTask.getKeyFrame().getFrameImage(), new ImageSegmentConsumerImpl(videoInfo));
+                                    inferenceScheduler.imageSegment(videoInfo.getVideoId(), mediaProxyTask.getKeyFrame().getFrameImage(), new ImageSegmentConsumerImpl(videoInfo));
                                 }
                             } else {
                                 CopyOnWriteArrayList<CustomLayout> layouts = videoInfo.getCropConf().getLayouts();
-                                if (layouts != null) {
-                                    layouts.removeIf(layout -> layout instanceof ImageSegmentBlurLayout);
+                                if (layouts != null && layouts.stream().anyMatch(layout -> layout instanceof ImageSegmentBlurLayout)) {
+                                    videoInfo.getCropConf().updateLayouts(customLayouts -> customLayouts.removeIf(layout -> layout instanceof ImageSegmentBlurLayout));
                                 }
                             }
                         } catch (Throwable e) {
@@ -339,6 +333,7 @@ public class BroadcastServiceManager implements ApplicationContextAware {
                     }
                 }, 10, TimeUnit.SECONDS);
                 Map<String, MediaProxyTask> executedProxyTaskMap = MediaProxyManager.getExecutedProxyTaskMap();
+                long serverWait = MIN_SERVER_WAIT;
                 while (executedProxyTaskMap.containsKey(videoInfo.getVideoId()) && !terminate) {
                     try {
                         if (!singleTask) {
@@ -371,6 +366,7 @@ public class BroadcastServiceManager implements ApplicationContextAware {
                                 // 如果是区域打码或自定义的，创建低分辨率媒体代理服务
                                 pid = 0;
                                 ServerInfo availableServer = null;
+                                ProgressMonitor progressMonitor = new ProgressMonitor();
                                 switch (videoInfo.getCropConf().getVideoBannedType()) {
                                     case CUSTOM_SCREEN: {
                                         health = -1;
@@ -403,10 +399,15 @@ public class BroadcastServiceManager implements ApplicationContextAware {
                                         lowVideoInfo.setCropConf(videoInfo.getCropConf());
                                         ffmpegCmdLine = FfmpegUtil.buildFfmpegCmdLine(lowVideoInfo, broadcastAddress);
                                         // pid = ProcessUtil.createProcess(ffmpegCmdLine, videoInfo.getVideoId());
+                                        long serverVersion = broadcastServerService.getServerVersion();
                                         availableServer = broadcastServerService.getAvailableServer(videoInfo);
                                         if (availableServer != null) {
-                                            pid = ProcessUtil.createRemoteProcess(ffmpegCmdLine, availableServer, true, videoInfo.getVideoId());
+                                            serverWait = MIN_SERVER_WAIT;
+                                            pid = ProcessUtil.createRemoteProgressProcess(ffmpegCmdLine, availableServer, videoInfo.getVideoId(), progressMonitor);
                                         } else {
+                                            // 等待服务器状态变化，没有变化时逐步延长等待时间，避免反复请求推流地址
+                                            broadcastServerService.awaitServerChange(serverVersion, serverWait);
+                                            serverWait = Math.min(serverWait * 2, MAX_SERVER_WAIT);
                                             continue;
                                         }
                                         break;
@@ -420,70 +421,52 @@ public class BroadcastServiceManager implements ApplicationContextAware {
                                             FileUtils.deleteQuietly(new File(mediaProxyTask.getTempPath()));
                                         }
                                         ffmpegCmdLine = FfmpegUtil.buildFfmpegCmdLine(videoInfo, broadcastAddress);
-                                        pid = ProcessUtil.createProcess(ffmpegCmdLine, videoInfo.getVideoId());
+                                        pid = ProcessUtil.createProgressProcess(ffmpegCmdLine, videoInfo.getVideoId(), progressMonitor);
                                     }
                                 }
                                 log.info("[" + broadcastAccount.getRoomId() + "@" + broadcastAccount.getAccountSite() + ", videoId=" + videoInfo.getVideoId() + "]推流进程已启动[PID:" + pid + "]");
                                 // 等待进程退出或者任务结束
-                                lastHitTime = 0;
                                 lowHealthCount = 0;
                                 health = 0;
-                                lastLogLength = 0;
                                 while (broadcastAccount.getCurrentVideo() == videoInfo && !ProcessUtil.waitProcess(pid, 1000)) {
-                                    ProcessUtil.AliceProcess aliceProcess = ProcessUtil.getAliceProcess(pid);
-                                    if (aliceProcess == null) {
-                                        continue;
-                                    }
                                     if (availableServer != null && availableServer.getCurrentVideo() != videoInfo) {
                                         log.warn("推流服务器已被释放，终止推流进程[videoId=" + videoInfo.getVideoId() + "]...");
                                         break;
                                     }
-                                    File logFile = aliceProcess.getProcessBuilder().redirectOutput().file();
-                                    if (logFile != null && logFile.length() > 1024) {
-                                        if (lastLogLength != logFile.length()) {
-                                            lastLogLength = logFile.length();
-                                            lastLogTime = System.nanoTime();
+                                    if (progressMonitor.playlistExpired) {
+                                        log.warn("发现m3u8序列过期日志，终止推流进程[pid:" + pid + "]...");
+                                        ProcessUtil.killProcess(pid);
+                                        continue;
+                                    }
+                                    ProgressSample sample = progressMonitor.lastSample;
+                                    long dt = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - (sample != null ? sample.getReceiveTime() : progressMonitor.startTime));
+                                    if (dt > (sample != null ? PROGRESS_STALL_TIMEOUT : PROGRESS_START_TIMEOUT)) {
+                                        log.warn("持续" + dt + "毫秒没有收到推流进度，终止推流进程...[pid:" + pid + ", lastLog:" + ProcessLogSink.getLastLines(videoInfo.getVideoId(), 5) + "]");
+                                        ProcessUtil.killProcess(pid);
+                                        continue;
+                                    }
+                                    if (sample == null) {
+                                        continue;
+                                    }
+                                    if (sample.getSpeed() >= 0) {
+                                        health = sample.getSpeed() * 100;
+                                        if (availableServer != null) {
+                                            availableServer.getLoad().recordHealth(health);
                                         }
-                                        long dt = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastLogTime);
-                                        if (dt > 10000) {
-                                            log.warn("持续" + dt + "毫秒没有推流日志输出，终止推流进程...[pid:" + pid + ", logFile:\"" + logFile + "\"]");
+                                    }
+                                    if (progressMonitor.lastSpeedTime > 0 && TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - progressMonitor.lastSpeedTime) > 10000) {
+                                        log.warn("超过10秒无法获取当前推流健康度，终止推流进程[pid:" + pid + ", lastSample:" + sample + "]...");
+                                        ProcessUtil.killProcess(pid);
+                                    } else if (health > 0 && health < 94) {
+                                        if (lowHealthCount++ < 15) {
+                                            log.warn("当前推流健康度过低，该情况已经持续" + lowHealthCount + "次！[pid:" + pid + ", health:" + health + ", lastSample:" + sample + "]");
+                                        } else {
+                                            log.warn("当前推流健康度过低，该情况已经持续" + lowHealthCount + "次，终止推流进程...[pid:" + pid + ", health:" + health + ", lastSample:" + sample + "]");
                                             ProcessUtil.killProcess(pid);
-                                            continue;
-                                        }
-                                        try (FileInputStream fis = new FileInputStream(logFile)) {
-                                            fis.skip(logFile.length() - 1024);
-                                            List<String> logLines = IOUtils.readLines(fis, StandardCharsets.UTF_8);
-                                            // 最多向上读取10行日志
-                                            for (int i = logLines.size() - 1; i >= Math.max(0, logLines.size() - 10); i--) {
-                                                if (logLines.get(i).contains("segments ahead, expired from playlists")) {
-                                                    log.warn("发现m3u8序列过期日志，终止推流进程[pid:" + pid + ", logFile:\"" + logFile + "\"]...");
-                                                    ProcessUtil.killProcess(pid);
-                                                    break;
-                                                }
-                                                Matcher matcher = logSpeedPattern.matcher(logLines.get(i));
-                                                if (matcher.find()) {
-                                                    health = Float.parseFloat(matcher.group(1).trim()) * 100;
-                                                    lastHitTime = System.nanoTime();
-                                                    break;
-                                                }
-                                            }
-                                            if (lastHitTime > 0 && TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastHitTime) > 10000) {
-                                                log.warn("超过10秒无法获取当前推流健康度，终止推流进程[pid:" + pid + ", lastHitTime:" + lastHitTime + ", logFile:\"" + logFile + "\"]...");
-                                                ProcessUtil.killProcess(pid);
-                                            } else if (health > 0 && health < 94) {
-                                                if (lowHealthCount++ < 15) {
-                                                    log.warn("当前推流健康度过低，该情况已经持续" + lowHealthCount + "次！[pid:" + pid + ", health:" + health + ", logFile:\"" + logFile + "\"]");
-                                                } else {
-                                                    log.warn("当前推流健康度过低，该情况已经持续" + lowHealthCount + "次，终止推流进程...[pid:" + pid + ", health:" + health + ", logFile:\"" + logFile + "\"]");
-                                                    ProcessUtil.killProcess(pid);
-                                                }
-                                            } else if (health > 102) {
-                                                log.warn("当前推流健康度异常，终止推流进程[pid:" + pid + ", health:" + health + ", logFile:\"" + logFile + "\"]...");
-                                                ProcessUtil.killProcess(pid);
-                                            }
-                                        } catch (Exception e) {
-                                            log.error("读取推流进程日志文件时出错[pid:" + pid + ", logFile:\"" + logFile + "\"]", e);
                                         }
+                                    } else if (health > 102) {
+                                        log.warn("当前推流健康度异常，终止推流进程[pid:" + pid + ", health:" + health + ", lastSample:" + sample + "]...");
+                                        ProcessUtil.killProcess(pid);
                                     }
                                 }
                             } catch (Throwable e) {
@@ -575,4 +558,29 @@ public class BroadcastServiceManager implements ApplicationContextAware {
         }
     }
 
+    /**
+     * 接收单个推流进程的进度信息，每次启动推流进程时重新创建，避免旧进程残留的输出影响新进程的判断
+     */
+    private static class ProgressMonitor implements FfmpegProgressReader.ProgressListener {
+        private final    long           startTime = System.nanoTime();
+        private volatile ProgressSample lastSample;
+        private volatile long           lastSpeedTime;
+        private volatile boolean        playlistExpired;
+
+        @Override
+        public void onProgress(ProgressSample sample) {
+            lastSample = sample;
+            if (sample.getSpeed() >= 0) {
+                lastSpeedTime = sample.getReceiveTime();
+            }
+        }
+
+        @Override
+        public void onLogLine(String line) {
+            if (line.contains("segments ahead, expired from playlists")) {
+                playlistExpired = true;
+            }
+        }
+    }
+
 }
@@ -0,0 +1,239 @@
+/*
+ * <Alice LiveMan>
+ * Copyright (C) <2018>  <NekoSunflower>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package site.alice.liveman.service.external;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang.StringUtils;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.ApplicationContextAware;
+import org.springframework.stereotype.Service;
+import site.alice.liveman.model.LiveManSetting;
+import site.alice.liveman.service.external.consumer.ImageSegmentConsumer;
+import site.alice.liveman.service.external.consumer.TextLocationConsumer;
+import site.alice.liveman.utils.ImageHashUtil;
+import site.alice.liveman.utils.ThreadPoolUtil;
+
+import javax.annotation.PostConstruct;
+import java.awt.image.BufferedImage;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * 汇总所有转播任务的文字定位和图像分割请求并分批推理：每个节目只保留最新的一帧，
+ * 多个节目中像素完全相同的画面只推理一次。图像分割在画面没有明显变化时复用该节目上次的结果，
+ * 文字定位的位置随弹幕滚动变化，只在画面完全相同时短时间复用。
+ * 分发线程只负责收集和去重，推理在线程池中执行，每种推理同时最多执行4批
+ */
+@Slf4j
+@Service
+public class InferenceScheduler implements ApplicationContextAware {
+    private static final long                             DISPATCH_INTERVAL             = 1000;
+    private static final long                             RESULT_TTL                    = 30000;
+    private static final long                             TEXT_LOCATION_RESULT_TTL      = 10000;
+    private static final int                              SAME_FRAME_DISTANCE           = 4;
+    private static final int                              MAX_CONCURRENT_BATCHES        = 4;
+    private static final String                           DEFAULT_TEXT_LOCATION_BACKEND = "aliceCommentTextLocationService";
+    private static final String                           DEFAULT_IMAGE_SEGMENT_BACKEND = "crfAsRnnImageSegmentServiceImpl";
+    private final        Map<String, Request>             pendingRequests               = new ConcurrentHashMap<>();
+    private final        Map<String, Result>              resultCache                   = new ConcurrentHashMap<>();
+    private final        Set<String>                      inferringKeys                 = ConcurrentHashMap.newKeySet();
+    private final        Map<Type, Semaphore>             backendPermits                = new EnumMap<>(Type.class);
+    private              Map<String, TextLocationService> textLocationServiceMap;
+    private              Map<String, ImageSegmentService> imageSegmentServiceMap;
+
+    @Autowired
+    private LiveManSetting liveManSetting;
+
+    @Override
+    public void setApplicationContext(ApplicationContext applicationContext) throws BeansException {
+        textLocationServiceMap = applicationContext.getBeansOfType(TextLocationService.class);
+        imageSegmentServiceMap = applicationContext.getBeansOfType(ImageSegmentService.class);
+    }
+
+    @PostConstruct
+    public void init() {
+        for (Type type : Type.values()) {
+            backendPermits.put(type, new Semaphore(MAX_CONCURRENT_BATCHES));
+        }
+        ThreadPoolUtil.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    dispatch();
+                } catch (Throwable e) {
+                    log.error("分发推理请求失败", e);
+                }
+                ThreadPoolUtil.schedule(this, DISPATCH_INTERVAL, TimeUnit.MILLISECONDS);
+            }
+        }, DISPATCH_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    @SuppressWarnings("unchecked")
+    public void requireTextLocation(String videoId, BufferedImage image, TextLocationConsumer consumer) {
+        submit(new Request(Type.TEXT_LOCATION, videoId, image, (result, inferredImage) -> consumer.accept((List<TextLocation>) result, inferredImage)));
+    }
+
+    public void imageSegment(String videoId, BufferedImage image, ImageSegmentConsumer consumer) {
+        submit(new Request(Type.IMAGE_SEGMENT, videoId, image, (result, inferredImage) -> consumer.accept((BufferedImage) result, inferredImage)));
+    }
+
+    private void submit(Request request) {
+        // 上一帧还没来得及处理时直接用新的一帧替换
+        pendingRequests.put(request.key, request);
+    }
+
+    private void dispatch() {
+        List<Request> requests = new ArrayList<>();
+        for (String key : pendingRequests.keySet()) {
+            Request request = pendingRequests.remove(key);
+            if (request != null) {
+                requests.add(request);
+            }
+        }
+        long now = System.currentTimeMillis();
+        resultCache.values().removeIf(result -> now - result.time > RESULT_TTL);
+        if (requests.isEmpty()) {
+            return;
+        }
+        Map<String, List<Request>> batches = new LinkedHashMap<>();
+        for (Request request : requests) {
+            if (inferringKeys.contains(request.key)) {
+                // 该节目的上一帧还在推理中，留到下次分发
+                pendingRequests.putIfAbsent(request.key, request);
+                continue;
+            }
+            Result cached = resultCache.get(request.key);
+            if (cached != null && cached.isReusable(request, now)) {
+                deliver(request, cached.value, cached.image);
+            } else {
+                // 只有像素完全相同的画面才合并推理，相近的画面不能共用其他节目的结果
+                batches.computeIfAbsent(request.type + ":" + request.digest, k -> new ArrayList<>()).add(request);
+            }
+        }
+        for (List<Request> batch : batches.values()) {
+            Request first = batch.get(0);
+            Semaphore permits = backendPermits.get(first.type);
+            if (!permits.tryAcquire()) {
+                // 后端并发已满，不阻塞分发线程，留到下次分发
+                for (Request request : batch) {
+                    pendingRequests.putIfAbsent(request.key, request);
+                }
+                continue;
+            }
+            for (Request request : batch) {
+                inferringKeys.add(request.key);
+            }
+            ThreadPoolUtil.execute(() -> {
+                try {
+                    infer(first.type, first.image, (value, inferredImage) -> {
+                        Result result = new Result(first.hash, first.digest, value, inferredImage);
+                        for (Request request : batch) {
+                            resultCache.put(request.key, result);
+                            deliver(request, value, inferredImage);
+                        }
+                    });
+                } catch (Throwable e) {
+                    log.error("推理请求失败[type=" + first.type + ", videoId=" + first.videoId + ", batchSize=" + batch.size() + "]", e);
+                } finally {
+                    for (Request request : batch) {
+                        inferringKeys.remove(request.key);
+                    }
+                    permits.release();
+                }
+            });
+        }
+    }
+
+    private void infer(Type type, BufferedImage image, BiConsumer<Object, BufferedImage> callback) {
+        switch (type) {
+            case TEXT_LOCATION:
+                getBackend(textLocationServiceMap, liveManSetting.getTextLocationBackend(), DEFAULT_TEXT_LOCATION_BACKEND).requireTextLocation(image, callback::accept);
+                break;
+            case IMAGE_SEGMENT:
+                getBackend(imageSegmentServiceMap, liveManSetting.getImageSegmentBackend(), DEFAULT_IMAGE_SEGMENT_BACKEND).imageSegment(image, callback::accept);
+                break;
+        }
+    }
+
+    private static <T> T getBackend(Map<String, T> backendMap, String name, String defaultName) {
+        T backend = backendMap.get(StringUtils.isEmpty(name) ? defaultName : name);
+        if (backend == null) {
+            throw new IllegalStateException("没有找到名为[" + name + "]的推理服务，可选的有" + backendMap.keySet());
+        }
+        return backend;
+    }
+
+    private static void deliver(Request request, Object value, BufferedImage inferredImage) {
+        try {
+            request.consumer.accept(value, inferredImage);
+        } catch (Throwable e) {
+            log.error("处理推理结果失败[type=" + request.type + ", videoId=" + request.videoId + "]", e);
+        }
+    }
+
+    private enum Type {
+        TEXT_LOCATION, IMAGE_SEGMENT
+    }
+
+    private static class Request {
+        private final Type                              type;
+        private final String                            videoId;
+        private final String                            key;
+        private final BufferedImage                     image;
+        private final long                              hash;
+        private final String                            digest;
+        private final BiConsumer<Object, BufferedImage> consumer;
+
+        private Request(Type type, String videoId, BufferedImage image, BiConsumer<Object, BufferedImage> consumer) {
+            this.type = type;
+            this.videoId = videoId;
+            this.key = type + ":" + videoId;
+            this.image = image;
+            this.hash = ImageHashUtil.differenceHash(image);
+            this.digest = ImageHashUtil.contentDigest(image);
+            this.consumer = consumer;
+        }
+    }
+
+    private static class Result {
+        private final long          hash;
+        private final String        digest;
+        private final Object        value;
+        private final BufferedImage image;
+        private final long          time = System.currentTimeMillis();
+
+        private Result(long hash, String digest, Object value, BufferedImage image) {
+            this.hash = hash;
+            this.digest = digest;
+            this.value = value;
+            this.image = image;
+        }
+
+        private boolean isReusable(Request request, long now) {
+            if (request.type == Type.TEXT_LOCATION) {
+                return now - time <= TEXT_LOCATION_RESULT_TTL && digest.equals(request.digest);
+            }
+            return ImageHashUtil.distance(hash, request.hash) <= SAME_FRAME_DISTANCE;
+        }
+    }
+}
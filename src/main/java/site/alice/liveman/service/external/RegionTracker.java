@@ -0,0 +1,166 @@
+/*
+ * <Alice LiveMan>
+ * Copyright (C) <2018>  <NekoSunflower>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package site.alice.liveman.service.external;
+
+import site.alice.liveman.customlayout.CustomLayout;
+
+import java.awt.*;
+import java.util.*;
+import java.util.List;
+
+/**
+ * 跟踪节目画面中需要打码的区域，区域扩大立即生效，缩小和消失需要持续一段时间没有被命中才生效，避免打码区域随识别结果抖动
+ */
+public class RegionTracker {
+    private static final int                CELL_SIZE   = 128;
+    private static final int                TOLERANCE   = 20;
+    private static final double             MIN_IOU     = 0.3;
+    private static final long               HOLD_MILLIS = 60000;
+    private final        List<TextLocation> regions     = new ArrayList<>();
+    private              List<CustomLayout> layouts     = Collections.emptyList();
+    private              long               lastCaptureTime;
+
+    /**
+     * @param detections 本次识别到的区域，不会被修改
+     * @return 跟踪的区域是否有变化
+     */
+    public synchronized boolean update(List<TextLocation> detections, long now) {
+        // 按区域所在的网格建立索引，每个识别结果只和附近的区域比较
+        Map<Long, List<TextLocation>> grid = new HashMap<>();
+        for (TextLocation region : regions) {
+            for (long cell : getCells(grow(region.getRectangle()))) {
+                grid.computeIfAbsent(cell, k -> new ArrayList<>()).add(region);
+            }
+        }
+        boolean changed = false;
+        Set<TextLocation> matchedRegions = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<TextLocation> newRegions = new ArrayList<>();
+        for (TextLocation detection : detections) {
+            Rectangle rectangle = detection.getRectangle();
+            TextLocation region = findMatch(grid, rectangle);
+            if (region == null) {
+                TextLocation newRegion = new TextLocation();
+                newRegion.setRectangle(new Rectangle(rectangle));
+                newRegion.setText(detection.getText());
+                newRegion.setScore(detection.getScore());
+                newRegion.setLastHitTime(now);
+                newRegions.add(newRegion);
+                continue;
+            }
+            matchedRegions.add(region);
+            Rectangle bounds = region.getRectangle();
+            Rectangle union = bounds.union(rectangle);
+            Rectangle target = union;
+            if (grow(rectangle).contains(union)) {
+                region.setLastHitTime(now);
+            } else if (now - region.getLastHitTime() > HOLD_MILLIS) {
+                // 区域没有改变位置，但是持续比识别结果大，收缩到识别结果
+                target = rectangle;
+                region.setLastHitTime(now);
+            }
+            if (!bounds.equals(target)) {
+                bounds.setBounds(target);
+                changed = true;
+            }
+        }
+        // 超过保持时间没有被命中的区域淘汰
+        changed |= regions.removeIf(region -> !matchedRegions.contains(region) && now - region.getLastHitTime() > HOLD_MILLIS);
+        changed |= regions.addAll(newRegions);
+        return changed;
+    }
+
+    public synchronized List<Rectangle> getRectangles() {
+        List<Rectangle> rectangles = new ArrayList<>(regions.size());
+        for (TextLocation region : regions) {
+            rectangles.add(new Rectangle(region.getRectangle()));
+        }
+        return rectangles;
+    }
+
+    /**
+     * @return 最近一次根据跟踪的区域生成的渲染层，渲染层被其他修改替换掉时需要重新生成
+     */
+    public synchronized List<CustomLayout> getLayouts() {
+        return layouts;
+    }
+
+    public synchronized void setLayouts(List<CustomLayout> layouts) {
+        this.layouts = layouts;
+    }
+
+    /**
+     * @return 距离上次保存识别记录超过指定间隔时返回true并记录本次时间
+     */
+    public synchronized boolean tryCapture(long now, long intervalMillis) {
+        if (now - lastCaptureTime < intervalMillis) {
+            return false;
+        }
+        lastCaptureTime = now;
+        return true;
+    }
+
+    private static TextLocation findMatch(Map<Long, List<TextLocation>> grid, Rectangle rectangle) {
+        TextLocation bestRegion = null;
+        double bestIou = 0;
+        for (long cell : getCells(rectangle)) {
+            List<TextLocation> candidates = grid.get(cell);
+            if (candidates == null) {
+                continue;
+            }
+            for (TextLocation candidate : candidates) {
+                Rectangle bounds = candidate.getRectangle();
+                double iou = getIou(bounds, rectangle);
+                // 识别结果落在区域容差范围内或与区域充分重叠时视为同一区域
+                if ((iou >= MIN_IOU || grow(bounds).contains(rectangle)) && (bestRegion == null || iou > bestIou)) {
+                    bestRegion = candidate;
+                    bestIou = iou;
+                }
+            }
+        }
+        return bestRegion;
+    }
+
+    private static double getIou(Rectangle a, Rectangle b) {
+        Rectangle intersection = a.intersection(b);
+        if (intersection.isEmpty()) {
+            return 0;
+        }
+        double intersectionArea = (double) intersection.width * intersection.height;
+        return intersectionArea / ((double) a.width * a.height + (double) b.width * b.height - intersectionArea);
+    }
+
+    private static Rectangle grow(Rectangle rectangle) {
+        Rectangle grown = new Rectangle(rectangle);
+        grown.grow(TOLERANCE, TOLERANCE);
+        return grown;
+    }
+
+    private static List<Long> getCells(Rectangle rectangle) {
+        int minX = Math.floorDiv(rectangle.x, CELL_SIZE);
+        int maxX = Math.floorDiv(rectangle.x + rectangle.width, CELL_SIZE);
+        int minY = Math.floorDiv(rectangle.y, CELL_SIZE);
+        int maxY = Math.floorDiv(rectangle.y + rectangle.height, CELL_SIZE);
+        List<Long> cells = new ArrayList<>((maxX - minX + 1) * (maxY - minY + 1));
+        for (int x = minX; x <= maxX; x++) {
+            for (int y = minY; y <= maxY; y++) {
+                cells.add(((long) x << 32) | (y & 0xffffffffL));
+            }
+        }
+        return cells;
+    }
+}
@@ -42,8 +42,6 @@ public class ImageSegmentConsumerImpl implements ImageSegmentConsumer {
     public void accept(BufferedImage resultImage, BufferedImage originalImage) {
         try {
             double scale = 720.0 / originalImage.getHeight();
-            CopyOnWriteArrayList<CustomLayout> customLayouts = videoInfo.getCropConf().getLayouts();
-            customLayouts.removeIf(customLayout -> customLayout instanceof ImageSegmentBlurLayout);
             ImageSegmentBlurLayout imageSegmentBlurLayout = new ImageSegmentBlurLayout();
             imageSegmentBlurLayout.setIndex(10);
             imageSegmentBlurLayout.setImage(resultImage);
@@ -52,14 +50,15 @@ public class ImageSegmentConsumerImpl implements ImageSegmentConsumer {
             imageSegmentBlurLayout.setY(0);
             imageSegmentBlurLayout.setWidth((int) (originalImage.getWidth() * scale));
             imageSegmentBlurLayout.setHeight((int) (originalImage.getHeight() * scale));
-            customLayouts.add(imageSegmentBlurLayout);
-            videoInfo.getCropConf().setCachedBlurBytes(null);
+            CopyOnWriteArrayList<CustomLayout> customLayouts = videoInfo.getCropConf().updateLayouts(layouts -> {
+                layouts.removeIf(customLayout -> customLayout instanceof ImageSegmentBlurLayout);
+                layouts.add(imageSegmentBlurLayout);
+            });
             MediaProxyTask mediaProxyTask = MediaProxyManager.getExecutedProxyTaskMap().get(videoInfo.getVideoId() + "_low");
             if (mediaProxyTask != null) {
                 VideoInfo lowVideoInfo = mediaProxyTask.getVideoInfo();
                 if (lowVideoInfo != null) {
                     lowVideoInfo.getCropConf().setLayouts(customLayouts);
-                    lowVideoInfo.getCropConf().setCachedBlurBytes(null);
                 }
             }
             log.info("Accepted image segment[videoId=" + videoInfo.getVideoId() + "]");
@@ -15,7 +15,6 @@
  * You should have received a copy of the GNU Affero General Public License
  * along with this program.  If not, see <https://www.gnu.org/licenses/>.
  */
-
 package site.alice.liveman.service.external.consumer.impl;
 
 import lombok.extern.slf4j.Slf4j;
@@ -25,6 +24,7 @@ import site.alice.liveman.mediaproxy.MediaProxyManager;
 import site.alice.liveman.mediaproxy.proxytask.MediaProxyTask;
 import site.alice.liveman.model.VideoInfo;
 import site.alice.liveman.service.broadcast.BroadcastServiceManager;
+import site.alice.liveman.service.external.RegionTracker;
 import site.alice.liveman.service.external.TextLocation;
 import site.alice.liveman.service.external.consumer.TextLocationConsumer;
 import site.alice.liveman.utils.ProcessUtil;
@@ -36,7 +36,6 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 
@@ -44,102 +43,112 @@ import java.util.concurrent.CopyOnWriteArrayList;
 public class TextLocationConsumerImpl implements TextLocationConsumer {
 
     private VideoInfo videoInfo;
+    private int       captureInterval;
+    private int       autoBlurSize;
 
-    public TextLocationConsumerImpl(VideoInfo videoInfo) {
+    /**
+     * @param captureInterval 保存识别记录的最小间隔(秒)，为0时不保存
+     * @param autoBlurSize    识别到评论区而节目没有设置模糊强度时开启的模糊强度，为0时不自动开启
+     */
+    public TextLocationConsumerImpl(VideoInfo videoInfo, int captureInterval, int autoBlurSize) {
         this.videoInfo = videoInfo;
+        this.captureInterval = captureInterval;
+        this.autoBlurSize = autoBlurSize;
     }
 
     @Override
     public void accept(List<TextLocation> textLocations, BufferedImage bufferedImage) {
         log.info("评论区识别[" + videoInfo.getVideoId() + "]:" + textLocations);
         try {
-            File easyDlDir = new File("./easydl/");
-            easyDlDir.mkdirs();
-            String dashFileName;
-            if (textLocations.size() > 1) {
-                // 可能是误识别，保存这次的识别记录
-                dashFileName = videoInfo.getVideoId() + "_" + System.currentTimeMillis();
-            } else {
-                dashFileName = videoInfo.getVideoId() + "_" + System.currentTimeMillis() / 600000;
+            long now = System.currentTimeMillis();
+            RegionTracker regionTracker = videoInfo.getRegionTracker();
+            if (regionTracker == null) {
+                regionTracker = new RegionTracker();
+                videoInfo.setRegionTracker(regionTracker);
             }
-            ImageIO.write(bufferedImage, "jpg", new File(easyDlDir + "/" + dashFileName + "_raw.jpg"));
-            try (OutputStream os = new FileOutputStream(easyDlDir + "/" + dashFileName + "_rect.txt")) {
-                for (TextLocation textLocation : textLocations) {
-                    os.write((textLocation.toString() + "\n").getBytes());
+            // 识别结果可能同时分发给多个节目，这里只读取不修改
+            List<TextLocation> detections = new ArrayList<>(textLocations.size());
+            for (TextLocation textLocation : textLocations) {
+                if (textLocation.getScore() == null || textLocation.getScore() >= 0.5) {
+                    detections.add(textLocation);
                 }
             }
-            textLocations.removeIf(textLocation -> textLocation.getScore() < 0.5);
-            List<TextLocation> videoInfoTextLocations = videoInfo.getTextLocations();
-            if (videoInfoTextLocations == null) {
-                videoInfoTextLocations = new ArrayList<>(textLocations);
-                videoInfo.setTextLocations(videoInfoTextLocations);
+            if (captureInterval > 0 && regionTracker.tryCapture(now, captureInterval * 1000L)) {
+                capture(textLocations, bufferedImage, now);
             }
-            // 清理已有区域
-            for (Iterator<TextLocation> iterator = videoInfoTextLocations.iterator(); iterator.hasNext(); ) {
-                TextLocation textLocation = iterator.next();
-                if (textLocation.getLastHitTime() == null) {
-                    textLocation.setLastHitTime(System.currentTimeMillis());
-                }
-                boolean hasContains = false;
-                for (Iterator<TextLocation> newIterator = textLocations.iterator(); newIterator.hasNext(); ) {
-                    TextLocation location = newIterator.next();
-                    Rectangle oldRectangle = new Rectangle(textLocation.getRectangle());
-                    oldRectangle.grow(20, 20); // 容差±20px
-                    Rectangle newRectangle = new Rectangle(location.getRectangle());
-                    newRectangle.grow(20, 20); // 容差±20px
-                    if (oldRectangle.contains(location.getRectangle())) {
-                        hasContains = true;
-                        newIterator.remove(); // 找到匹配的已有区域，从新增区域中删除
-                        textLocation.getRectangle().add(location.getRectangle());
-                        if (newRectangle.contains(textLocation.getRectangle())) {
-                            textLocation.setLastHitTime(System.currentTimeMillis());
-                        } else if (System.currentTimeMillis() - textLocation.getLastHitTime() > 60000) {
-                            // 评论区没有改变位置，但是被缩小
-                            textLocation.getRectangle().setBounds(location.getRectangle());
-                        }
-                    }
-                }
-                if (!hasContains && System.currentTimeMillis() - textLocation.getLastHitTime() > 60000) {
-                    // 如果某个区域超过30秒没有被命中，则淘汰
-                    iterator.remove();
-                }
+            boolean changed = regionTracker.update(detections, now);
+            if (!regionTracker.getRectangles().isEmpty()) {
+                enableAutoBlur();
+            }
+            CopyOnWriteArrayList<CustomLayout> currentLayouts = videoInfo.getCropConf().getLayouts();
+            if (!changed && currentLayouts != null && currentLayouts.containsAll(regionTracker.getLayouts())) {
+                // 区域没有变化时保留原有的渲染层，遮罩不需要重新绘制
+                return;
             }
 
-            // 新增加的区域
-            videoInfoTextLocations.addAll(textLocations);
-
-            // 设置新的自定义渲染层
+            // 一次性替换自定义渲染层，避免渲染时读到清理了一半的列表
             double scale = 720.0 / bufferedImage.getHeight();
-            CopyOnWriteArrayList<CustomLayout> customLayouts = videoInfo.getCropConf().getLayouts();
-            customLayouts.removeIf(customLayout -> customLayout instanceof RectangleBlurLayout);
-            for (TextLocation textLocation : videoInfoTextLocations) {
+            List<CustomLayout> rectangleBlurLayouts = new ArrayList<>();
+            for (Rectangle rectangle : regionTracker.getRectangles()) {
                 RectangleBlurLayout rectangleBlurLayout = new RectangleBlurLayout();
                 rectangleBlurLayout.setVideoInfo(videoInfo);
-                rectangleBlurLayout.setX((int) (textLocation.getRectangle().getX() * scale));
-                rectangleBlurLayout.setY((int) (textLocation.getRectangle().getY() * scale));
-                rectangleBlurLayout.setWidth((int) (textLocation.getRectangle().getWidth() * scale));
-                rectangleBlurLayout.setHeight((int) (textLocation.getRectangle().getHeight() * scale));
-                customLayouts.add(rectangleBlurLayout);
+                rectangleBlurLayout.setX((int) (rectangle.getX() * scale));
+                rectangleBlurLayout.setY((int) (rectangle.getY() * scale));
+                rectangleBlurLayout.setWidth((int) (rectangle.getWidth() * scale));
+                rectangleBlurLayout.setHeight((int) (rectangle.getHeight() * scale));
+                rectangleBlurLayouts.add(rectangleBlurLayout);
             }
-            videoInfo.getCropConf().setCachedBlurBytes(null);
-            MediaProxyTask mediaProxyTask = MediaProxyManager.getExecutedProxyTaskMap().get(videoInfo.getVideoId() + "_low");
-            if (mediaProxyTask != null) {
-                VideoInfo lowVideoInfo = mediaProxyTask.getVideoInfo();
-                if (lowVideoInfo != null) {
-                    lowVideoInfo.getCropConf().setLayouts(customLayouts);
-                    lowVideoInfo.getCropConf().setCachedBlurBytes(null);
-                    if (lowVideoInfo.getCropConf().getBlurSize() != 5) {
-                        videoInfo.getCropConf().setBlurSize(5);
-                        lowVideoInfo.getCropConf().setBlurSize(5);
-                        BroadcastServiceManager.BroadcastTask broadcastTask = videoInfo.getBroadcastTask();
-                        if (broadcastTask != null) {
-                            ProcessUtil.killProcess(broadcastTask.getPid());
-                        }
-                    }
-                }
+            CopyOnWriteArrayList<CustomLayout> customLayouts = videoInfo.getCropConf().updateLayouts(layouts -> {
+                layouts.removeIf(customLayout -> customLayout instanceof RectangleBlurLayout);
+                layouts.addAll(rectangleBlurLayouts);
+            });
+            regionTracker.setLayouts(rectangleBlurLayouts);
+            VideoInfo lowVideoInfo = getLowVideoInfo();
+            if (lowVideoInfo != null) {
+                lowVideoInfo.getCropConf().setLayouts(customLayouts);
             }
         } catch (Throwable e) {
             log.error("处理评论区识别失败", e);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * 识别到评论区而节目没有设置模糊强度时才开启模糊滤镜，滤镜结构发生变化需要重启推流进程
+     */
+    private void enableAutoBlur() {
+        if (autoBlurSize <= 0 || videoInfo.getCropConf().getBlurSize() > 0) {
+            return;
+        }
+        log.info("节目[" + videoInfo.getVideoId() + "]识别到评论区，开启模糊滤镜[blurSize=" + autoBlurSize + "]");
+        videoInfo.getCropConf().setBlurSize(autoBlurSize);
+        VideoInfo lowVideoInfo = getLowVideoInfo();
+        if (lowVideoInfo != null) {
+            lowVideoInfo.getCropConf().setBlurSize(autoBlurSize);
+        }
+        BroadcastServiceManager.BroadcastTask broadcastTask = videoInfo.getBroadcastTask();
+        if (broadcastTask != null) {
+            ProcessUtil.killProcess(broadcastTask.getPid());
+        }
+    }
+
+    private VideoInfo getLowVideoInfo() {
+        MediaProxyTask mediaProxyTask = MediaProxyManager.getExecutedProxyTaskMap().get(videoInfo.getVideoId() + "_low");
+        return mediaProxyTask != null ? mediaProxyTask.getVideoInfo() : null;
+    }
+
+    private void capture(List<TextLocation> textLocations, BufferedImage bufferedImage, long now) {
+        try {
+            File easyDlDir = new File("./easydl/");
+            easyDlDir.mkdirs();
+            String dashFileName = videoInfo.getVideoId() + "_" + now;
+            ImageIO.write(bufferedImage, "jpg", new File(easyDlDir + "/" + dashFileName + "_raw.jpg"));
+            try (OutputStream os = new FileOutputStream(easyDlDir + "/" + dashFileName + "_rect.txt")) {
+                for (TextLocation textLocation : textLocations) {
+                    os.write((textLocation.toString() + "\n").getBytes());
+                }
+            }
+        } catch (Throwable e) {
+            log.error("保存评论区识别记录失败[videoId=" + videoInfo.getVideoId() + "]", e);
+        }
+    }
+}
@@ -48,12 +48,14 @@ public class AliceCommentTextLocationService implements TextLocationService {
 
     @Autowired
     private ExternalAppSecretBO externalAppSecretBO;
+    private EDLAliceAipClient   client;
+    private String              clientSecret;
 
     @Override
     public void requireTextLocation(BufferedImage image, TextLocationConsumer consumer) {
         try {
             ExternalAppSecretDO ocrAppSecret = externalAppSecretBO.getAppSecret(ExternalServiceType.BAIDU_API);
-            EDLAliceAipClient client = new EDLAliceAipClient(ocrAppSecret.getAppId(), ocrAppSecret.getAppKey(), ocrAppSecret.getSecretKey());
+            EDLAliceAipClient client = getClient(ocrAppSecret);
             ByteArrayOutputStream bos = new ByteArrayOutputStream();
             ImageIO.write(image, "jpg", bos);
             JSONObject verifyResult = client.aliceComment(bos.toByteArray());
@@ -76,6 +78,18 @@ public class AliceCommentTextLocationService implements TextLocationService {
         }
     }
 
+    /**
+     * 复用同一个客户端以保留access_token，密钥变更后重新创建
+     */
+    private synchronized EDLAliceAipClient getClient(ExternalAppSecretDO appSecret) {
+        String secret = appSecret.getAppId() + ":" + appSecret.getAppKey() + ":" + appSecret.getSecretKey();
+        if (client == null || !secret.equals(clientSecret)) {
+            client = new EDLAliceAipClient(appSecret.getAppId(), appSecret.getAppKey(), appSecret.getSecretKey());
+            clientSecret = secret;
+        }
+        return client;
+    }
+
     class EDLAliceAipClient extends BaseClient {
 
         public static final String ALICE_COMMENT_URL = "https://aip.baidubce.com/rpc/2.0/ai_custom_pro/v1/detection/alice_comment";
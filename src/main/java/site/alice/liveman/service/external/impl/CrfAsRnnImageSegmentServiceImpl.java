@@ -28,18 +28,15 @@ import org.jsoup.select.Elements;
 import org.springframework.stereotype.Service;
 import site.alice.liveman.service.external.ImageSegmentService;
 import site.alice.liveman.service.external.consumer.ImageSegmentConsumer;
+import site.alice.liveman.utils.ImageMaskUtil;
 
 import javax.imageio.ImageIO;
 import java.awt.*;
 import java.awt.image.BufferedImage;
-import java.awt.image.ColorModel;
-import java.awt.image.Raster;
-import java.awt.image.WritableRaster;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.net.URLEncoder;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Base64;
 import java.util.List;
 
@@ -70,22 +67,11 @@ public class CrfAsRnnImageSegmentServiceImpl implements ImageSegmentService {
             BufferedImage originalImage = images.get(0);
             BufferedImage filterImage = images.get(1);
             int alpha = 180;
-            BufferedImage sameRangeImage = new BufferedImage(originalImage.getWidth(), originalImage.getHeight(),
-                    BufferedImage.TYPE_INT_ARGB);
             Graphics2D graphics = originalImage.createGraphics();
             graphics.setColor(new Color(192, 128, 128, alpha));
             graphics.fillRect(0, 0, originalImage.getWidth(), originalImage.getHeight());
-            Raster originalImageData = originalImage.getData();
-            Raster filterImageData = filterImage.getData();
-            int[] odata = new int[4];
-            int[] fdata = new int[4];
-            for (int i = 0; i < originalImage.getWidth(); i++) {
-                for (int j = 0; j < originalImage.getHeight(); j++) {
-                    if (Arrays.equals(originalImageData.getPixel(i, j, odata), filterImageData.getPixel(i, j, fdata))) {
-                        sameRangeImage.setRGB(i, j, Color.BLACK.getRGB());
-                    }
-                }
-            }
+            graphics.dispose();
+            BufferedImage sameRangeImage = ImageMaskUtil.buildSameColorMask(originalImage, filterImage);
             consumer.accept(sameRangeImage, image);
         } catch (Exception e) {
             throw new RuntimeException(e);
@@ -0,0 +1,36 @@
+/*
+ * <Alice LiveMan>
+ * Copyright (C) <2018>  <NekoSunflower>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package site.alice.liveman.service.external.impl;
+
+import org.springframework.stereotype.Service;
+import site.alice.liveman.service.external.ImageSegmentService;
+import site.alice.liveman.service.external.consumer.ImageSegmentConsumer;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * 不依赖外部接口的图像分割实现，始终返回全透明的遮罩，用于离线运行
+ */
+@Service
+public class LocalStubImageSegmentService implements ImageSegmentService {
+
+    @Override
+    public void imageSegment(BufferedImage image, ImageSegmentConsumer consumer) {
+        consumer.accept(new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB), image);
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * <Alice LiveMan>
+ * Copyright (C) <2018>  <NekoSunflower>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package site.alice.liveman.service.external.impl;
+
+import org.springframework.stereotype.Service;
+import site.alice.liveman.service.external.TextLocationService;
+import site.alice.liveman.service.external.consumer.TextLocationConsumer;
+
+import java.awt.image.BufferedImage;
+import java.util.Collections;
+
+/**
+ * 不依赖外部接口的文字定位实现，始终返回空结果，用于离线运行
+ */
+@Service
+public class LocalStubTextLocationService implements TextLocationService {
+
+    @Override
+    public void requireTextLocation(BufferedImage image, TextLocationConsumer consumer) {
+        consumer.accept(Collections.emptyList(), image);
+    }
+}
@@ -33,7 +33,6 @@ public abstract class LiveService {
         if (videoInfo != null) {
             videoInfo.setNeedRecord(channelInfo.isNeedRecord());
             if (channelInfo.getDefaultCropConf().isAutoBlur()) {
-                videoInfo.getCropConf().setBlurSize(5);
                 videoInfo.getCropConf().setAutoBlur(true);
                 videoInfo.getCropConf().setVideoBannedType(VideoBannedTypeEnum.CUSTOM_SCREEN);
             }
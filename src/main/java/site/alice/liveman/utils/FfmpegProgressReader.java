@@ -0,0 +1,285 @@
+/*
+ * <Alice LiveMan>
+ * Copyright (C) <2018>  <NekoSunflower>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package site.alice.liveman.utils;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 由一个共享线程轮询所有ffmpeg进程的输出管道，将-progress输出的key=value帧解析为ProgressSample，其余内容写入ProcessLogSink
+ */
+@Slf4j
+public class FfmpegProgressReader {
+
+    private static final long                  IDLE_SLEEP_MILLIS = 100;
+    private static final Pattern               PROGRESS_LINE     = Pattern.compile("^([a-z0-9_]+)=([^=]*)$");
+    private static final List<ProgressChannel> channels          = new CopyOnWriteArrayList<>();
+    private static final AtomicBoolean         started           = new AtomicBoolean();
+
+    /**
+     * 读取进程的标准输出和标准错误输出，listener为null时只记录日志
+     */
+    public static void register(Process process, ProcessLogSink logSink, ProgressListener listener) {
+        addChannel(new ProgressChannel(process, logSink, listener, true));
+    }
+
+    /**
+     * 只读取进程的标准错误输出，用于标准输出需要由调用方自行读取的进程
+     */
+    public static void registerErrorStream(Process process, ProcessLogSink logSink) {
+        addChannel(new ProgressChannel(process, logSink, null, false));
+    }
+
+    private static void addChannel(ProgressChannel channel) {
+        channels.add(channel);
+        if (started.compareAndSet(false, true)) {
+            ThreadPoolUtil.execute(FfmpegProgressReader::readLoop);
+        }
+    }
+
+    private static void readLoop() {
+        Thread.currentThread().setName("FfmpegProgressReader");
+        byte[] buffer = new byte[8192];
+        while (true) {
+            boolean idle = true;
+            for (ProgressChannel channel : channels) {
+                try {
+                    if (channel.poll(buffer)) {
+                        idle = false;
+                    } else if (!channel.process.isAlive()) {
+                        channels.remove(channel);
+                    }
+                } catch (Throwable e) {
+                    log.error("读取ffmpeg进程输出失败", e);
+                    channels.remove(channel);
+                }
+            }
+            if (idle) {
+                try {
+                    Thread.sleep(IDLE_SLEEP_MILLIS);
+                } catch (InterruptedException ignore) {
+                }
+            }
+        }
+    }
+
+    public interface ProgressListener {
+        void onProgress(ProgressSample sample);
+
+        /**
+         * 进程输出中不属于进度信息的行
+         */
+        default void onLogLine(String line) {
+        }
+    }
+
+    private static class ProgressChannel {
+        private final Process             process;
+        private final ProcessLogSink      logSink;
+        private final ProgressListener    listener;
+        private final LineReader          stdout;
+        private final LineReader          stderr;
+        private final Map<String, String> frame = new HashMap<>();
+
+        ProgressChannel(Process process, ProcessLogSink logSink, ProgressListener listener, boolean readStdout) {
+            this.process = process;
+            this.logSink = logSink;
+            this.listener = listener;
+            stdout = readStdout ? new LineReader(process.getInputStream()) : null;
+            stderr = new LineReader(process.getErrorStream());
+        }
+
+        /**
+         * @return 本次是否读取到了数据
+         */
+        boolean poll(byte[] buffer) throws IOException {
+            return (stdout != null && stdout.poll(buffer)) | stderr.poll(buffer);
+        }
+
+        private void onLine(String line) {
+            Matcher matcher = listener != null ? PROGRESS_LINE.matcher(line) : null;
+            if (matcher != null && matcher.find()) {
+                frame.put(matcher.group(1), matcher.group(2).trim());
+                if (matcher.group(1).equals("progress")) {
+                    ProgressSample sample = new ProgressSample(frame);
+                    frame.clear();
+                    try {
+                        listener.onProgress(sample);
+                    } catch (Throwable e) {
+                        log.error("处理ffmpeg进度信息失败", e);
+                    }
+                }
+                return;
+            }
+            logSink.append(line);
+            if (listener == null) {
+                return;
+            }
+            try {
+                listener.onLogLine(line);
+            } catch (Throwable e) {
+                log.error("处理ffmpeg日志失败", e);
+            }
+        }
+
+        private class LineReader {
+            private final InputStream           inputStream;
+            private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+            LineReader(InputStream inputStream) {
+                this.inputStream = inputStream;
+            }
+
+            boolean poll(byte[] buffer) throws IOException {
+                int available = inputStream.available();
+                if (available <= 0) {
+                    return false;
+                }
+                int length = inputStream.read(buffer, 0, Math.min(available, buffer.length));
+                for (int i = 0; i < length; i++) {
+                    byte b = buffer[i];
+                    if (b == '\n' || b == '\r') {
+                        if (line.size() > 0) {
+                            onLine(new String(line.toByteArray(), StandardCharsets.UTF_8));
+                            line.reset();
+                        }
+                    } else {
+                        line.write(b);
+                    }
+                }
+                return length > 0;
+            }
+        }
+    }
+
+    /**
+     * ffmpeg通过-progress输出的一帧进度信息，无法获取的数值为-1
+     */
+    public static class ProgressSample {
+        private final long    receiveTime = System.nanoTime();
+        private final long    frame;
+        private final float   fps;
+        private final float   bitrate;
+        private final long    totalSize;
+        private final long    outTimeMicros;
+        private final long    dupFrames;
+        private final long    dropFrames;
+        private final float   speed;
+        private final boolean end;
+
+        ProgressSample(Map<String, String> frame) {
+            this.frame = parseLong(frame.get("frame"));
+            fps = parseFloat(frame.get("fps"));
+            bitrate = parseFloat(frame.get("bitrate"));
+            totalSize = parseLong(frame.get("total_size"));
+            outTimeMicros = parseLong(frame.containsKey("out_time_us") ? frame.get("out_time_us") : frame.get("out_time_ms"));
+            dupFrames = parseLong(frame.get("dup_frames"));
+            dropFrames = parseLong(frame.get("drop_frames"));
+            speed = parseFloat(frame.get("speed"));
+            end = "end".equals(frame.get("progress"));
+        }
+
+        /**
+         * @return 收到该进度信息时的System.nanoTime()
+         */
+        public long getReceiveTime() {
+            return receiveTime;
+        }
+
+        public long getFrame() {
+            return frame;
+        }
+
+        public float getFps() {
+            return fps;
+        }
+
+        /**
+         * @return 输出码率(kbit/s)
+         */
+        public float getBitrate() {
+            return bitrate;
+        }
+
+        public long getTotalSize() {
+            return totalSize;
+        }
+
+        public long getOutTimeMicros() {
+            return outTimeMicros;
+        }
+
+        public long getDupFrames() {
+            return dupFrames;
+        }
+
+        public long getDropFrames() {
+            return dropFrames;
+        }
+
+        /**
+         * @return 处理速度相对于实时速度的倍数
+         */
+        public float getSpeed() {
+            return speed;
+        }
+
+        public boolean isEnd() {
+            return end;
+        }
+
+        @Override
+        public String toString() {
+            return "frame=" + frame + ", fps=" + fps + ", bitrate=" + bitrate + "kbits/s, outTime=" + outTimeMicros / 1000 + "ms, drop=" + dropFrames + ", dup=" + dupFrames + ", speed=" + speed + "x";
+        }
+
+        private static long parseLong(String value) {
+            try {
+                return value != null ? Long.parseLong(value) : -1;
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        private static float parseFloat(String value) {
+            if (value == null) {
+                return -1;
+            }
+            int end = 0;
+            while (end < value.length() && (Character.isDigit(value.charAt(end)) || value.charAt(end) == '.')) {
+                end++;
+            }
+            try {
+                return Float.parseFloat(value.substring(0, end));
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+    }
+}
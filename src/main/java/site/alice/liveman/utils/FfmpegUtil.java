@@ -33,7 +33,14 @@ import site.alice.liveman.model.VideoInfo;
 import site.alice.liveman.service.BroadcastServerService;
 
 import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.InputStreamReader;
+import java.util.Locale;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import static site.alice.liveman.mediaproxy.proxytask.MediaProxyTask.*;
 
@@ -41,23 +48,107 @@ import static site.alice.liveman.mediaproxy.proxytask.MediaProxyTask.*;
 @Component
 public class FfmpegUtil {
     @Autowired
-    private static       LiveManSetting liveManSetting;
-    private static final String         CUSTOM_SCREEN_URL = "http://" + MediaProxyManager.getIpAddress() + ":8080/api/drawing/screen/%s";
-    private static final String         BOXBLUR_MASK_URL  = "http://" + MediaProxyManager.getIpAddress() + ":8080/api/drawing/mask/%s";
+    private static          LiveManSetting liveManSetting;
+    private static final    String         CUSTOM_SCREEN_URL        = "http://" + MediaProxyManager.getIpAddress() + ":8080/api/drawing/screen/%s";
+    private static final    String         BOXBLUR_MASK_URL         = "http://" + MediaProxyManager.getIpAddress() + ":8080/api/drawing/mask/%s";
+    private static final    String         CUSTOM_SCREEN_STREAM_URL = "http://" + MediaProxyManager.getIpAddress() + ":8080/api/drawing/screenStream/%s?width=%d&height=%d";
+    private static final    String         BOXBLUR_MASK_STREAM_URL  = "http://" + MediaProxyManager.getIpAddress() + ":8080/api/drawing/maskStream/%s?width=%d&height=%d";
+    public static final     int            OVERLAY_FRAME_RATE       = 1;
+    private static final    int            OVERLAY_HEIGHT           = 720;
+    private static final    String         BLUR_FILTER              = "gblur@blur";
+    private static final    Pattern        FFMPEG_VERSION_PATTERN   = Pattern.compile("ffmpeg version n?(\\d+)\\.(\\d+)");
+    private static volatile String         versionCheckedFfmpegPath;
+    private static volatile boolean        blurCommandSupported;
 
     @Autowired
     public void setLiveManSetting(LiveManSetting liveManSetting) {
         FfmpegUtil.liveManSetting = liveManSetting;
     }
 
-    public static String buildKeyFrameCmdLine(String mediaUrl, String fileName) {
-        return liveManSetting.getFfmpegPath() + "\t-i\t" + mediaUrl + "\t-vframes\t1\t-y\t" + fileName;
+    /**
+     * 模糊滤镜带有实例名，推流过程中可以通过{@link #buildBlurCommand}直接调整模糊强度。
+     * ffmpeg低于4.3时gblur不支持运行时命令，仍使用原来的smartblur，调整强度时需要重启推流
+     */
+    private static String buildBlurFilter(int blurSize) {
+        if (isBlurCommandSupported()) {
+            return BLUR_FILTER + "=sigma=" + toBlurSigma(blurSize);
+        }
+        return "smartblur=" + blurSize + ":1";
+    }
+
+    /**
+     * @return 调整正在推流的ffmpeg模糊强度的命令，ffmpeg不支持时返回null
+     */
+    public static String buildBlurCommand(int blurSize) {
+        if (!isBlurCommandSupported()) {
+            return null;
+        }
+        return buildFilterCommand(BLUR_FILTER, "sigma", toBlurSigma(blurSize));
+    }
+
+    /**
+     * smartblur的半径参数是高斯核的方差，强度为1时换算为gblur的sigma取平方根，保持原有的模糊效果
+     */
+    private static String toBlurSigma(int blurSize) {
+        return String.format(Locale.ROOT, "%.2f", Math.sqrt(Math.max(blurSize, 0)));
+    }
+
+    /**
+     * 转播服务器的ffmpeg由本机同步，只需检查本机ffmpeg的版本，结果按ffmpeg路径缓存
+     *
+     * @return ffmpeg版本不低于4.3时可以在运行时调整gblur的sigma，无法识别版本号时视为不支持
+     */
+    public static boolean isBlurCommandSupported() {
+        String ffmpegPath = liveManSetting.getFfmpegPath();
+        if (!ffmpegPath.equals(versionCheckedFfmpegPath)) {
+            boolean supported = false;
+            try {
+                Process process = new ProcessBuilder(ffmpegPath, "-version").redirectErrorStream(true).start();
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                    String versionLine = reader.readLine();
+                    Matcher matcher = versionLine != null ? FFMPEG_VERSION_PATTERN.matcher(versionLine) : null;
+                    if (matcher != null && matcher.find()) {
+                        int major = Integer.parseInt(matcher.group(1));
+                        int minor = Integer.parseInt(matcher.group(2));
+                        supported = major > 4 || major == 4 && minor >= 3;
+                    }
+                    log.info("ffmpeg版本[" + versionLine + "]，" + (supported ? "支持" : "不支持") + "在推流时调整模糊强度");
+                }
+                process.waitFor(5, TimeUnit.SECONDS);
+            } catch (Exception e) {
+                log.error("获取ffmpeg版本失败[" + ffmpegPath + "]", e);
+            }
+            blurCommandSupported = supported;
+            versionCheckedFfmpegPath = ffmpegPath;
+        }
+        return blurCommandSupported;
+    }
+
+    /**
+     * @return 写入ffmpeg标准输入后立即发送给指定滤镜的命令，格式为"c 目标 时间 命令 参数"，时间为-1表示立即执行
+     */
+    public static String buildFilterCommand(String target, String command, String arg) {
+        return "c" + target + " -1 " + command + " " + arg + "\n";
+    }
+
+    /**
+     * 持续读取媒体流，只解码关键帧并以BMP格式逐帧写入标准输出
+     */
+    public static String buildKeyFrameGrabCmdLine(String mediaUrl) {
+        return liveManSetting.getFfmpegPath() + "\t-nostats\t-skip_frame\tnokey\t-i\t" + mediaUrl + "\t-an\t-vsync\t0\t-f\timage2pipe\t-vcodec\tbmp\tpipe:1";
     }
 
     public static String buildToLowFrameRateCmdLine(File srcFile, File dictFile) {
         return liveManSetting.getFfmpegPath() + "\t-i\t" + srcFile + "\t-r\t30\t-s\t1280x720\t-copyts\t-acodec\tcopy\t-qscale:v\t8\t" + dictFile + "\t-y";
     }
 
+    /**
+     * 从标准输入读取连续的TS流转码，按segmentTime切分输出到segmentDir，每生成一个分片向标准输出写入一行"文件名,开始时间,结束时间"
+     */
+    public static String buildToLowFrameRatePipeCmdLine(File segmentDir, long segmentTime) {
+        return liveManSetting.getFfmpegPath() + "\t-f\tmpegts\t-i\tpipe:0\t-r\t30\t-s\t1280x720\t-copyts\t-acodec\tcopy\t-qscale:v\t8\t-f\tsegment\t-segment_time\t" + segmentTime + "\t-segment_format\tmpegts\t-segment_list\tpipe:1\t-segment_list_type\tcsv\t" + segmentDir + "/%d.ts\t-y";
+    }
+
     public static String buildFfmpegCmdLine(VideoInfo videoInfo, String broadcastAddress) {
         String cmdLine = "\t-re\t-i\t\"" + videoInfo.getMediaProxyUrl() + "\"";
         VideoCropConf cropConf = videoInfo.getCropConf();
@@ -74,16 +165,16 @@ public class FfmpegUtil {
                 long height = Math.round(keyFrame.getHeight() * scale / 2) * 2;
                 String filter;
                 if (cropConf.getBlurSize() > 0) {
-                    cmdLine += "\t-framerate\t1\t-loop\t1\t-i\t\"" + String.format(BOXBLUR_MASK_URL, videoInfo.getVideoId()) + "\"";
+                    cmdLine += buildOverlayInput(BOXBLUR_MASK_URL, BOXBLUR_MASK_STREAM_URL, videoInfo.getVideoId(), keyFrame);
                     if (scale == 1 && broadcastResolution.getFrameRate().equals(keyFrame.getFps()) && broadcastResolution != VideoResolutionEnum.R1080F60) {
-                        filter = "[0:v]smartblur=" + cropConf.getBlurSize() + ":1[blur];[1:v]fps=30,scale=" + width + "x" + height + "[mask];[2:v]scale=" + width + "x" + height + "[screen];[blur][mask]alphamerge[alf];[0:v][alf]overlay[v];[v][screen]overlay";
+                        filter = "[0:v]" + buildBlurFilter(cropConf.getBlurSize()) + "[blur];[1:v]fps=30,scale=" + width + "x" + height + "[mask];[2:v]scale=" + width + "x" + height + "[screen];[blur][mask]alphamerge[alf];[0:v][alf]overlay[v];[v][screen]overlay";
                     } else {
-                        filter = "[0:v]fps=" + broadcastResolution.getFrameRate() + ",scale=" + width + "x" + height + ",split=2[ref0][ref1];[ref0]" + (broadcastResolution == VideoResolutionEnum.R1080F60 ? "fps=15," : "") + "smartblur=" + cropConf.getBlurSize() + ":1[blur];[1:v]fps=30,scale=" + width + "x" + height + "[mask];[2:v]scale=" + width + "x" + height + "[screen];[blur][mask]alphamerge[alf];[ref1][alf]overlay[v];[v][screen]overlay";
+                        filter = "[0:v]fps=" + broadcastResolution.getFrameRate() + ",scale=" + width + "x" + height + ",split=2[ref0][ref1];[ref0]" + (broadcastResolution == VideoResolutionEnum.R1080F60 ? "fps=15," : "") + buildBlurFilter(cropConf.getBlurSize()) + "[blur];[1:v]fps=30,scale=" + width + "x" + height + "[mask];[2:v]scale=" + width + "x" + height + "[screen];[blur][mask]alphamerge[alf];[ref1][alf]overlay[v];[v][screen]overlay";
                     }
                 } else {
                     filter = "[0:v]fps=" + broadcastResolution.getFrameRate() + ",scale=" + width + "x" + height + "[v];[1:v]scale=" + width + "x" + height + "[screen];[v][screen]overlay";
                 }
-                cmdLine += "\t-framerate\t1\t-loop\t1\t-i\t\"" + String.format(CUSTOM_SCREEN_URL, videoInfo.getVideoId()) + "\"\t-filter_complex\t\"" + filter + "\"\t-vcodec\th264\t-preset\tultrafast";
+                cmdLine += buildOverlayInput(CUSTOM_SCREEN_URL, CUSTOM_SCREEN_STREAM_URL, videoInfo.getVideoId(), keyFrame) + "\t-filter_complex\t\"" + filter + "\"\t-vcodec\th264\t-preset\tultrafast";
             } else {
                 log.error("无法获取节目[" + videoInfo.getVideoUnionId() + "]的视频源信息");
                 return null;
@@ -95,6 +186,19 @@ public class FfmpegUtil {
             cmdLine += "\t-ac\t1";
         }
         cmdLine += "\t-acodec\taac\t-b:a\t130K\t-f\tflv\t\"" + broadcastAddress + "\"";
-        return liveManSetting.getFfmpegPath() + cmdLine;
+        // 推流进度通过标准输出以key=value的形式报告，由FfmpegProgressReader解析
+        return liveManSetting.getFfmpegPath() + "\t-progress\tpipe:1" + cmdLine;
+    }
+
+    /**
+     * @return 叠加层的ffmpeg输入参数，开启原始帧传输时持续读取rawvideo格式的RGBA帧，否则循环请求PNG图片
+     */
+    private static String buildOverlayInput(String imageUrl, String streamUrl, String videoId, KeyFrame keyFrame) {
+        if (liveManSetting.getOverlayRawStream()) {
+            // 与DrawingController的叠加层画布尺寸一致：高度720，宽度按源的宽高比计算
+            int width = (int) (keyFrame.getWidth() * ((double) OVERLAY_HEIGHT / keyFrame.getHeight()));
+            return "\t-f\trawvideo\t-pix_fmt\trgba\t-s\t" + width + "x" + OVERLAY_HEIGHT + "\t-framerate\t" + OVERLAY_FRAME_RATE + "\t-i\t\"" + String.format(streamUrl, videoId, width, OVERLAY_HEIGHT) + "\"";
+        }
+        return "\t-framerate\t" + OVERLAY_FRAME_RATE + "\t-loop\t1\t-i\t\"" + String.format(imageUrl, videoId) + "\"";
     }
 }
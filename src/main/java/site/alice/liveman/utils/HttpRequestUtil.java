@@ -19,8 +19,7 @@ package site.alice.liveman.utils;
 
 import com.alibaba.fastjson.JSON;
 import com.alibaba.fastjson.serializer.SerializerFeature;
-import com.alibaba.fastjson.util.IOUtils;
-import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpHost;
@@ -62,6 +61,8 @@ import java.net.Socket;
 import java.net.URI;
 import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.zip.GZIPInputStream;
@@ -106,10 +107,18 @@ public class HttpRequestUtil {
     }
 
     public static String downloadUrl(URI url, String cookies, Map<String, String> requestProperties, Charset charset) throws IOException {
+        return downloadUrl(url, cookies, requestProperties, charset, 5000);
+    }
+
+    public static String downloadUrl(URI url, Charset charset, int socketTimeout) throws IOException {
+        return downloadUrl(url, null, Collections.emptyMap(), charset, socketTimeout);
+    }
+
+    public static String downloadUrl(URI url, String cookies, Map<String, String> requestProperties, Charset charset, int socketTimeout) throws IOException {
         HttpGet httpGet = new HttpGet(url);
         HttpClientContext context = HttpClientContext.create();
         RequestConfig.Builder builder = RequestConfig.custom();
-        builder.setConnectTimeout(2000).setConnectionRequestTimeout(2000).setSocketTimeout(5000).setCookieSpec(CookieSpecs.IGNORE_COOKIES).setRedirectsEnabled(true);
+        builder.setConnectTimeout(2000).setConnectionRequestTimeout(2000).setSocketTimeout(socketTimeout).setCookieSpec(CookieSpecs.IGNORE_COOKIES).setRedirectsEnabled(true);
         httpGet.setConfig(builder.build());
         if (StringUtils.isNotBlank(cookies)) {
             httpGet.setHeader("Cookie", cookies);
@@ -166,12 +175,15 @@ public class HttpRequestUtil {
             sb.append("\t--data\t").append(URLEncodedUtils.format(nameValuePairs, charset));
         }
         sb.append("\t").append(url);
-        String logName = UUID.randomUUID().toString();
-        long remoteProcess = ProcessUtil.createRemoteProcess(sb.toString(), serverInfo, true, logName);
+        long remoteProcess = ProcessUtil.createRemoteProcess(sb.toString(), serverInfo, true, null);
         ProcessUtil.AliceProcess aliceProcess = ProcessUtil.getAliceProcess(remoteProcess);
-        File logFile = aliceProcess.getProcessBuilder().redirectOutput().file();
+        Future<String> output = ThreadPoolUtil.submit(() -> IOUtils.toString(aliceProcess.getInputStream(), charset));
         if (aliceProcess.waitFor(10, TimeUnit.SECONDS)) {
-            return FileUtils.readFileToString(logFile);
+            try {
+                return output.get();
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
         } else {
             aliceProcess.destroy();
             throw new TimeoutException("downloadWithRemoteCUrl Timeout!");
@@ -232,6 +244,10 @@ public class HttpRequestUtil {
         try (CloseableHttpResponse httpResponse = client.execute(httpGet, context)) {
             HttpEntity responseEntity = httpResponse.getEntity();
             if (httpResponse.getStatusLine().getStatusCode() != 200) {
+                if (httpResponse.getStatusLine().getStatusCode() == 404) {
+                    EntityUtils.consume(responseEntity);
+                    throw new FileNotFoundException(httpResponse.getStatusLine().getStatusCode() + " " + httpResponse.getStatusLine().getReasonPhrase());
+                }
                 throw new IOException(httpResponse.getStatusLine().getStatusCode() + " " + httpResponse.getStatusLine().getReasonPhrase() + "\n Headers:" + Arrays.toString(httpResponse.getAllHeaders()) + "\n" + EntityUtils.toString(responseEntity));
             }
             return EntityUtils.toByteArray(responseEntity);
@@ -241,6 +257,45 @@ public class HttpRequestUtil {
         }
     }
 
+    /**
+     * 下载url并将响应内容以流的形式交给handler处理，避免先将整个响应体读入内存
+     */
+    public static <T> T downloadUrl(URI url, EntityStreamHandler<T> handler) throws IOException {
+        return downloadUrl(new HttpGet(url), handler);
+    }
+
+    /**
+     * 以流的方式处理响应体，调用方可以通过httpGet.abort()中断正在进行的下载
+     */
+    public static <T> T downloadUrl(HttpGet httpGet, EntityStreamHandler<T> handler) throws IOException {
+        HttpClientContext context = HttpClientContext.create();
+        RequestConfig.Builder builder = RequestConfig.custom();
+        builder.setConnectTimeout(2000).setConnectionRequestTimeout(2000).setSocketTimeout(5000).setCookieSpec(CookieSpecs.IGNORE_COOKIES).setRedirectsEnabled(true);
+        httpGet.setConfig(builder.build());
+        httpGet.addHeader("Accept", "*/*");
+        httpGet.addHeader("Accept-Encoding", "gzip, deflate");
+        httpGet.addHeader("User-Agent", "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/70.0.3538.77 Safari/537.36");
+        try (CloseableHttpResponse httpResponse = client.execute(httpGet, context)) {
+            HttpEntity responseEntity = httpResponse.getEntity();
+            if (httpResponse.getStatusLine().getStatusCode() != 200) {
+                if (httpResponse.getStatusLine().getStatusCode() == 404) {
+                    EntityUtils.consume(responseEntity);
+                    throw new FileNotFoundException(httpResponse.getStatusLine().getStatusCode() + " " + httpResponse.getStatusLine().getReasonPhrase());
+                }
+                throw new IOException(httpResponse.getStatusLine().getStatusCode() + " " + httpResponse.getStatusLine().getReasonPhrase() + "\n Headers:" + Arrays.toString(httpResponse.getAllHeaders()) + "\n" + EntityUtils.toString(responseEntity));
+            }
+            try (InputStream is = responseEntity.getContent()) {
+                if (responseEntity.getContentEncoding() != null && StringUtils.containsIgnoreCase(responseEntity.getContentEncoding().getValue(), "gzip")) {
+                    return handler.handle(new GZIPInputStream(is), -1);
+                }
+                return handler.handle(is, responseEntity.getContentLength());
+            }
+        } catch (IllegalStateException e) {
+            initClient();
+            throw e;
+        }
+    }
+
     public static HttpResponse getHttpResponse(URI url) throws IOException {
         return getHttpResponse(url, null, null);
     }
@@ -324,6 +379,13 @@ public class HttpRequestUtil {
         }
     }
 
+    public interface EntityStreamHandler<T> {
+        /**
+         * @param contentLength 响应体长度，未知时为负数
+         */
+        T handle(InputStream is, long contentLength) throws IOException;
+    }
+
     static class ProxySSLConnectionSocketFactory extends SSLConnectionSocketFactory {
 
         public ProxySSLConnectionSocketFactory(SSLContext sslContext) {
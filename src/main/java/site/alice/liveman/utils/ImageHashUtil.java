@@ -0,0 +1,76 @@
+/*
+ * <Alice LiveMan>
+ * Copyright (C) <2018>  <NekoSunflower>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package site.alice.liveman.utils;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+public class ImageHashUtil {
+
+    /**
+     * 计算图像的差异哈希(dHash)，画面内容相近的图像得到的哈希只有少数位不同
+     */
+    public static long differenceHash(BufferedImage image) {
+        BufferedImage thumbnail = new BufferedImage(9, 8, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D graphics = thumbnail.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        graphics.drawImage(image, 0, 0, 9, 8, null);
+        graphics.dispose();
+        int[] pixels = thumbnail.getRaster().getPixels(0, 0, 9, 8, (int[]) null);
+        long hash = 0;
+        for (int y = 0; y < 8; y++) {
+            for (int x = 0; x < 8; x++) {
+                hash <<= 1;
+                if (pixels[y * 9 + x] < pixels[y * 9 + x + 1]) {
+                    hash |= 1;
+                }
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * 计算图像尺寸和全部像素的摘要，只有像素完全相同的图像才会得到相同的摘要
+     */
+    public static String contentDigest(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        MessageDigest digest = DigestUtils.getMd5Digest();
+        int[] row = new int[width];
+        ByteBuffer buffer = ByteBuffer.allocate(width * 4);
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            buffer.clear();
+            buffer.asIntBuffer().put(row);
+            digest.update(buffer.array());
+        }
+        return width + "x" + height + ":" + Hex.encodeHexString(digest.digest());
+    }
+
+    /**
+     * @return 两个哈希之间不同的位数
+     */
+    public static int distance(long hash1, long hash2) {
+        return Long.bitCount(hash1 ^ hash2);
+    }
+}
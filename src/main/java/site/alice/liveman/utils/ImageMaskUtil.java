@@ -0,0 +1,134 @@
+/*
+ * <Alice LiveMan>
+ * Copyright (C) <2018>  <NekoSunflower>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package site.alice.liveman.utils;
+
+import java.awt.*;
+import java.awt.image.*;
+import java.util.stream.IntStream;
+
+/**
+ * 直接在图像的像素数组上比较两张图片，按行分块并行计算，输出每像素1位的遮罩图像
+ */
+public class ImageMaskUtil {
+
+    private static final int             ROWS_PER_TASK    = 16;
+    private static final IndexColorModel MASK_COLOR_MODEL = new IndexColorModel(1, 2, new byte[]{0, 0}, new byte[]{0, 0}, new byte[]{0, 0}, new byte[]{0, (byte) 255});
+
+    /**
+     * @return 与输入同尺寸的遮罩，两张图片颜色相同的像素为不透明的黑色，其余为透明
+     */
+    public static BufferedImage buildSameColorMask(BufferedImage imageA, BufferedImage imageB) {
+        int width = imageA.getWidth();
+        int height = imageA.getHeight();
+        if (imageB.getWidth() != width || imageB.getHeight() != height) {
+            throw new IllegalArgumentException("image size mismatch: " + width + "x" + height + " != " + imageB.getWidth() + "x" + imageB.getHeight());
+        }
+        if (imageA.getType() != imageB.getType() || getPixelStride(imageA) == 0 || getPixelStride(imageB) == 0) {
+            // 无法直接比较像素数组时统一转换为ARGB
+            imageA = toIntArgb(imageA);
+            imageB = toIntArgb(imageB);
+        }
+        BufferedImage mask = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_BINARY, MASK_COLOR_MODEL);
+        byte[] maskData = ((DataBufferByte) mask.getRaster().getDataBuffer()).getData();
+        int maskStride = (width + 7) / 8;
+        DataBuffer bufferA = imageA.getRaster().getDataBuffer();
+        DataBuffer bufferB = imageB.getRaster().getDataBuffer();
+        int taskCount = (height + ROWS_PER_TASK - 1) / ROWS_PER_TASK;
+        if (bufferA instanceof DataBufferInt) {
+            int[] dataA = ((DataBufferInt) bufferA).getData();
+            int[] dataB = ((DataBufferInt) bufferB).getData();
+            // TYPE_INT_RGB和TYPE_INT_BGR的最高字节没有意义
+            int colorMask = imageA.getColorModel().hasAlpha() ? 0xffffffff : 0x00ffffff;
+            IntStream.range(0, taskCount).parallel().forEach(task -> {
+                int endRow = Math.min(height, (task + 1) * ROWS_PER_TASK);
+                for (int y = task * ROWS_PER_TASK; y < endRow; y++) {
+                    int offset = y * width;
+                    int maskOffset = y * maskStride;
+                    for (int x = 0; x < width; x++) {
+                        if (((dataA[offset + x] ^ dataB[offset + x]) & colorMask) == 0) {
+                            maskData[maskOffset + (x >> 3)] |= 0x80 >> (x & 7);
+                        }
+                    }
+                }
+            });
+        } else {
+            byte[] dataA = ((DataBufferByte) bufferA).getData();
+            byte[] dataB = ((DataBufferByte) bufferB).getData();
+            int pixelStride = getPixelStride(imageA);
+            IntStream.range(0, taskCount).parallel().forEach(task -> {
+                int endRow = Math.min(height, (task + 1) * ROWS_PER_TASK);
+                for (int y = task * ROWS_PER_TASK; y < endRow; y++) {
+                    int offset = y * width * pixelStride;
+                    int maskOffset = y * maskStride;
+                    for (int x = 0; x < width; x++, offset += pixelStride) {
+                        boolean same = true;
+                        for (int i = 0; i < pixelStride && same; i++) {
+                            same = dataA[offset + i] == dataB[offset + i];
+                        }
+                        if (same) {
+                            maskData[maskOffset + (x >> 3)] |= 0x80 >> (x & 7);
+                        }
+                    }
+                }
+            });
+        }
+        return mask;
+    }
+
+    /**
+     * @return 像素按行连续存放、可以直接比较数组时每个像素占用的数组元素数，否则返回0
+     */
+    private static int getPixelStride(BufferedImage image) {
+        WritableRaster raster = image.getRaster();
+        if (raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0 || raster.getDataBuffer().getNumBanks() != 1 || raster.getDataBuffer().getOffset() != 0) {
+            return 0;
+        }
+        int pixelStride;
+        switch (image.getType()) {
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB:
+            case BufferedImage.TYPE_INT_ARGB_PRE:
+            case BufferedImage.TYPE_INT_BGR:
+                pixelStride = 1;
+                break;
+            case BufferedImage.TYPE_3BYTE_BGR:
+                pixelStride = 3;
+                break;
+            case BufferedImage.TYPE_4BYTE_ABGR:
+            case BufferedImage.TYPE_4BYTE_ABGR_PRE:
+                pixelStride = 4;
+                break;
+            default:
+                return 0;
+        }
+        // 子图像或者行尾有填充时像素不是连续存放的
+        return raster.getDataBuffer().getSize() == image.getWidth() * image.getHeight() * pixelStride ? pixelStride : 0;
+    }
+
+    private static BufferedImage toIntArgb(BufferedImage image) {
+        if (image.getType() == BufferedImage.TYPE_INT_ARGB && getPixelStride(image) != 0) {
+            return image;
+        }
+        BufferedImage argbImage = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        Graphics2D graphics = argbImage.createGraphics();
+        graphics.setComposite(AlphaComposite.Src);
+        graphics.drawImage(image, 0, 0, null);
+        graphics.dispose();
+        return argbImage;
+    }
+}
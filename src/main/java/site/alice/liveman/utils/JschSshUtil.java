@@ -20,20 +20,27 @@ package site.alice.liveman.utils;
 
 import com.jcraft.jsch.*;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
 import site.alice.liveman.model.ServerInfo;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
-import java.util.Properties;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 @Slf4j
 public class JschSshUtil implements Closeable {
-    private String  username;
-    private String  password;
-    private String  host;
-    private Integer port;
-    private Session session;
+    private static final String                         MANIFEST_SUFFIX = ".sha256";
+    private static final Map<String, LocalFileChecksum> checksumCache   = new ConcurrentHashMap<>();
+
+    private String     username;
+    private String     password;
+    private String     host;
+    private Integer    port;
+    private ServerInfo serverInfo;
 
     private InputStream  in;
     private OutputStream out;
@@ -76,6 +83,7 @@ public class JschSshUtil implements Closeable {
         this.password = serverInfo.getPassword();
         this.host = serverInfo.getAddress();
         this.port = serverInfo.getPort();
+        this.serverInfo = serverInfo;
     }
 
     public InputStream getIn() {
@@ -103,25 +111,13 @@ public class JschSshUtil implements Closeable {
     }
 
     /**
-     * 开启session
+     * 开启session，会话由SshSessionPool复用，不会随本对象关闭
      *
      * @return
      * @throws JSchException
      */
     public Session openSession() throws JSchException {
-        JSch jsch = new JSch();
-        if (session == null || !session.isConnected()) {
-            Session session = jsch.getSession(username, host, port);
-            Properties sshConfig = new Properties();
-            sshConfig.put("StrictHostKeyChecking", "no");
-            session.setInputStream(in);
-            session.setOutputStream(out);
-            session.setConfig(sshConfig);
-            session.setPassword(password);
-            session.connect(2000);
-            this.session = session;
-        }
-        return session;
+        return SshSessionPool.getSession(serverInfo);
     }
 
     public void transferFile(String sourceFile, String distFile) throws JSchException, SftpException {
@@ -140,6 +136,73 @@ public class JschSshUtil implements Closeable {
         }
     }
 
+    /**
+     * 按SHA-256同步文件，远程的校验记录(distFile.sha256)与本地一致时跳过传输，否则断点续传到以校验值命名的临时文件后再替换目标文件
+     *
+     * @return 是否实际传输了文件
+     */
+    public boolean syncFile(String sourceFile, String distFile) throws JSchException, SftpException, IOException {
+        File localFile = new File(sourceFile);
+        String checksum = getChecksum(localFile);
+        String manifestFile = distFile + MANIFEST_SUFFIX;
+        ChannelSftp channel = null;
+        try {
+            channel = (ChannelSftp) openSession().openChannel("sftp");
+            channel.connect(2000);
+            if (checksum.equals(readRemoteFile(channel, manifestFile)) && getRemoteSize(channel, distFile) == localFile.length()) {
+                log.info("syncFile skip " + sourceFile + ", remote@" + channel.getSession().getHost() + " " + distFile + " is up to date");
+                return false;
+            }
+            mkdirs(channel, FilenameUtils.getFullPath(distFile));
+            String partFile = distFile + "." + checksum.substring(0, 16) + ".part";
+            log.info("syncFile local " + sourceFile + " to remote@" + channel.getSession().getHost() + " " + partFile + "(resume from " + Math.max(getRemoteSize(channel, partFile), 0) + ")");
+            channel.put(sourceFile, partFile, ChannelSftp.RESUME);
+            try {
+                channel.rm(distFile);
+            } catch (SftpException e) {
+                if (e.id != ChannelSftp.SSH_FX_NO_SUCH_FILE) {
+                    throw e;
+                }
+            }
+            channel.rename(partFile, distFile);
+            channel.chmod(509, distFile);
+            channel.put(new ByteArrayInputStream(checksum.getBytes(StandardCharsets.UTF_8)), manifestFile);
+            return true;
+        } finally {
+            if (channel != null) {
+                channel.disconnect();
+            }
+        }
+    }
+
+    private static String getChecksum(File file) throws IOException {
+        LocalFileChecksum cached = checksumCache.get(file.getAbsolutePath());
+        if (cached != null && cached.length == file.length() && cached.lastModified == file.lastModified()) {
+            return cached.checksum;
+        }
+        try (InputStream is = new FileInputStream(file)) {
+            cached = new LocalFileChecksum(file.length(), file.lastModified(), DigestUtils.sha256Hex(is));
+        }
+        checksumCache.put(file.getAbsolutePath(), cached);
+        return cached.checksum;
+    }
+
+    private static String readRemoteFile(ChannelSftp channel, String remoteFile) throws IOException {
+        try (InputStream is = channel.get(remoteFile)) {
+            return IOUtils.toString(is, StandardCharsets.UTF_8).trim();
+        } catch (SftpException e) {
+            return null;
+        }
+    }
+
+    private static long getRemoteSize(ChannelSftp channel, String remoteFile) {
+        try {
+            return channel.lstat(remoteFile).getSize();
+        } catch (SftpException e) {
+            return -1;
+        }
+    }
+
     private void mkdirs(ChannelSftp sftp, String distPath) throws SftpException {
         sftp.cd("/");
         String[] folders = distPath.split("/");
@@ -161,12 +224,18 @@ public class JschSshUtil implements Closeable {
 
     @Override
     public void close() {
-        try {
-            if (session != null) {
-                session.disconnect();
-            }
-        } catch (Throwable ignore) {
+        // 会话由SshSessionPool复用，sftp通道在各个传输方法中自行关闭
+    }
+
+    private static class LocalFileChecksum {
+        private final long   length;
+        private final long   lastModified;
+        private final String checksum;
 
+        LocalFileChecksum(long length, long lastModified, String checksum) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.checksum = checksum;
         }
     }
 }
@@ -0,0 +1,151 @@
+/*
+ * <Alice LiveMan>
+ * Copyright (C) <2018>  <NekoSunflower>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package site.alice.liveman.utils;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 子进程输出日志：内存中保留每个节目最近的输出行供查询，由后台任务异步写入磁盘，按大小滚动并限制每个节目保留的文件数量
+ */
+@Slf4j
+public class ProcessLogSink {
+
+    private static final int                         MEMORY_LIMIT_CHARS    = 64 * 1024;
+    private static final long                        MAX_FILE_BYTES        = 5 * 1024 * 1024;
+    private static final int                         MAX_ROTATED_FILES     = 4;
+    private static final long                        FLUSH_INTERVAL_MILLIS = 1000;
+    private static final long                        IDLE_EXPIRE_MILLIS    = TimeUnit.MINUTES.toMillis(10);
+    private static final String                      CURRENT_LOG_NAME      = "current.log";
+    private static final Map<String, ProcessLogSink> sinkMap               = new ConcurrentHashMap<>();
+    private static final AtomicBoolean               flusherStarted        = new AtomicBoolean();
+    private final        String                      name;
+    private final        File                        logDir;
+    private final        ArrayDeque<String>          lines                 = new ArrayDeque<>();
+    private              int                         lineChars;
+    private              StringBuilder               pending               = new StringBuilder();
+    private volatile     long                        lastAppendTime        = System.currentTimeMillis();
+
+    private ProcessLogSink(String name) {
+        this.name = name;
+        logDir = new File("logs/ffmpeg/" + name);
+    }
+
+    public static ProcessLogSink getSink(String name) {
+        ProcessLogSink sink = sinkMap.computeIfAbsent(name, ProcessLogSink::new);
+        if (flusherStarted.compareAndSet(false, true)) {
+            ThreadPoolUtil.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flushAll();
+                    ThreadPoolUtil.schedule(this, FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                }
+            }, FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        return sink;
+    }
+
+    /**
+     * @return 指定节目最近输出的lineCount行日志，没有记录时返回空列表
+     */
+    public static List<String> getLastLines(String name, int lineCount) {
+        ProcessLogSink sink = sinkMap.get(name);
+        return sink != null ? sink.getLastLines(lineCount) : Collections.emptyList();
+    }
+
+    public void append(String line) {
+        synchronized (this) {
+            lines.addLast(line);
+            lineChars += line.length();
+            while (lineChars > MEMORY_LIMIT_CHARS && lines.size() > 1) {
+                lineChars -= lines.removeFirst().length();
+            }
+            pending.append(line).append('\n');
+        }
+        lastAppendTime = System.currentTimeMillis();
+        if (sinkMap.get(name) != this) {
+            // 闲置后被移出的日志重新有输出时需要重新登记，否则不会再被写入磁盘
+            sinkMap.putIfAbsent(name, this);
+        }
+    }
+
+    public synchronized List<String> getLastLines(int lineCount) {
+        List<String> lastLines = new ArrayList<>(Math.max(0, Math.min(lineCount, lines.size())));
+        Iterator<String> iterator = lines.descendingIterator();
+        while (iterator.hasNext() && lastLines.size() < lineCount) {
+            lastLines.add(iterator.next());
+        }
+        Collections.reverse(lastLines);
+        return lastLines;
+    }
+
+    private static void flushAll() {
+        for (ProcessLogSink sink : sinkMap.values()) {
+            try {
+                sink.flush();
+            } catch (Throwable e) {
+                log.error("写入进程日志失败[" + sink.name + "]", e);
+            }
+            if (System.currentTimeMillis() - sink.lastAppendTime > IDLE_EXPIRE_MILLIS) {
+                sinkMap.remove(sink.name, sink);
+            }
+        }
+    }
+
+    private void flush() throws IOException {
+        StringBuilder data;
+        synchronized (this) {
+            if (pending.length() == 0) {
+                return;
+            }
+            data = pending;
+            pending = new StringBuilder();
+        }
+        logDir.mkdirs();
+        File logFile = new File(logDir, CURRENT_LOG_NAME);
+        if (logFile.length() > MAX_FILE_BYTES) {
+            rotate(logFile);
+        }
+        try (OutputStream os = new FileOutputStream(logFile, true)) {
+            os.write(data.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private void rotate(File logFile) {
+        if (!logFile.renameTo(new File(logDir, System.currentTimeMillis() + ".log"))) {
+            log.warn("无法滚动进程日志文件[" + logFile + "]");
+            return;
+        }
+        File[] rotatedFiles = logDir.listFiles((dir, fileName) -> fileName.endsWith(".log") && !fileName.equals(CURRENT_LOG_NAME));
+        if (rotatedFiles != null && rotatedFiles.length > MAX_ROTATED_FILES) {
+            Arrays.sort(rotatedFiles, Comparator.comparing(File::getName));
+            for (int i = 0; i < rotatedFiles.length - MAX_ROTATED_FILES; i++) {
+                rotatedFiles[i].delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * <Alice LiveMan>
+ * Copyright (C) <2018>  <NekoSunflower>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package site.alice.liveman.utils;
+
+import com.sun.jna.Platform;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 由一个共享线程跟踪所有子进程的生命周期：进程退出时完成对应的Future，超过期限的进程会被强制终止，并定期从/proc采样CPU和内存占用
+ */
+@Slf4j
+public class ProcessSupervisor {
+
+    private static final long                         SCAN_INTERVAL_MILLIS   = 100;
+    private static final long                         SAMPLE_INTERVAL_MILLIS = 1000;
+    private static final long                         CLOCK_TICKS_PER_SECOND = 100;
+    private static final long                         PAGE_SIZE              = 4096;
+    private static final boolean                      PROC_AVAILABLE         = Platform.isLinux() && new File("/proc/self/stat").exists();
+    private static final Map<Long, SupervisedProcess> processMap             = new ConcurrentHashMap<>();
+    private static final AtomicBoolean                started                = new AtomicBoolean();
+
+    /**
+     * @return 进程退出时以退出码完成的Future
+     */
+    public static CompletableFuture<Integer> watch(long pid, Process process) {
+        SupervisedProcess supervisedProcess = new SupervisedProcess(process);
+        processMap.put(pid, supervisedProcess);
+        if (started.compareAndSet(false, true)) {
+            ThreadPoolUtil.execute(ProcessSupervisor::superviseLoop);
+        }
+        return supervisedProcess.exitFuture;
+    }
+
+    /**
+     * @return 进程退出时以退出码完成的Future，进程不存在或已经退出时返回以null完成的Future
+     */
+    public static CompletableFuture<Integer> onExit(long pid) {
+        SupervisedProcess supervisedProcess = processMap.get(pid);
+        if (supervisedProcess == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return supervisedProcess.exitFuture;
+    }
+
+    /**
+     * 进程运行超过timeoutMillis后将被强制终止
+     */
+    public static void setTimeout(long pid, long timeoutMillis) {
+        SupervisedProcess supervisedProcess = processMap.get(pid);
+        if (supervisedProcess != null) {
+            supervisedProcess.deadline = supervisedProcess.startTime + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        }
+    }
+
+    /**
+     * @return 最近一次采样的资源占用，进程不存在或当前系统不支持/proc时返回null
+     */
+    public static ProcessStats getStats(long pid) {
+        SupervisedProcess supervisedProcess = processMap.get(pid);
+        return supervisedProcess != null ? supervisedProcess.stats : null;
+    }
+
+    private static void superviseLoop() {
+        Thread.currentThread().setName("ProcessSupervisor");
+        long lastSampleTime = 0;
+        while (true) {
+            long now = System.nanoTime();
+            boolean sample = PROC_AVAILABLE && TimeUnit.NANOSECONDS.toMillis(now - lastSampleTime) >= SAMPLE_INTERVAL_MILLIS;
+            if (sample) {
+                lastSampleTime = now;
+            }
+            for (Map.Entry<Long, SupervisedProcess> entry : processMap.entrySet()) {
+                long pid = entry.getKey();
+                SupervisedProcess supervisedProcess = entry.getValue();
+                try {
+                    if (!supervisedProcess.process.isAlive()) {
+                        processMap.remove(pid, supervisedProcess);
+                        supervisedProcess.exitFuture.complete(supervisedProcess.process.exitValue());
+                        continue;
+                    }
+                    if (supervisedProcess.deadline != 0 && now - supervisedProcess.deadline > 0) {
+                        supervisedProcess.deadline = 0;
+                        log.warn("进程运行超时，强制终止[pid:" + pid + "]");
+                        ThreadPoolUtil.execute(() -> ProcessUtil.killProcess(pid));
+                    }
+                    if (sample) {
+                        supervisedProcess.sample(pid, now);
+                    }
+                } catch (Throwable e) {
+                    log.error("跟踪进程状态失败[pid:" + pid + "]", e);
+                }
+            }
+            try {
+                Thread.sleep(SCAN_INTERVAL_MILLIS);
+            } catch (InterruptedException ignore) {
+            }
+        }
+    }
+
+    private static class SupervisedProcess {
+        private final    Process                    process;
+        private final    CompletableFuture<Integer> exitFuture = new CompletableFuture<>();
+        private final    long                       startTime  = System.nanoTime();
+        private volatile long                       deadline;
+        private volatile ProcessStats               stats;
+        private          long                       lastCpuTicks;
+        private          long                       lastSampleTime;
+
+        SupervisedProcess(Process process) {
+            this.process = process;
+        }
+
+        void sample(long pid, long now) throws IOException {
+            File statFile = new File("/proc/" + pid + "/stat");
+            if (!statFile.exists()) {
+                return;
+            }
+            String stat = new String(Files.readAllBytes(statFile.toPath()), StandardCharsets.US_ASCII);
+            // 进程名中可能包含空格，从最后一个')'之后开始按字段拆分，fields[0]为第3个字段(state)
+            String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+            long cpuTicks = Long.parseLong(fields[11]) + Long.parseLong(fields[12]);
+            long rssBytes = Long.parseLong(fields[21]) * PAGE_SIZE;
+            float cpuUsage = 0;
+            if (lastSampleTime != 0) {
+                double elapsedSeconds = (now - lastSampleTime) / 1e9;
+                cpuUsage = (float) ((cpuTicks - lastCpuTicks) / (double) CLOCK_TICKS_PER_SECOND / elapsedSeconds * 100);
+            }
+            lastCpuTicks = cpuTicks;
+            lastSampleTime = now;
+            stats = new ProcessStats(cpuUsage, rssBytes);
+        }
+    }
+
+    public static class ProcessStats {
+        private final float cpuUsage;
+        private final long  rssBytes;
+
+        public ProcessStats(float cpuUsage, long rssBytes) {
+            this.cpuUsage = cpuUsage;
+            this.rssBytes = rssBytes;
+        }
+
+        /**
+         * @return 最近一个采样周期内的CPU占用百分比，多核时可能超过100
+         */
+        public float getCpuUsage() {
+            return cpuUsage;
+        }
+
+        public long getRssBytes() {
+            return rssBytes;
+        }
+
+        @Override
+        public String toString() {
+            return "cpu=" + cpuUsage + "%, rss=" + rssBytes / 1024 / 1024 + "MB";
+        }
+    }
+}
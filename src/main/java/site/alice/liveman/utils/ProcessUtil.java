@@ -18,23 +18,22 @@
 package site.alice.liveman.utils;
 
 import com.alibaba.fastjson.JSON;
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.JSchException;
 import com.sun.jna.Platform;
 import com.sun.jna.platform.win32.Kernel32;
 import com.sun.jna.platform.win32.WinBase;
 import com.sun.jna.ptr.IntByReference;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import site.alice.liveman.model.ServerInfo;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.lang.reflect.Field;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.sun.jna.platform.win32.WinNT.*;
 
@@ -51,13 +50,89 @@ public class ProcessUtil {
         if (cmdLine == null) {
             return 0;
         }
+        return createProcess(splitCmdLine(cmdLine), videoId);
+    }
+
+    /**
+     * 创建通过标准输入输出交换数据的进程，只有标准错误输出会写入日志
+     */
+    public static long createPipeProcess(String cmdLine, String videoId) {
+        try {
+            if (cmdLine == null) {
+                return 0;
+            }
+            ProcessBuilder processBuilder = new ProcessBuilder();
+            processBuilder.command(splitCmdLine(cmdLine));
+            log.info("create process..." + processBuilder.command());
+            Process process = processBuilder.start();
+            long processHandle = registerProcess(process, processBuilder);
+            FfmpegProgressReader.registerErrorStream(process, ProcessLogSink.getSink(videoId));
+            return processHandle;
+        } catch (IOException e) {
+            log.error("createProcess failed", e);
+            return 0;
+        }
+    }
+
+    /**
+     * 创建使用-progress pipe:1输出进度的ffmpeg进程，输出由FfmpegProgressReader统一读取
+     */
+    public static long createProgressProcess(String cmdLine, String videoId, FfmpegProgressReader.ProgressListener listener) {
+        try {
+            if (cmdLine == null) {
+                return 0;
+            }
+            ProcessBuilder processBuilder = new ProcessBuilder();
+            processBuilder.command(splitCmdLine(cmdLine));
+            return startProgressProcess(processBuilder, videoId, listener);
+        } catch (IOException e) {
+            log.error("createProcess failed", e);
+            return 0;
+        }
+    }
+
+    /**
+     * 在远程服务器上创建使用-progress pipe:1输出进度的ffmpeg进程，远程进程分配了终端，全部输出都经由标准输出返回
+     */
+    public static long createRemoteProgressProcess(String cmdLine, ServerInfo remoteServer, String videoId, FfmpegProgressReader.ProgressListener listener) {
+        try {
+            if (cmdLine == null) {
+                return 0;
+            }
+            RemoteProcess process = startRemoteProcess(cmdLine, remoteServer, true);
+            long processHandle = registerProcess(process, null);
+            FfmpegProgressReader.register(process, ProcessLogSink.getSink(videoId), listener);
+            return processHandle;
+        } catch (IOException | JSchException e) {
+            log.error("createProcess failed", e);
+            return 0;
+        }
+    }
+
+    private static long startProgressProcess(ProcessBuilder processBuilder, String videoId, FfmpegProgressReader.ProgressListener listener) throws IOException {
+        log.info("create process..." + processBuilder.command());
+        Process process = processBuilder.start();
+        long processHandle = registerProcess(process, processBuilder);
+        FfmpegProgressReader.register(process, ProcessLogSink.getSink(videoId), listener);
+        return processHandle;
+    }
+
+    private static long registerProcess(Process process, ProcessBuilder processBuilder) {
+        long processHandle = process instanceof RemoteProcess ? ((RemoteProcess) process).handle : getProcessHandle(process);
+        AliceProcess aliceProcess = new AliceProcess(process, processBuilder);
+        processTargetMap.put(processHandle, aliceProcess);
+        ProcessSupervisor.watch(processHandle, process).whenComplete((exitValue, e) -> processTargetMap.remove(processHandle, aliceProcess));
+        return processHandle;
+    }
+
+    private static String[] splitCmdLine(String cmdLine) {
         String[] args = cmdLine.split("\t");
         for (int i = 0; i < args.length; i++) {
             if (args[i].startsWith("\"") && args[i].endsWith("\"")) {
                 args[i] = args[i].substring(1, args[i].length() - 1);
             }
         }
-        return createProcess(args, videoId);
+        return args;
     }
 
     public static long createProcess(String[] args, String videoId) {
@@ -67,14 +142,9 @@ public class ProcessUtil {
             }
             ProcessBuilder processBuilder = new ProcessBuilder();
             processBuilder.command(args);
-            if (videoId != null) {
-                settingStdLog(videoId, processBuilder);
-            }
             log.info("create process..." + processBuilder.command());
             Process process = processBuilder.start();
-            long processHandle = getProcessHandle(process);
-            processTargetMap.put(processHandle, new AliceProcess(process, processBuilder));
-            return processHandle;
+            return registerProcess(process, processBuilder, videoId);
         } catch (IOException e) {
             log.error("createProcess failed", e);
             return 0;
@@ -86,31 +156,33 @@ public class ProcessUtil {
             if (cmdLine == null) {
                 return 0;
             }
-            cmdLine = cmdLine.replaceAll("\t", " ");
-            ProcessBuilder processBuilder = createRemoteProcessBuilder(remoteServer, cmdLine, terminalMode);
-            if (videoId != null) {
-                settingStdLog(videoId, processBuilder);
-            }
-            log.info("create process..." + processBuilder.command());
-            FileUtils.deleteQuietly(new File("/root/.ssh/known_hosts"));
-            Process process = processBuilder.start();
-            long processHandle = getProcessHandle(process);
-            if (!terminalMode) {
-                process = new RemoteProcess(process, processBuilder, remoteServer, cmdLine);
-            }
-            processTargetMap.put(processHandle, new AliceProcess(process, processBuilder));
-            return processHandle;
-        } catch (IOException e) {
+            return registerProcess(startRemoteProcess(cmdLine, remoteServer, terminalMode), null, videoId);
+        } catch (IOException | JSchException e) {
             log.error("createProcess failed", e);
             return 0;
         }
     }
 
-    private static void settingStdLog(String logName, ProcessBuilder processBuilder) {
-        File logFile = new File("logs/ffmpeg/" + logName + "/" + (System.currentTimeMillis() / 10000) + ".log");
-        logFile.getParentFile().mkdirs();
-        processBuilder.redirectOutput(logFile);
-        processBuilder.redirectError(logFile);
+    private static RemoteProcess startRemoteProcess(String cmdLine, ServerInfo remoteServer, boolean terminalMode) throws IOException, JSchException {
+        cmdLine = cmdLine.replaceAll("\t", " ");
+        log.info("create remote process...[" + remoteServer.getAddress() + "]" + cmdLine);
+        // 远程shell先输出自身的PID再exec为目标进程，终止时可以直接按PID结束远程进程
+        return new RemoteProcess(SshSessionPool.openExecChannel(remoteServer, "echo $$; exec " + cmdLine, terminalMode), remoteServer);
+    }
+
+    /**
+     * 指定了日志名称时进程的全部输出写入同名的ProcessLogSink，否则标准输出由调用方自行读取，
+     * 标准错误输出写入以可执行文件命名的日志(远程进程为remote)，避免缓冲区写满后进程阻塞
+     */
+    private static long registerProcess(Process process, ProcessBuilder processBuilder, String logName) {
+        long processHandle = registerProcess(process, processBuilder);
+        if (logName != null) {
+            FfmpegProgressReader.register(process, ProcessLogSink.getSink(logName), null);
+        } else {
+            String errorLogName = processBuilder != null ? new File(processBuilder.command().get(0)).getName() : "remote";
+            FfmpegProgressReader.registerErrorStream(process, ProcessLogSink.getSink(errorLogName));
+        }
+        return processHandle;
     }
 
     public static boolean isProcessExist(long pid) {
@@ -155,14 +227,54 @@ public class ProcessUtil {
     }
 
     public static void waitProcess(long pid) {
-        Process process = processTargetMap.get(pid);
-        if (process != null) {
-            try {
-                process.waitFor();
-                processTargetMap.remove(pid);
-            } catch (InterruptedException ignore) {
+        try {
+            ProcessSupervisor.onExit(pid).get();
+        } catch (InterruptedException | ExecutionException ignore) {
+
+        }
+    }
+
+    /**
+     * @return 进程退出时以退出码完成的Future，由ProcessSupervisor统一跟踪，不需要占用调用方线程等待
+     */
+    public static CompletableFuture<Integer> onExit(long pid) {
+        return ProcessSupervisor.onExit(pid);
+    }
+
+    /**
+     * 进程运行超过timeoutMillis后由ProcessSupervisor强制终止
+     */
+    public static void setTimeout(long pid, long timeoutMillis) {
+        ProcessSupervisor.setTimeout(pid, timeoutMillis);
+    }
+
+    /**
+     * @return 进程最近一次采样的CPU和内存占用，无法获取时返回null
+     */
+    public static ProcessSupervisor.ProcessStats getProcessStats(long pid) {
+        return ProcessSupervisor.getStats(pid);
+    }
 
+    /**
+     * 向进程的标准输入写入命令，用于在不重启的情况下调整正在运行的ffmpeg进程
+     *
+     * @return 进程不存在或写入失败时返回false
+     */
+    public static boolean sendCommand(long pid, String command) {
+        Process process = processTargetMap.get(pid);
+        if (process == null) {
+            return false;
+        }
+        try {
+            OutputStream os = process.getOutputStream();
+            synchronized (process) {
+                os.write(command.getBytes(StandardCharsets.UTF_8));
+                os.flush();
             }
+            return true;
+        } catch (IOException e) {
+            log.error("sendCommand failed[pid=" + pid + "]", e);
+            return false;
         }
     }
 
@@ -179,18 +291,12 @@ public class ProcessUtil {
         if (pid == 0) {
             return true;
         }
-        Process process = processTargetMap.get(pid);
-        if (process != null) {
-            try {
-                boolean result = process.waitFor(dwMilliseconds, TimeUnit.MILLISECONDS);
-                if (result) {
-                    processTargetMap.remove(pid);
-                }
-                return result;
-            } catch (InterruptedException ignore) {
-                return false;
-            }
-        } else {
+        try {
+            ProcessSupervisor.onExit(pid).get(dwMilliseconds, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (TimeoutException | InterruptedException ignore) {
+            return false;
+        } catch (ExecutionException ignore) {
             return true;
         }
     }
@@ -252,91 +358,90 @@ public class ProcessUtil {
         }
     }
 
-    private static class RemoteProcess extends AliceProcess {
-
-        private String     killRemoteProcessCmdLine = "ps -ef | grep -F \"%s\" | grep -v grep | awk -F ' ' '{print $2}'| xargs kill -9";
-        private Process    sshProcess;
-        private ServerInfo remoteServer;
-        private String     cmdLine;
-
-        public RemoteProcess(Process sshProcess, ProcessBuilder builder, ServerInfo remoteServer, String cmdLine) {
-            super(sshProcess, builder);
-            this.sshProcess = sshProcess;
+    private static class RemoteProcess extends Process {
+
+        private static final int          CONNECT_TIMEOUT = 2000;
+        private static final AtomicLong   handleSequence  = new AtomicLong();
+        /**
+         * 远程进程没有本地PID，使用负数作为句柄以免与本地进程冲突
+         */
+        private final        long         handle          = handleSequence.decrementAndGet();
+        private final        ChannelExec  channel;
+        private final        ServerInfo   remoteServer;
+        private final        InputStream  inputStream;
+        private final        InputStream  errorStream;
+        private final        OutputStream outputStream;
+        private final        long         remotePid;
+
+        public RemoteProcess(ChannelExec channel, ServerInfo remoteServer) throws IOException, JSchException {
+            this.channel = channel;
             this.remoteServer = remoteServer;
-            this.cmdLine = cmdLine;
-        }
-
-        public Process getSshProcess() {
-            return sshProcess;
-        }
-
-        public void setSshProcess(Process sshProcess) {
-            this.sshProcess = sshProcess;
-        }
-
-        public ServerInfo getRemoteServer() {
-            return remoteServer;
-        }
-
-        public void setRemoteServer(ServerInfo remoteServer) {
-            this.remoteServer = remoteServer;
-        }
-
-        public String getCmdLine() {
-            return cmdLine;
+            inputStream = channel.getInputStream();
+            errorStream = channel.getErrStream();
+            outputStream = channel.getOutputStream();
+            channel.connect(CONNECT_TIMEOUT);
+            remotePid = readRemotePid();
+        }
+
+        private long readRemotePid() throws IOException {
+            StringBuilder sb = new StringBuilder();
+            int b;
+            while ((b = inputStream.read()) != -1 && b != '\n') {
+                sb.append((char) b);
+            }
+            try {
+                return Long.parseLong(sb.toString().trim());
+            } catch (NumberFormatException e) {
+                log.warn("无法获取远程进程的PID[" + remoteServer.getAddress() + "]:" + sb);
+                return 0;
+            }
         }
 
-        public void setCmdLine(String cmdLine) {
-            this.cmdLine = cmdLine;
+        public long getRemotePid() {
+            return remotePid;
         }
 
         @Override
         public OutputStream getOutputStream() {
-            return sshProcess.getOutputStream();
+            return outputStream;
         }
 
         @Override
         public InputStream getInputStream() {
-            return sshProcess.getInputStream();
+            return inputStream;
         }
 
         @Override
         public InputStream getErrorStream() {
-            return sshProcess.getErrorStream();
+            return errorStream;
         }
 
         @Override
         public int waitFor() throws InterruptedException {
-            return sshProcess.waitFor();
+            while (!channel.isClosed()) {
+                Thread.sleep(50);
+            }
+            return exitValue();
         }
 
         @Override
         public int exitValue() {
-            return sshProcess.exitValue();
+            if (!channel.isClosed()) {
+                throw new IllegalThreadStateException("remote process has not exited");
+            }
+            return channel.getExitStatus();
         }
 
         @Override
         public void destroy() {
-            ProcessBuilder processBuilder = createRemoteProcessBuilder(remoteServer, String.format(killRemoteProcessCmdLine, cmdLine.replaceAll("\"", "")), true);
-            try {
-                Process process = processBuilder.start();
-                process.waitFor();
-            } catch (IOException | InterruptedException e) {
-                log.error("destroy remote process failed\n" + processBuilder.command(), e);
+            if (!channel.isClosed() && remotePid > 0) {
+                try {
+                    SshSessionPool.execCommand(remoteServer, "kill " + remotePid, CONNECT_TIMEOUT);
+                } catch (Exception e) {
+                    log.error("destroy remote process failed[" + remoteServer.getAddress() + ", pid:" + remotePid + "]", e);
+                }
             }
-            sshProcess.destroy();
-        }
-    }
-
-    private static ProcessBuilder createRemoteProcessBuilder(ServerInfo remoteServer, String cmdLine, boolean terminalMode) {
-        ProcessBuilder processBuilder = new ProcessBuilder();
-        List<String> args = new ArrayList<>();
-        args.addAll(Arrays.asList("sshpass", "-p", remoteServer.getPassword(), "ssh", "-o", "StrictHostKeyChecking=no"));
-        if (terminalMode) {
-            args.add("-tt");
+            channel.disconnect();
         }
-        args.addAll(Arrays.asList("-p", String.valueOf(remoteServer.getPort()), remoteServer.getUsername() + "@" + remoteServer.getAddress(), cmdLine));
-        processBuilder.command(args);
-        return processBuilder;
     }
 }
@@ -0,0 +1,179 @@
+/*
+ * <Alice LiveMan>
+ * Copyright (C) <2018>  <NekoSunflower>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package site.alice.liveman.utils;
+
+import com.jcraft.jsch.*;
+import lombok.extern.slf4j.Slf4j;
+import site.alice.liveman.model.ServerInfo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 按服务器复用保持连接的SSH会话，远程命令都以exec通道的形式复用同一个会话，并定期发送心跳剔除已断开的会话
+ */
+@Slf4j
+public class SshSessionPool {
+
+    private static final int                  CONNECT_TIMEOUT     = 2000;
+    private static final int                  SERVER_ALIVE_MILLIS = 15000;
+    private static final long                 HEARTBEAT_SECONDS   = 30;
+    private static final Map<String, Session> sessionMap          = new ConcurrentHashMap<>();
+    private static final AtomicBoolean        heartbeatStarted    = new AtomicBoolean();
+
+    /**
+     * @return 目标服务器已连接的会话，没有可用会话时建立新的连接
+     */
+    public static Session getSession(ServerInfo serverInfo) throws JSchException {
+        String key = getKey(serverInfo);
+        Session session = sessionMap.get(key);
+        if (session != null && session.isConnected()) {
+            return session;
+        }
+        synchronized (SshSessionPool.class) {
+            session = sessionMap.get(key);
+            if (session == null || !session.isConnected()) {
+                session = connect(serverInfo);
+                sessionMap.put(key, session);
+            }
+        }
+        if (heartbeatStarted.compareAndSet(false, true)) {
+            ThreadPoolUtil.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    heartbeat();
+                    ThreadPoolUtil.schedule(this, HEARTBEAT_SECONDS, TimeUnit.SECONDS);
+                }
+            }, HEARTBEAT_SECONDS, TimeUnit.SECONDS);
+        }
+        return session;
+    }
+
+    /**
+     * 在复用的会话上打开exec通道执行命令，pty为true时远程进程的标准错误输出会合并到标准输出，通道关闭时进程会收到SIGHUP
+     */
+    public static ChannelExec openExecChannel(ServerInfo serverInfo, String command, boolean pty) throws JSchException {
+        ChannelExec channel = (ChannelExec) getSession(serverInfo).openChannel("exec");
+        channel.setCommand(command);
+        channel.setPty(pty);
+        return channel;
+    }
+
+    /**
+     * 执行一条短命令并等待其结束
+     *
+     * @return 命令的退出码，超时返回-1
+     */
+    public static int execCommand(ServerInfo serverInfo, String command, long timeoutMillis) throws JSchException, InterruptedException {
+        ChannelExec channel = openExecChannel(serverInfo, command, false);
+        try {
+            channel.connect(CONNECT_TIMEOUT);
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (!channel.isClosed() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            return channel.isClosed() ? channel.getExitStatus() : -1;
+        } finally {
+            channel.disconnect();
+        }
+    }
+
+    /**
+     * 执行一条短命令并读取其标准输出
+     *
+     * @return 命令的标准输出，超时返回null
+     */
+    public static String execForOutput(ServerInfo serverInfo, String command, long timeoutMillis) throws JSchException, IOException, InterruptedException {
+        ChannelExec channel = openExecChannel(serverInfo, command, false);
+        try {
+            InputStream inputStream = channel.getInputStream();
+            channel.connect(CONNECT_TIMEOUT);
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (System.currentTimeMillis() < deadline) {
+                if (inputStream.available() > 0) {
+                    output.write(buffer, 0, inputStream.read(buffer));
+                } else if (channel.isClosed()) {
+                    return output.toString("utf-8");
+                } else {
+                    Thread.sleep(20);
+                }
+            }
+            return null;
+        } finally {
+            channel.disconnect();
+        }
+    }
+
+    public static void invalidate(ServerInfo serverInfo) {
+        Session session = sessionMap.remove(getKey(serverInfo));
+        if (session != null) {
+            session.disconnect();
+        }
+    }
+
+    /**
+     * 只移除已经断开的会话，仍然连接的会话上可能有正在推流的远程进程，不能断开
+     */
+    public static void invalidateIfDisconnected(ServerInfo serverInfo) {
+        String key = getKey(serverInfo);
+        Session session = sessionMap.get(key);
+        if (session != null && !session.isConnected()) {
+            sessionMap.remove(key, session);
+        }
+    }
+
+    private static Session connect(ServerInfo serverInfo) throws JSchException {
+        Session session = new JSch().getSession(serverInfo.getUsername(), serverInfo.getAddress(), serverInfo.getPort());
+        Properties sshConfig = new Properties();
+        sshConfig.put("StrictHostKeyChecking", "no");
+        session.setConfig(sshConfig);
+        session.setPassword(serverInfo.getPassword());
+        session.setServerAliveInterval(SERVER_ALIVE_MILLIS);
+        session.connect(CONNECT_TIMEOUT);
+        log.info("已建立到服务器[" + serverInfo.getRemark() + "@" + serverInfo.getAddress() + ":" + serverInfo.getPort() + "]的SSH会话");
+        return session;
+    }
+
+    private static void heartbeat() {
+        for (Map.Entry<String, Session> entry : sessionMap.entrySet()) {
+            Session session = entry.getValue();
+            try {
+                if (!session.isConnected()) {
+                    throw new JSchException("session is down");
+                }
+                session.sendKeepAliveMsg();
+            } catch (Exception e) {
+                log.warn("SSH会话心跳失败，已移除[" + entry.getKey() + "]:" + e.getMessage());
+                sessionMap.remove(entry.getKey(), session);
+                session.disconnect();
+            }
+        }
+    }
+
+    private static String getKey(ServerInfo serverInfo) {
+        return serverInfo.getUsername() + "@" + serverInfo.getAddress() + ":" + serverInfo.getPort();
+    }
+}
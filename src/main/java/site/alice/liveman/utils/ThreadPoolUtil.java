@@ -31,6 +31,10 @@ public class ThreadPoolUtil {
         cachedThreadPool.execute(runnable);
     }
 
+    public static <T> Future<T> submit(Callable<T> task) {
+        return cachedThreadPool.submit(task);
+    }
+
     public static ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
         return scheduledThreadPool.schedule(command, delay, unit);
     }
@@ -39,6 +39,11 @@ public class BroadcastTaskVO {
     private String  roomTitle;
     private float   health;
     private boolean vertical;
+    private float   cpuUsage;
+    private long    rssBytes;
+    private int     readerCount;
+    private long    readerLagMillis;
+    private long    droppedChunks;
 
     public String getNickname() {
         return nickname;
@@ -143,4 +148,50 @@ public class BroadcastTaskVO {
     public void setVertical(boolean vertical) {
         this.vertical = vertical;
     }
+
+    public float getCpuUsage() {
+        return cpuUsage;
+    }
+
+    public void setCpuUsage(float cpuUsage) {
+        this.cpuUsage = cpuUsage;
+    }
+
+    public long getRssBytes() {
+        return rssBytes;
+    }
+
+    public void setRssBytes(long rssBytes) {
+        this.rssBytes = rssBytes;
+    }
+
+    public int getReaderCount() {
+        return readerCount;
+    }
+
+    public void setReaderCount(int readerCount) {
+        this.readerCount = readerCount;
+    }
+
+    /**
+     * @return 共享缓冲区中落后最多的读取者的延迟(毫秒)
+     */
+    public long getReaderLagMillis() {
+        return readerLagMillis;
+    }
+
+    public void setReaderLagMillis(long readerLagMillis) {
+        this.readerLagMillis = readerLagMillis;
+    }
+
+    /**
+     * @return 共享缓冲区中所有读取者因读取过慢累计跳过的数据块数量
+     */
+    public long getDroppedChunks() {
+        return droppedChunks;
+    }
+
+    public void setDroppedChunks(long droppedChunks) {
+        this.droppedChunks = droppedChunks;
+    }
 }
@@ -30,13 +30,17 @@ import site.alice.liveman.customlayout.CustomLayout;
 import site.alice.liveman.customlayout.impl.RectangleBlurLayout;
 import site.alice.liveman.jenum.VideoBannedTypeEnum;
 import site.alice.liveman.mediaproxy.MediaProxyManager;
+import site.alice.liveman.mediaproxy.broadcast.BroadcastRing;
 import site.alice.liveman.mediaproxy.proxytask.MediaProxyTask;
 import site.alice.liveman.model.*;
 import site.alice.liveman.service.MediaHistoryService;
 import site.alice.liveman.service.broadcast.BroadcastServiceManager;
 import site.alice.liveman.service.broadcast.BroadcastServiceManager.BroadcastTask;
 import site.alice.liveman.service.live.LiveServiceFactory;
+import site.alice.liveman.utils.FfmpegUtil;
 import site.alice.liveman.utils.HttpRequestUtil;
+import site.alice.liveman.utils.ProcessLogSink;
+import site.alice.liveman.utils.ProcessSupervisor;
 import site.alice.liveman.utils.ProcessUtil;
 import site.alice.liveman.web.dataobject.ActionResult;
 import site.alice.liveman.web.dataobject.vo.BroadcastTaskVO;
@@ -83,6 +87,11 @@ public class BroadcastController {
                 BroadcastTask broadcastTask = videoInfo.getBroadcastTask();
                 if (broadcastTask != null) {
                     broadcastTaskVO.setHealth(broadcastTask.getHealth());
+                    ProcessSupervisor.ProcessStats processStats = ProcessUtil.getProcessStats(broadcastTask.getPid());
+                    if (processStats != null) {
+                        broadcastTaskVO.setCpuUsage(processStats.getCpuUsage());
+                        broadcastTaskVO.setRssBytes(processStats.getRssBytes());
+                    }
                     AccountInfo broadcastAccount = broadcastTask.getBroadcastAccount();
                     if (broadcastAccount != null) {
                         broadcastTaskVO.setAccountSite(broadcastAccount.getAccountSite());
@@ -101,12 +110,27 @@ public class BroadcastController {
                 broadcastTaskVO.setNeedRecord(videoInfo.isNeedRecord());
                 broadcastTaskVO.setMediaUrl(mediaProxyTask.getTargetUrl().getPath());
                 broadcastTaskVO.setVertical(videoInfo.isVertical());
+                BroadcastRing broadcastRing = mediaProxyTask.getBroadcastRing();
+                if (broadcastRing != null) {
+                    broadcastTaskVO.setReaderCount(broadcastRing.getReaderCount());
+                    broadcastTaskVO.setReaderLagMillis(broadcastRing.getMaxLagMillis());
+                    broadcastTaskVO.setDroppedChunks(broadcastRing.getDroppedChunks());
+                }
                 broadcastTaskVOList.add(broadcastTaskVO);
             }
         }
         return ActionResult.getSuccessResult(broadcastTaskVOList);
     }
 
+    @RequestMapping("/processLog.json")
+    public ActionResult<List<String>> processLog(String videoId, Integer lineCount) {
+        AccountInfo account = (AccountInfo) session.getAttribute("account");
+        if (!account.isAdmin()) {
+            return ActionResult.getErrorResult("没有权限！");
+        }
+        return ActionResult.getSuccessResult(ProcessLogSink.getLastLines(videoId, lineCount != null ? Math.max(0, Math.min(lineCount, 1000)) : 100));
+    }
+
     @RequestMapping("/adoptTask.json")
     public ActionResult adoptTask(String videoId) {
         AccountInfo account = (AccountInfo) session.getAttribute("account");
@@ -231,8 +255,17 @@ public class BroadcastController {
             if (needRestart) {
                 stopTask(videoId);
                 adoptTask(videoId);
-            } else if ((_cropConf == null || _cropConf.getVideoBannedType() != cropConf.getVideoBannedType() || _cropConf.getBlurSize() != cropConf.getBlurSize()) && broadcastTask != null) {
-                ProcessUtil.killProcess(broadcastTask.getPid());
+            } else if (broadcastTask != null) {
+                if (_cropConf == null || _cropConf.getVideoBannedType() != cropConf.getVideoBannedType() || (_cropConf.getBlurSize() > 0) != (cropConf.getBlurSize() > 0)) {
+                    // 滤镜结构发生变化，需要重启推流进程
+                    ProcessUtil.killProcess(broadcastTask.getPid());
+                } else if (_cropConf.getBlurSize() != cropConf.getBlurSize()) {
+                    // 只调整模糊强度时直接向推流进程发送滤镜命令，遮罩和画面图层由叠加输入实时更新
+                    String command = FfmpegUtil.buildBlurCommand(cropConf.getBlurSize());
+                    if (command == null || !ProcessUtil.sendCommand(broadcastTask.getPid(), command)) {
+                        ProcessUtil.killProcess(broadcastTask.getPid());
+                    }
+                }
             }
         }
         return ActionResult.getSuccessResult(null);
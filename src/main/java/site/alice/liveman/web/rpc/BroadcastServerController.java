@@ -29,6 +29,7 @@ import site.alice.liveman.model.LiveManSetting;
 import site.alice.liveman.model.ServerInfo;
 import site.alice.liveman.model.VideoInfo;
 import site.alice.liveman.service.BroadcastServerService;
+import site.alice.liveman.utils.SshSessionPool;
 import site.alice.liveman.web.dataobject.ActionResult;
 import site.alice.liveman.web.dataobject.vo.ServerVO;
 
@@ -165,6 +166,7 @@ public class BroadcastServerController {
         try {
             liveManSetting.getServers().remove(serverInfo);
             settingConfig.saveSetting(liveManSetting);
+            SshSessionPool.invalidate(serverInfo);
         } catch (Exception e) {
             log.error("删除转播服务器信息失败", e);
             return ActionResult.getErrorResult("系统内部错误，请联系管理员");
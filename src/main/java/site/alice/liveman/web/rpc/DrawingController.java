@@ -18,17 +18,19 @@
 
 package site.alice.liveman.web.rpc;
 
-import com.keypoint.PngEncoderB;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.collections.CollectionUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.context.request.async.WebAsyncTask;
 import site.alice.liveman.customlayout.BlurLayout;
 import site.alice.liveman.customlayout.CustomLayout;
-import site.alice.liveman.customlayout.impl.BrowserLayout;
 import site.alice.liveman.customlayout.impl.ImageSegmentBlurLayout;
 import site.alice.liveman.customlayout.impl.RectangleBlurLayout;
 import site.alice.liveman.jenum.VideoBannedTypeEnum;
@@ -38,21 +40,26 @@ import site.alice.liveman.mediaproxy.proxytask.MediaProxyTask;
 import site.alice.liveman.mediaproxy.proxytask.MediaProxyTask.KeyFrame;
 import site.alice.liveman.model.VideoCropConf;
 import site.alice.liveman.model.VideoInfo;
+import site.alice.liveman.utils.FfmpegUtil;
 
 import javax.servlet.http.HttpServletResponse;
-import java.awt.*;
-import java.awt.image.BufferedImage;
+import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Slf4j
 @Controller
 @RequestMapping("/api/drawing")
 public class DrawingController {
+    private static final int                 MAX_OVERLAY_STREAMS     = 64;
+    private static final AsyncTaskExecutor   OVERLAY_STREAM_EXECUTOR = new SimpleAsyncTaskExecutor("OverlayStream-");
+    private static final AtomicInteger       overlayStreamCount      = new AtomicInteger();
     @Autowired
-    private HttpServletResponse response;
+    private              HttpServletResponse response;
 
     @RequestMapping(method = RequestMethod.GET, value = "/screen/{videoId}")
     public void screen(@PathVariable("videoId") String videoId) {
@@ -82,39 +89,9 @@ public class DrawingController {
         VideoCropConf cropConf = videoInfo.getCropConf();
         int[] sizes = Arrays.stream(resolution.split("x")).mapToInt(Integer::parseInt).toArray();
         if (cropConf.getVideoBannedType() == VideoBannedTypeEnum.CUSTOM_SCREEN) {
-            byte[] cachedDrawBytes = cropConf.getCachedDrawBytes();
-            if (cachedDrawBytes == null) {
-                boolean canCache = true;
-                BufferedImage image = new BufferedImage((int) (sizes[0] * (720.0 / sizes[1])), 720, BufferedImage.TYPE_INT_ARGB);
-                Graphics2D graphics = image.createGraphics();
-                graphics.setBackground(new Color(0, 0, 0, 0));
-                List<CustomLayout> customLayoutList = cropConf.getLayouts();
-                if (CollectionUtils.isNotEmpty(customLayoutList)) {
-                    for (CustomLayout customLayout : customLayoutList) {
-                        if (customLayout instanceof BlurLayout) {
-                            continue;
-                        }
-                        if (customLayout instanceof BrowserLayout) {
-                            canCache = false;
-                        }
-                        try {
-                            customLayout.paintLayout(graphics);
-                        } catch (Exception e) {
-                            log.error(customLayout.getClass().getName() + "[videoId=" + videoInfo.getVideoId() + "]渲染出错", e);
-                        }
-                    }
-                }
-                PngEncoderB pngEncoderB = new PngEncoderB();
-                pngEncoderB.setCompressionLevel(3);
-                pngEncoderB.setEncodeAlpha(true);
-                pngEncoderB.setImage(image);
-                cachedDrawBytes = pngEncoderB.pngEncode();
-                if (canCache) {
-                    cropConf.setCachedDrawBytes(cachedDrawBytes);
-                }
-            }
+            byte[] drawBytes = cropConf.getScreenCompositor().render(getDrawingLayouts(cropConf), (int) (sizes[0] * (720.0 / sizes[1])), 720);
             try (OutputStream os = response.getOutputStream()) {
-                os.write(cachedDrawBytes);
+                os.write(drawBytes);
                 os.flush();
             } catch (Exception e) {
                 log.error("无法输出图像数据到响应流[videoId=" + videoInfo.getVideoId() + "]", e);
@@ -152,42 +129,106 @@ public class DrawingController {
         VideoCropConf cropConf = videoInfo.getCropConf();
         int[] sizes = Arrays.stream(resolution.split("x")).mapToInt(Integer::parseInt).toArray();
         if (cropConf.getVideoBannedType() == VideoBannedTypeEnum.CUSTOM_SCREEN) {
+            byte[] blurBytes = cropConf.getMaskCompositor().render(getBlurLayouts(cropConf), (int) (sizes[0] * (720.0 / sizes[1])), 720);
             try (OutputStream os = response.getOutputStream()) {
-                byte[] cachedBlurBytes = cropConf.getCachedBlurBytes();
-                if (cachedBlurBytes == null) {
-                    BufferedImage image = new BufferedImage((int) (sizes[0] * (720.0 / sizes[1])), 720, BufferedImage.TYPE_INT_ARGB);
-                    Graphics2D graphics = image.createGraphics();
-                    List<CustomLayout> customLayoutList = cropConf.getLayouts();
-                    for (CustomLayout customLayout : customLayoutList) {
-                        if (customLayout instanceof RectangleBlurLayout) {
-                            try {
-                                customLayout.paintLayout(graphics);
-                            } catch (Exception e) {
-                                log.error(customLayout.getClass().getName() + "[videoId=" + videoInfo.getVideoId() + "]渲染出错", e);
-                            }
-                        }
+                os.write(blurBytes);
+                os.flush();
+            } catch (Exception e) {
+                log.error("无法输出图像数据到响应流[videoId=" + videoInfo.getVideoId() + "]", e);
+            }
+        }
+    }
+
+    @RequestMapping(method = RequestMethod.GET, value = "/screenStream/{videoId}")
+    public WebAsyncTask<Void> screenStream(@PathVariable("videoId") String videoId, @RequestParam("width") int width, @RequestParam("height") int height) throws IOException {
+        return streamOverlay(videoId, width, height, false);
+    }
+
+    @RequestMapping(method = RequestMethod.GET, value = "/maskStream/{videoId}")
+    public WebAsyncTask<Void> maskStream(@PathVariable("videoId") String videoId, @RequestParam("width") int width, @RequestParam("height") int height) throws IOException {
+        return streamOverlay(videoId, width, height, true);
+    }
+
+    /**
+     * 以固定帧率持续输出RGBA原始帧，图层没有变化时重复输出缓存的帧，直到媒体代理任务结束或者ffmpeg断开连接。
+     * 每个输出流使用独立的写入线程，不占用Web容器的请求线程，同时输出的流数量超过上限时拒绝请求
+     */
+    private WebAsyncTask<Void> streamOverlay(String videoId, int width, int height, boolean mask) throws IOException {
+        MediaProxyTask mediaProxyTask = MediaProxyManager.getExecutedProxyTaskMap().get(videoId);
+        if (mediaProxyTask == null || mediaProxyTask.getVideoInfo() == null) {
+            log.info("找不到请求的媒体代理任务信息[videoId=" + videoId + "]");
+            return null;
+        }
+        if (overlayStreamCount.incrementAndGet() > MAX_OVERLAY_STREAMS) {
+            overlayStreamCount.decrementAndGet();
+            log.warn("同时输出的叠加层原始帧流已达到上限[" + MAX_OVERLAY_STREAMS + "]，拒绝请求[videoId=" + videoId + "]");
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return null;
+        }
+        VideoInfo videoInfo = mediaProxyTask.getVideoInfo();
+        long frameInterval = 1000 / FfmpegUtil.OVERLAY_FRAME_RATE;
+        response.setContentType("application/octet-stream");
+        // 写入线程中无法通过注入的代理获取响应对象，需要在请求线程中先取得输出流
+        OutputStream outputStream = response.getOutputStream();
+        // 超时时间为0表示不超时
+        return new WebAsyncTask<>(0L, OVERLAY_STREAM_EXECUTOR, () -> {
+            try (OutputStream os = outputStream) {
+                long nextFrameTime = System.currentTimeMillis();
+                while (!mediaProxyTask.getTerminated()) {
+                    VideoCropConf cropConf = videoInfo.getCropConf();
+                    byte[] frame;
+                    if (mask) {
+                        frame = cropConf.getMaskCompositor().renderRaw(getBlurLayouts(cropConf), width, height);
+                    } else {
+                        frame = cropConf.getScreenCompositor().renderRaw(getDrawingLayouts(cropConf), width, height);
                     }
-                    for (CustomLayout customLayout : customLayoutList) {
-                        if (customLayout instanceof ImageSegmentBlurLayout) {
-                            try {
-                                customLayout.paintLayout(graphics);
-                            } catch (Exception e) {
-                                log.error(customLayout.getClass().getName() + "[videoId=" + videoInfo.getVideoId() + "]渲染出错", e);
-                            }
-                        }
+                    os.write(frame);
+                    os.flush();
+                    // 按起始时间累计计算下一帧的时间，保证长期的帧率与ffmpeg声明的输入帧率一致
+                    nextFrameTime += frameInterval;
+                    long sleepTime = nextFrameTime - System.currentTimeMillis();
+                    if (sleepTime > 0) {
+                        Thread.sleep(sleepTime);
                     }
-                    PngEncoderB pngEncoderB = new PngEncoderB();
-                    pngEncoderB.setCompressionLevel(3);
-                    pngEncoderB.setEncodeAlpha(true);
-                    pngEncoderB.setImage(image);
-                    cachedBlurBytes = pngEncoderB.pngEncode();
-                    cropConf.setCachedBlurBytes(cachedBlurBytes);
                 }
-                os.write(cachedBlurBytes);
-                os.flush();
             } catch (Exception e) {
-                log.error("无法输出图像数据到响应流[videoId=" + videoInfo.getVideoId() + "]", e);
+                log.info("叠加层原始帧输出已结束[videoId=" + videoId + "]:" + e.getMessage());
+            } finally {
+                overlayStreamCount.decrementAndGet();
+            }
+            return null;
+        });
+    }
+
+    private static List<CustomLayout> getDrawingLayouts(VideoCropConf cropConf) {
+        List<CustomLayout> customLayoutList = cropConf.getLayouts();
+        List<CustomLayout> drawingLayouts = new ArrayList<>();
+        if (CollectionUtils.isNotEmpty(customLayoutList)) {
+            for (CustomLayout customLayout : customLayoutList) {
+                if (!(customLayout instanceof BlurLayout)) {
+                    drawingLayouts.add(customLayout);
+                }
+            }
+        }
+        return drawingLayouts;
+    }
+
+    private static List<CustomLayout> getBlurLayouts(VideoCropConf cropConf) {
+        List<CustomLayout> customLayoutList = cropConf.getLayouts();
+        List<CustomLayout> blurLayouts = new ArrayList<>();
+        if (CollectionUtils.isNotEmpty(customLayoutList)) {
+            // 先绘制矩形模糊区域，再绘制图像分割的模糊区域
+            for (CustomLayout customLayout : customLayoutList) {
+                if (customLayout instanceof RectangleBlurLayout) {
+                    blurLayouts.add(customLayout);
+                }
+            }
+            for (CustomLayout customLayout : customLayoutList) {
+                if (customLayout instanceof ImageSegmentBlurLayout) {
+                    blurLayouts.add(customLayout);
+                }
             }
         }
+        return blurLayouts;
     }
 }
@@ -78,7 +78,8 @@ public class MagicTeaController {
             Map<String, MediaProxyTask> executedProxyTaskMap = MediaProxyManager.getExecutedProxyTaskMap();
             MediaProxyTask mediaProxyTask = executedProxyTaskMap.get(videoId);
             if (mediaProxyTask != null) {
-                MediaProxyTask.KeyFrame keyFrame = mediaProxyTask.getKeyFrame();
+                // 缩略图可以接受较旧的关键帧，避免频繁唤醒解码进程
+                MediaProxyTask.KeyFrame keyFrame = mediaProxyTask.getKeyFrame(60000);
                 if (keyFrame != null) {
                     BufferedImage scaledKeyFrame = new BufferedImage((int) (keyFrame.getWidth() * (160.0 / keyFrame.getHeight())), 160, BufferedImage.TYPE_INT_RGB);
                     scaledKeyFrame.createGraphics().drawImage(keyFrame.getFrameImage(), 0, 0, scaledKeyFrame.getWidth(), scaledKeyFrame.getHeight(), null);
@@ -22,6 +22,7 @@ import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
+import site.alice.liveman.mediaproxy.M3u8MediaProxy;
 import site.alice.liveman.mediaproxy.MediaProxyManager;
 
 @Controller
@@ -39,4 +40,13 @@ public class MediaProxyController {
         }
     }
 
+    @RequestMapping("/m3u8/{videoId}/{sequence}.ts")
+    public void m3u8SegmentHandler(@PathVariable String videoId, @PathVariable long sequence) {
+        try {
+            MediaProxyManager.getMediaProxy(M3u8MediaProxy.class).segmentHandler(videoId, sequence);
+        } catch (Throwable e) {
+            logger.error(e.getMessage());
+        }
+    }
+
 }
@@ -0,0 +1,105 @@
+/*
+ * <Alice LiveMan>
+ * Copyright (C) <2018>  <NekoSunflower>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+// 由BrowserRenderPool启动的共享渲染进程，每个页面对应一个标签页，截图以不压缩的PNG写入共享目录
+// 参数: 控制端口 截图目录
+var webpage = require('webpage');
+var webserver = require('webserver');
+var system = require('system');
+var pages = {};
+
+if (system.args.length < 3) {
+    phantom.exit();
+}
+var port = system.args[1];
+var frameDir = system.args[2];
+
+function parseQuery(url) {
+    var query = {};
+    var index = url.indexOf('?');
+    if (index < 0) {
+        return query;
+    }
+    var pairs = url.substring(index + 1).split('&');
+    for (var i = 0; i < pairs.length; i++) {
+        var split = pairs[i].indexOf('=');
+        if (split > 0) {
+            query[pairs[i].substring(0, split)] = decodeURIComponent(pairs[i].substring(split + 1));
+        }
+    }
+    return query;
+}
+
+function openPage(id, url, width, height, interval) {
+    var page = webpage.create();
+    var entry = {page: page, timer: null, sequence: 0};
+    pages[id] = entry;
+    page.viewportSize = {width: width, height: height};
+    page.open(url, function (status) {
+        if (status != "success") {
+            console.log("failed:" + id + ":" + status);
+            closePage(id);
+            return;
+        }
+        entry.timer = window.setInterval(function () {
+            page.evaluate(function (width, height) {
+                var app = document.getElementById("app");
+                app.style.width = width + 'px';
+                app.style.height = height + 'px';
+                app.style.display = "block";
+                app.style.overflow = "hidden";
+                app.scrollTop = 100000;
+            }, width, height);
+            // 每一帧使用新的文件名，由读取方读取后删除，不会覆盖正在读取的文件
+            var sequence = entry.sequence++;
+            page.render(frameDir + "/" + id + "_" + sequence + ".png", {format: 'png', quality: '100'});
+            console.log("frame:" + id + ":" + sequence);
+        }, interval);
+    });
+}
+
+function closePage(id) {
+    var entry = pages[id];
+    if (entry) {
+        if (entry.timer) {
+            window.clearInterval(entry.timer);
+        }
+        entry.page.close();
+        delete pages[id];
+        console.log("closed:" + id);
+    }
+}
+
+var server = webserver.create();
+var listening = server.listen('127.0.0.1:' + port, function (request, response) {
+    var query = parseQuery(request.url);
+    if (request.url.indexOf('/open?') == 0) {
+        closePage(query.id);
+        openPage(query.id, query.url, parseInt(query.width), parseInt(query.height), parseInt(query.interval));
+    } else if (request.url.indexOf('/close?') == 0) {
+        closePage(query.id);
+    }
+    response.statusCode = 200;
+    response.write("ok");
+    response.close();
+});
+if (!listening) {
+    console.log("failed to listen on " + port);
+    phantom.exit(1);
+}
+console.log("ready");
@@ -0,0 +1,67 @@
+/*
+ * <Alice LiveMan>
+ * Copyright (C) <2018>  <NekoSunflower>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package site.alice.liveman.utils;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * ImageMaskUtil的测试与基准共用的图像数据和原有的逐像素实现
+ */
+public class ImageMaskFixtures {
+
+    /**
+     * 替换前CrfAsRnnImageSegmentServiceImpl中的实现，作为像素一致性校验和基准测试的对照
+     */
+    public static BufferedImage legacySameColorMask(BufferedImage originalImage, BufferedImage filterImage) {
+        BufferedImage sameRangeImage = new BufferedImage(originalImage.getWidth(), originalImage.getHeight(),
+                BufferedImage.TYPE_INT_ARGB);
+        Raster originalImageData = originalImage.getData();
+        Raster filterImageData = filterImage.getData();
+        int[] odata = new int[4];
+        int[] fdata = new int[4];
+        for (int i = 0; i < originalImage.getWidth(); i++) {
+            for (int j = 0; j < originalImage.getHeight(); j++) {
+                if (Arrays.equals(originalImageData.getPixel(i, j, odata), filterImageData.getPixel(i, j, fdata))) {
+                    sameRangeImage.setRGB(i, j, Color.BLACK.getRGB());
+                }
+            }
+        }
+        return sameRangeImage;
+    }
+
+    /**
+     * @return 两张随机噪声图像，第二张按sameRatio的比例复制第一张的像素，其余像素重新生成
+     */
+    public static BufferedImage[] createImagePair(int width, int height, int imageType, double sameRatio, long seed) {
+        Random random = new Random(seed);
+        BufferedImage imageA = new BufferedImage(width, height, imageType);
+        BufferedImage imageB = new BufferedImage(width, height, imageType);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int rgb = random.nextInt();
+                imageA.setRGB(x, y, rgb);
+                imageB.setRGB(x, y, random.nextDouble() < sameRatio ? rgb : random.nextInt());
+            }
+        }
+        return new BufferedImage[]{imageA, imageB};
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * <Alice LiveMan>
+ * Copyright (C) <2018>  <NekoSunflower>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package site.alice.liveman.utils;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+
+import static org.junit.Assert.assertEquals;
+
+public class ImageMaskUtilTest {
+
+    private static final int[] IMAGE_TYPES = {BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_4BYTE_ABGR, BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_INT_BGR};
+
+    @Test
+    public void matchesLegacyMaskAt720p() {
+        for (int imageType : IMAGE_TYPES) {
+            assertSameMask(ImageMaskFixtures.createImagePair(1280, 720, imageType, 0.5, imageType));
+        }
+    }
+
+    @Test
+    public void matchesLegacyMaskAt1080p() {
+        for (int imageType : IMAGE_TYPES) {
+            assertSameMask(ImageMaskFixtures.createImagePair(1920, 1080, imageType, 0.5, imageType));
+        }
+    }
+
+    @Test
+    public void matchesLegacyMaskForUnpackedWidth() {
+        // 宽度不是8的倍数时遮罩每行末尾的字节只用到一部分
+        for (int imageType : IMAGE_TYPES) {
+            assertSameMask(ImageMaskFixtures.createImagePair(37, 19, imageType, 0.5, imageType));
+        }
+    }
+
+    @Test
+    public void matchesLegacyMaskForSubimages() {
+        BufferedImage[] images = ImageMaskFixtures.createImagePair(320, 240, BufferedImage.TYPE_3BYTE_BGR, 0.5, 1);
+        assertSameMask(new BufferedImage[]{images[0].getSubimage(13, 7, 101, 77), images[1].getSubimage(13, 7, 101, 77)});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSizeMismatch() {
+        ImageMaskUtil.buildSameColorMask(new BufferedImage(2, 2, BufferedImage.TYPE_INT_RGB), new BufferedImage(2, 3, BufferedImage.TYPE_INT_RGB));
+    }
+
+    private static void assertSameMask(BufferedImage[] images) {
+        BufferedImage expected = ImageMaskFixtures.legacySameColorMask(images[0], images[1]);
+        BufferedImage actual = ImageMaskUtil.buildSameColorMask(images[0], images[1]);
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                assertEquals("type=" + images[0].getType() + " x=" + x + " y=" + y, expected.getRGB(x, y), actual.getRGB(x, y));
+            }
+        }
+    }
+}